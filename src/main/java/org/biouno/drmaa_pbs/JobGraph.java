@@ -0,0 +1,145 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ggf.drmaa.InvalidJobTemplateException;
+import org.ggf.drmaa.JobTemplate;
+
+/**
+ * A workflow of jobs, by name, where a job may only start once the jobs it depends on have completed successfully.
+ *
+ * @author Bruno P. Kinoshita
+ * @since 0.3
+ * @see SessionImpl#runJobGraph(JobGraph)
+ */
+public class JobGraph {
+
+    private final Map<String, JobTemplate> templates = new LinkedHashMap<String, JobTemplate>();
+    private final Map<String, Set<String>> dependencies = new HashMap<String, Set<String>>();
+
+    /**
+     * @param name name of the job in the graph
+     * @param jt job template
+     * @return this graph
+     * @throws IllegalArgumentException if the graph already has a job with this name
+     */
+    public JobGraph addJob(String name, JobTemplate jt) {
+        if (templates.containsKey(name)) {
+            throw new IllegalArgumentException("Duplicate job in graph: " + name);
+        }
+        templates.put(name, jt);
+        dependencies.put(name, new LinkedHashSet<String>());
+        return this;
+    }
+
+    /**
+     * @param job name of the dependent job
+     * @param dependsOn name of the job that must complete successfully first
+     * @return this graph
+     * @throws IllegalArgumentException if one of the jobs is not in the graph
+     */
+    public JobGraph addDependency(String job, String dependsOn) {
+        if (!templates.containsKey(job) || !templates.containsKey(dependsOn)) {
+            throw new IllegalArgumentException("Unknown job in dependency " + job + " -> " + dependsOn);
+        }
+        dependencies.get(job).add(dependsOn);
+        return this;
+    }
+
+    /**
+     * @param name job name
+     * @return the job template, or {@code null} if the graph has no job with this name
+     */
+    public JobTemplate getTemplate(String name) {
+        return templates.get(name);
+    }
+
+    /**
+     * @param name job name
+     * @return the names of the jobs this job depends on
+     */
+    public Set<String> getDependencies(String name) {
+        Set<String> names = dependencies.get(name);
+        return names == null ? Collections.<String> emptySet() : Collections.unmodifiableSet(names);
+    }
+
+    /**
+     * @return the names of the jobs, in the order they were added
+     */
+    public Set<String> getJobNames() {
+        return Collections.unmodifiableSet(templates.keySet());
+    }
+
+    public int size() {
+        return templates.size();
+    }
+
+    /**
+     * @return the job names in an order where every job comes after the jobs it depends on, otherwise in the order
+     *         they were added
+     * @throws InvalidJobTemplateException if the dependencies have a cycle
+     */
+    public List<String> sort() throws InvalidJobTemplateException {
+        Map<String, Integer> pending = new HashMap<String, Integer>();
+        Map<String, List<String>> dependents = new HashMap<String, List<String>>();
+        Deque<String> ready = new ArrayDeque<String>();
+        for (String name : templates.keySet()) {
+            pending.put(name, dependencies.get(name).size());
+            for (String dependency : dependencies.get(name)) {
+                dependents.computeIfAbsent(dependency, k -> new ArrayList<String>()).add(name);
+            }
+            if (dependencies.get(name).isEmpty()) {
+                ready.add(name);
+            }
+        }
+        List<String> order = new ArrayList<String>(templates.size());
+        while (!ready.isEmpty()) {
+            String name = ready.poll();
+            order.add(name);
+            for (String dependent : dependents.getOrDefault(name, Collections.<String> emptyList())) {
+                if (pending.merge(dependent, -1, Integer::sum) == 0) {
+                    ready.add(dependent);
+                }
+            }
+        }
+        if (order.size() < templates.size()) {
+            List<String> cyclic = new ArrayList<String>(templates.keySet());
+            cyclic.removeAll(order);
+            throw new InvalidJobTemplateException("Job graph has a dependency cycle between " + cyclic);
+        }
+        return order;
+    }
+
+}
@@ -23,31 +23,33 @@
  */
 package org.biouno.drmaa_pbs;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 
 import org.ggf.drmaa.DrmaaException;
 import org.ggf.drmaa.JobInfo;
 
-public class JobInfoImpl implements JobInfo {
-
-    private String jobId;
-    private Map<?, ?> resourceUsage;
-    private boolean exited;
-    private int exitStatus;
-    private String terminatingSignal;
-    private boolean coreDump;
-    private boolean aborted;
-    private boolean signaled;
+/**
+ * Information about a job. Immutable, so that the information of finished jobs can be cached and shared.
+ */
+public final class JobInfoImpl implements JobInfo {
 
-    JobInfoImpl() {
-        super();
-    }
+    private final String jobId;
+    private final Map<?, ?> resourceUsage;
+    private final boolean exited;
+    private final int exitStatus;
+    private final String terminatingSignal;
+    private final boolean coreDump;
+    private final boolean aborted;
+    private final boolean signaled;
 
     JobInfoImpl(String jobId, Map<?, ?> resourceUsage, boolean exited, int exitStatus, String terminatingSignal,
             boolean coreDump, boolean aborted, boolean signaled) {
         super();
         this.jobId = jobId;
-        this.resourceUsage = resourceUsage;
+        this.resourceUsage = resourceUsage == null ? Collections.emptyMap()
+                : Collections.unmodifiableMap(new HashMap<Object, Object>(resourceUsage));
         this.exited = exited;
         this.exitStatus = exitStatus;
         this.terminatingSignal = terminatingSignal;
@@ -0,0 +1,127 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs;
+
+/**
+ * The PBS implementation of the server, for the options that differ between them, such as job arrays.
+ *
+ * @author Bruno P. Kinoshita
+ * @since 0.3
+ */
+public enum PbsFlavor {
+
+    /**
+     * PBS Professional and OpenPBS: arrays with {@code qsub -J start-end:step}.
+     */
+    PBS_PRO("pbspro", "-J", "PBS_ARRAY_INDEX", "^array_index^"),
+    /**
+     * Torque: arrays with {@code qsub -t}, which takes ranges without a step, or lists of indexes. Torque appends the
+     * array index to the output and error files itself.
+     */
+    TORQUE("torque", "-t", "PBS_ARRAYID", "");
+
+    private final String flavor;
+    private final String arrayOption;
+    private final String arrayIndexVariable;
+    private final String arrayIndexPathPlaceholder;
+
+    PbsFlavor(String flavor, String arrayOption, String arrayIndexVariable, String arrayIndexPathPlaceholder) {
+        this.flavor = flavor;
+        this.arrayOption = arrayOption;
+        this.arrayIndexVariable = arrayIndexVariable;
+        this.arrayIndexPathPlaceholder = arrayIndexPathPlaceholder;
+    }
+
+    public String getFlavor() {
+        return flavor;
+    }
+
+    /**
+     * @return the qsub option submitting a job array
+     */
+    public String getArrayOption() {
+        return arrayOption;
+    }
+
+    /**
+     * @return the environment variable holding the index of a subjob
+     */
+    public String getArrayIndexVariable() {
+        return arrayIndexVariable;
+    }
+
+    /**
+     * @return what qsub replaces with the subjob index in output and error paths, empty if it cannot
+     */
+    public String getArrayIndexPathPlaceholder() {
+        return arrayIndexPathPlaceholder;
+    }
+
+    /**
+     * @param start first index
+     * @param end last index, inclusive
+     * @param incr step between two indexes
+     * @return the value of the {@link #getArrayOption() array option} for these indexes
+     */
+    public String toArrayRange(int start, int end, int incr) {
+        if (incr == 1) {
+            return start + "-" + end;
+        }
+        if (this == PBS_PRO) {
+            return start + "-" + end + ":" + incr;
+        }
+        StringBuilder indexes = new StringBuilder();
+        for (long index = start; index <= end; index += incr) {
+            if (indexes.length() > 0) {
+                indexes.append(',');
+            }
+            indexes.append(index);
+        }
+        return indexes.toString();
+    }
+
+    /**
+     * @param flavor flavor name, case insensitive
+     * @return the matching flavor, or {@link #PBS_PRO} if there is none
+     */
+    public static PbsFlavor fromString(String flavor) {
+        for (PbsFlavor value : values()) {
+            if (value.flavor.equalsIgnoreCase(flavor)) {
+                return value;
+            }
+        }
+        return PBS_PRO;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Enum#toString()
+     */
+    @Override
+    public String toString() {
+        return this.flavor;
+    }
+
+}
@@ -23,32 +23,78 @@
  */
 package org.biouno.drmaa_pbs;
 
-import java.io.BufferedReader;
+import java.util.ArrayList;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.lang.StringUtils;
+import org.biouno.drmaa_pbs.exec.CommandExecutor;
+import org.biouno.drmaa_pbs.exec.CommandOutput;
+import org.biouno.drmaa_pbs.exec.ConnectionFactory;
+import org.biouno.drmaa_pbs.exec.ConnectionPool;
+import org.biouno.drmaa_pbs.exec.ConnectionUnavailableException;
+import org.biouno.drmaa_pbs.exec.ExecutionEngine;
+import org.biouno.drmaa_pbs.exec.ExecutionMode;
+import org.biouno.drmaa_pbs.exec.OverflowPolicy;
+import org.biouno.drmaa_pbs.exec.ProcessCommandExecutor;
+import org.biouno.drmaa_pbs.exec.RetryPolicy;
+import org.biouno.drmaa_pbs.exec.ScriptStager;
+import org.biouno.drmaa_pbs.exec.ShellCommandExecutor;
+import org.biouno.drmaa_pbs.exec.SubmissionQueue;
 import org.biouno.drmaa_pbs.model.Job;
-import org.biouno.drmaa_pbs.parser.ParseException;
-import org.biouno.drmaa_pbs.parser.QstatJobsParser;
+import org.biouno.drmaa_pbs.status.AccountingLogMonitor;
+import org.biouno.drmaa_pbs.status.AdmissionController;
+import org.biouno.drmaa_pbs.status.AccountingLogTailer;
+import org.biouno.drmaa_pbs.status.AdaptivePollPolicy;
+import org.biouno.drmaa_pbs.status.JobEventPublisher;
+import org.biouno.drmaa_pbs.status.JobPoller;
+import org.biouno.drmaa_pbs.status.JobTokenLookup;
+import org.biouno.drmaa_pbs.status.JobStateDispatcher;
+import org.biouno.drmaa_pbs.status.JobStateEvent;
+import org.biouno.drmaa_pbs.status.JobStateListener;
+import org.biouno.drmaa_pbs.status.RateLimiter;
+import org.biouno.drmaa_pbs.status.StatusCache;
+import org.biouno.drmaa_pbs.status.TerminalJobCache;
+import org.ggf.drmaa.DeniedByDrmException;
+import org.ggf.drmaa.DrmCommunicationException;
 import org.ggf.drmaa.DrmaaException;
+import org.ggf.drmaa.ExitTimeoutException;
+import org.ggf.drmaa.InternalException;
 import org.ggf.drmaa.InvalidJobException;
+import org.ggf.drmaa.InvalidJobTemplateException;
 import org.ggf.drmaa.JobInfo;
 import org.ggf.drmaa.JobTemplate;
+import org.ggf.drmaa.NoActiveSessionException;
 import org.ggf.drmaa.Session;
+import org.ggf.drmaa.TryLaterException;
 import org.ggf.drmaa.Version;
+import org.reactivestreams.Publisher;
 
 import com.xebialabs.overthere.CmdLine;
 import com.xebialabs.overthere.ConnectionOptions;
+import com.xebialabs.overthere.OperatingSystemFamily;
 import com.xebialabs.overthere.Overthere;
 import com.xebialabs.overthere.OverthereConnection;
-import com.xebialabs.overthere.OverthereProcess;
+import com.xebialabs.overthere.RuntimeIOException;
+import com.xebialabs.overthere.util.NullOverthereExecutionOutputHandler;
 
 /**
  * PBS DRMAA Session implementation.
@@ -60,7 +106,6 @@ import com.xebialabs.overthere.OverthereProcess;
 public class SessionImpl implements Session {
 
     private static final Logger LOGGER = Logger.getLogger(SessionImpl.class.getName());
-    private static final QstatJobsParser QSTAT_JOBS_PARSER = new QstatJobsParser();
 
     /**
      * Session connection type.
@@ -89,10 +134,312 @@ public class SessionImpl implements Session {
 
     private final ConnectionOptions connectionOptions = new ConnectionOptions();
 
+    /**
+     * Session options, as given to {@link #init(String, Map)}.
+     */
+    private final Map<String, String> options = new HashMap<String, String>();
+
+    /**
+     * Runs the commands of this session, over connections shared by all of them.
+     */
+    private CommandExecutor commandExecutor;
+
+    /**
+     * Runs the blocking work behind the asynchronous methods of this session.
+     */
+    private ExecutionEngine executionEngine;
+
+    /**
+     * Status of the jobs submitted or queried by this session.
+     */
+    private StatusCache statusCache;
+
+    /**
+     * Information of the finished jobs, answered without querying PBS.
+     */
+    private TerminalJobCache terminalJobCache;
+
+    /**
+     * Waits for jobs on behalf of every caller of {@link #wait(String, long)}.
+     */
+    private JobPoller jobPoller;
+
+    /**
+     * Runs the job submissions, so that many callers do not run as many qsub commands at once.
+     */
+    private SubmissionQueue submissionQueue;
+
+    /**
+     * Uploads the scripts given to {@link #stageScript(String)}, when the session has its own connections.
+     */
+    private ScriptStager scriptStager;
+    /**
+     * Connections borrowed by the script stager and the accounting log monitor, and by the commands in process mode.
+     */
+    private ConnectionPool connectionPool;
+
+    /**
+     * Checks submissions against the queue limits, when {@link #OPTION_ADMISSION_POLICY} is set.
+     */
+    private AdmissionController admissionController;
+
+    /**
+     * When and how often a submission that failed for a transient reason is attempted again.
+     */
+    private RetryPolicy submitRetryPolicy = RetryPolicy.NONE;
+
+    /**
+     * Finds the jobs whose submission outcome is unknown by their client token.
+     */
+    private JobTokenLookup jobTokenLookup;
+
+    /**
+     * Completes the waits from the accounting log, when {@link #OPTION_ACCOUNTING_LOG_DIR} is set.
+     */
+    private AccountingLogMonitor accountingLogMonitor;
+
+    /**
+     * Delivers the job state changes read by the status cache to the listeners of this session.
+     */
+    private JobStateDispatcher jobStateDispatcher;
+
+    /**
+     * Publishes the job state changes to reactive subscribers, created on first use.
+     */
+    private JobEventPublisher jobEventPublisher;
+
     /* --- Constants --- */
     private static final String COMMAND_QSUB = "qsub";
-    private static final String COMMAND_QSTAT = "qstat";
     private static final String COMMAND_QDEL = "qdel";
+    private static final String COMMAND_QSIG = "qsig";
+    private static final String COMMAND_QHOLD = "qhold";
+    private static final String COMMAND_QRLS = "qrls";
+    /**
+     * What the control commands print for a job that has finished.
+     */
+    private static final String[] FINISHED_JOB_ERRORS = { "Unknown Job Id", "Job has finished" };
+    /**
+     * Fraction by which the delays between two attempts of a submission are spread.
+     */
+    private static final double SUBMIT_RETRY_JITTER = 0.2D;
+    /**
+     * What qsub prints when it lost the connection to the server, maybe after the server received the job.
+     */
+    private static final String[] TRANSIENT_QSUB_ERRORS = { "Premature end of message", "End of File" };
+    /**
+     * What qsub prints when it could not connect to the server, before sending it the job.
+     */
+    private static final String[] UNSENT_QSUB_ERRORS = { "cannot connect to server", "Connection refused" };
+
+    /* --- Session options --- */
+    /**
+     * Number of connections kept open even when idle. Defaults to 1.
+     */
+    public static final String OPTION_POOL_MIN_SIZE = "poolMinSize";
+    /**
+     * Maximum number of open connections. Defaults to 4. In shell mode, the shells have a pool of their own of this
+     * size, as each shell holds its connection, so that staging a script or reading the accounting log never waits for
+     * a shell to give its connection back.
+     */
+    public static final String OPTION_POOL_MAX_SIZE = "poolMaxSize";
+    /**
+     * Milliseconds after which an idle connection above the minimum size is closed. Defaults to 5 minutes.
+     */
+    public static final String OPTION_POOL_IDLE_TIMEOUT = "poolIdleTimeout";
+    /**
+     * Milliseconds of idleness after which a connection is checked before being used. Defaults to 30 seconds.
+     */
+    public static final String OPTION_POOL_VALIDATION_INTERVAL = "poolValidationInterval";
+    /**
+     * Milliseconds to wait for a connection when all of them are in use. Defaults to 60 seconds.
+     */
+    public static final String OPTION_POOL_BORROW_TIMEOUT = "poolBorrowTimeout";
+    /**
+     * How commands are run, either {@code process} (default), with one process per command, or {@code shell}, with
+     * commands multiplexed over one long-running shell per connection.
+     *
+     * @see ExecutionMode
+     */
+    public static final String OPTION_EXECUTION_MODE = "executionMode";
+    /**
+     * PBS implementation of the server, either {@code pbspro} (default) or {@code torque}.
+     *
+     * @see PbsFlavor
+     */
+    public static final String OPTION_PBS_FLAVOR = "pbsFlavor";
+    /**
+     * Maximum number of session operations (qsub, qstat, qdel, ...) running at the same time. Further operations are
+     * queued. Defaults to 16.
+     */
+    public static final String OPTION_MAX_CONCURRENT_COMMANDS = "maxConcurrentCommands";
+    /**
+     * Whether session operations, including the polling done by {@link #wait(String, long)}, run on virtual threads
+     * when the JVM supports them, instead of a pool of platform threads. Defaults to {@code false}.
+     */
+    public static final String OPTION_VIRTUAL_THREADS = "virtualThreads";
+    /**
+     * Milliseconds during which a job status is served from memory instead of calling qstat again. Zero disables
+     * caching. Defaults to 1 second.
+     */
+    public static final String OPTION_STATUS_CACHE_TTL = "statusCacheTtl";
+    /**
+     * Maximum number of job ids given to one qstat when refreshing the job statuses. Defaults to 500.
+     */
+    public static final String OPTION_STATUS_BATCH_SIZE = "statusBatchSize";
+    /**
+     * Milliseconds between two status queries of a job being waited on, right after it has changed state. Defaults to
+     * 2 seconds.
+     *
+     * @see AdaptivePollPolicy
+     */
+    public static final String OPTION_POLL_INTERVAL = "pollInterval";
+    /**
+     * Longest milliseconds between two status queries of a job being waited on, reached after it stays in the same
+     * state for a while. Defaults to 1 minute.
+     */
+    public static final String OPTION_POLL_MAX_INTERVAL = "pollMaxInterval";
+    /**
+     * Fraction by which the delay between two status queries is randomly increased or decreased. Defaults to 0.2.
+     */
+    public static final String OPTION_POLL_JITTER = "pollJitter";
+    /**
+     * Maximum number of qstat commands per second run by the session to read job statuses. Zero or less disables the
+     * limit. Defaults to 10.
+     */
+    public static final String OPTION_MAX_STATUS_QUERIES_PER_SECOND = "maxStatusQueriesPerSecond";
+    /**
+     * Maximum milliseconds before a new wait gets its first status, or an expired wait times out, regardless of the
+     * poll interval. Defaults to 200 milliseconds.
+     */
+    public static final String OPTION_POLL_LATENCY = "pollLatency";
+    /**
+     * Directory of the PBS accounting log on the session host, e.g. {@code /var/spool/torque/server_priv/accounting}.
+     * When set and readable, jobs are seen finishing as soon as their end record is written, and qstat is only a
+     * fallback. Not set by default.
+     *
+     * @see AccountingLogMonitor
+     */
+    public static final String OPTION_ACCOUNTING_LOG_DIR = "accountingLogDir";
+    /**
+     * Milliseconds between two reads of the accounting log. Defaults to 1 second.
+     */
+    public static final String OPTION_ACCOUNTING_LOG_INTERVAL = "accountingLogInterval";
+    /**
+     * Maximum number of job state events waiting to be delivered to one listener. When a listener falls behind, its
+     * oldest events are dropped. Defaults to 1024.
+     */
+    public static final String OPTION_LISTENER_QUEUE_SIZE = "listenerQueueSize";
+    /**
+     * Number of threads calling the job state listeners. Defaults to 2.
+     */
+    public static final String OPTION_LISTENER_THREADS = "listenerThreads";
+    /**
+     * Maximum estimated bytes of the information kept for finished jobs, which is answered without querying PBS.
+     * Defaults to 16 MB.
+     */
+    public static final String OPTION_TERMINAL_CACHE_MAX_BYTES = "terminalCacheMaxBytes";
+    /**
+     * Maximum number of qsub commands run by one remote command in {@link #runJobs(List)}. Defaults to 100.
+     */
+    public static final String OPTION_SUBMIT_BATCH_SIZE = "submitBatchSize";
+    /**
+     * Maximum number of job submissions waiting for a submitter, not counting the running ones. Defaults to 1000.
+     *
+     * @see SubmissionQueue
+     */
+    public static final String OPTION_SUBMIT_QUEUE_CAPACITY = "submitQueueCapacity";
+    /**
+     * Number of job submissions (qsub) running at the same time. Defaults to 4.
+     */
+    public static final String OPTION_SUBMITTERS = "submitters";
+    /**
+     * What happens to a job submission when the submission queue is full: {@code block} (default) waits for room,
+     * {@code failFast} rejects it, and {@code drop} rejects the oldest queued submission instead. Rejected submissions
+     * fail with a {@link TryLaterException}.
+     *
+     * @see OverflowPolicy
+     */
+    public static final String OPTION_SUBMIT_OVERFLOW_POLICY = "submitOverflowPolicy";
+    /**
+     * Directory of the PBS head node where {@link #stageScript(String)} uploads scripts. Defaults to
+     * {@code /tmp/drmaa-pbs-scripts}.
+     *
+     * @see ScriptStager
+     */
+    public static final String OPTION_SCRIPT_CACHE_DIR = "scriptCacheDir";
+    /**
+     * Maximum number of scripts kept in {@link #OPTION_SCRIPT_CACHE_DIR}. Defaults to 1000.
+     */
+    public static final String OPTION_SCRIPT_CACHE_MAX_SCRIPTS = "scriptCacheMaxScripts";
+    /**
+     * Milliseconds after a script was last staged, by any session, during which it is not deleted from
+     * {@link #OPTION_SCRIPT_CACHE_DIR}, so that the job using it can still be submitted. Defaults to 10 minutes.
+     *
+     * @see ScriptStager
+     */
+    public static final String OPTION_SCRIPT_CACHE_GRACE_PERIOD = "scriptCacheGracePeriod";
+    /**
+     * Whether jobs are checked against the limits of their queue before being submitted: {@code none} (default),
+     * {@code hold}, where submissions over the {@code max_user_run} of the queue wait for a slot to free up, without
+     * holding a worker of the submission queue, or {@code reject}, where they fail with a {@link TryLaterException}.
+     * All the active jobs of the user in the queue count toward {@code max_user_run}, not only the ones of this
+     * session. Submissions over the {@code resources_max} of the queue, or to a disabled queue, fail with a
+     * {@link DeniedByDrmException} in both modes.
+     *
+     * <p>
+     * Only the jobs of {@link #runJob(JobTemplate)}, {@link #runJobScript(JobTemplate, String)}, and
+     * {@link #runBulkJobs(JobTemplate, int, int, int)} over a single index are checked. Job arrays are not, as the
+     * server queues their subjobs and starts them as slots free up, and neither are the jobs of
+     * {@link #runJobs(List)} and {@link #runJobGraph(JobGraph)}, submitted together by one remote script that cannot
+     * wait for a slot.
+     * </p>
+     *
+     * @see AdmissionController
+     */
+    public static final String OPTION_ADMISSION_POLICY = "admissionPolicy";
+    /**
+     * Milliseconds after which the queue limits used by {@link #OPTION_ADMISSION_POLICY} are read again. Defaults to
+     * 30000.
+     */
+    public static final String OPTION_QUEUE_REFRESH_INTERVAL = "queueRefreshInterval";
+    /**
+     * Queue of the jobs whose native specification has no {@code -q}, for {@link #OPTION_ADMISSION_POLICY}. When not
+     * set, only the jobs naming their queue are checked.
+     */
+    public static final String OPTION_DEFAULT_QUEUE = "defaultQueue";
+    /**
+     * Number of times the submission of a job by {@link #runJob(JobTemplate)},
+     * {@link #runJobScript(JobTemplate, String)} or {@link #runBulkJobs(JobTemplate, int, int, int)} is attempted
+     * again after a transient failure, such as a dropped connection. Defaults to 0. When set, each job, or job array,
+     * is given a client token in its {@code Variable_List}, and the server is searched for it before the job is
+     * submitted again, so that a job is never submitted twice.
+     *
+     * <p>
+     * The jobs of {@link #runJobs(List)} and {@link #runJobGraph(JobGraph)} are not attempted again: their qsub
+     * commands run in one remote script, and the ones whose outcome is not known are reported with a
+     * {@link DrmCommunicationException}.
+     * </p>
+     *
+     * @see JobTokenLookup
+     */
+    public static final String OPTION_SUBMIT_RETRIES = "submitRetries";
+    /**
+     * Milliseconds before the first new attempt of a submission, doubled after each failed attempt. Defaults to 1
+     * second.
+     *
+     * @see RetryPolicy
+     */
+    public static final String OPTION_SUBMIT_RETRY_DELAY = "submitRetryDelay";
+    /**
+     * Longest milliseconds between two attempts of a submission. Defaults to 30 seconds.
+     */
+    public static final String OPTION_SUBMIT_RETRY_MAX_DELAY = "submitRetryMaxDelay";
+    /**
+     * Maximum length, in characters, of the arguments of one {@code qdel}, {@code qsig}, {@code qhold} or
+     * {@code qrls} run by {@link #control(Collection, int)}. Jobs are split among as many commands as needed, so that
+     * none goes over the command line limit of the session host. Defaults to 65536.
+     */
+    public static final String OPTION_CONTROL_MAX_COMMAND_LENGTH = "controlMaxCommandLength";
 
     /**
      * Hidden constructor. Package only.
@@ -110,6 +457,7 @@ public class SessionImpl implements Session {
     public void init(String contact) throws DrmaaException {
         LOGGER.log(Level.FINEST, "Session init()");
         this.contact = StringUtils.defaultIfBlank(contact, ConnectionType.LOCAL.getType());
+        initExecution();
     }
 
     /**
@@ -126,158 +474,1272 @@ public class SessionImpl implements Session {
      */
     public void init(String contact, Map<String, String> options) {
         LOGGER.log(Level.FINEST, "Session init() with connection options");
+        setOptions(contact, options);
+        initExecution();
+    }
+
+    /**
+     * Initializes the session around the given command executor. Package only, so that tests can run the session
+     * against a fake PBS server.
+     *
+     * @param contact connection type
+     * @param options session options
+     * @param executor runs the session commands
+     */
+    /* package */ void init(String contact, Map<String, String> options, CommandExecutor executor) {
+        setOptions(contact, options);
+        initExecution(executor);
+    }
+
+    private void setOptions(String contact, Map<String, String> options) {
         this.contact = StringUtils.defaultIfBlank(contact, ConnectionType.LOCAL.getType());
         if (options != null && options.size() > 0) {
             for (Entry<String, String> entry : options.entrySet()) {
                 connectionOptions.set(entry.getKey(), entry.getValue());
+                this.options.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void initExecution() {
+        ConnectionPool pool = newConnectionPool();
+        switch (ExecutionMode.fromString(options.get(OPTION_EXECUTION_MODE))) {
+        case SHELL:
+            // each shell holds its connection, so the shells have their own pool and never starve the shared one
+            initExecution(new ShellCommandExecutor(newConnectionPool(), getIntOption(OPTION_POOL_MAX_SIZE, 4)));
+            break;
+        default:
+            initExecution(new ProcessCommandExecutor(pool));
+            break;
+        }
+        connectionPool = pool;
+        scriptStager = new ScriptStager(pool,
+                StringUtils.defaultIfBlank(options.get(OPTION_SCRIPT_CACHE_DIR), "/tmp/drmaa-pbs-scripts").trim(),
+                getIntOption(OPTION_SCRIPT_CACHE_MAX_SCRIPTS, 1000),
+                getLongOption(OPTION_SCRIPT_CACHE_GRACE_PERIOD, 600000L));
+        String accountingLogDir = options.get(OPTION_ACCOUNTING_LOG_DIR);
+        if (StringUtils.isNotBlank(accountingLogDir)) {
+            accountingLogMonitor = new AccountingLogMonitor(new AccountingLogTailer(accountingLogDir.trim()),
+                    pool, executionEngine, jobPoller, getLongOption(OPTION_ACCOUNTING_LOG_INTERVAL, 1000L));
+            accountingLogMonitor.start();
+        }
+    }
+
+    private ConnectionPool newConnectionPool() {
+        return new ConnectionPool(new ConnectionFactory() {
+            @Override
+            public OverthereConnection open() {
+                return Overthere.getConnection(getContact(), connectionOptions);
+            }
+
+            @Override
+            public boolean validate(OverthereConnection connection) {
+                return connection.execute(NullOverthereExecutionOutputHandler.swallow(),
+                        NullOverthereExecutionOutputHandler.swallow(), CmdLine.build("true")) == 0;
+            }
+        }, getIntOption(OPTION_POOL_MIN_SIZE, 1), getIntOption(OPTION_POOL_MAX_SIZE, 4),
+                getLongOption(OPTION_POOL_IDLE_TIMEOUT, 300000L),
+                getLongOption(OPTION_POOL_VALIDATION_INTERVAL, 30000L),
+                getLongOption(OPTION_POOL_BORROW_TIMEOUT, 60000L));
+    }
+
+    private void initExecution(CommandExecutor executor) {
+        closeExecution();
+        commandExecutor = executor;
+        executionEngine = new ExecutionEngine(getIntOption(OPTION_MAX_CONCURRENT_COMMANDS, 16),
+                getBooleanOption(OPTION_VIRTUAL_THREADS, false));
+        statusCache = new StatusCache(commandExecutor, getLongOption(OPTION_STATUS_CACHE_TTL, 1000L),
+                getIntOption(OPTION_STATUS_BATCH_SIZE, 500),
+                new RateLimiter(getDoubleOption(OPTION_MAX_STATUS_QUERIES_PER_SECOND, 10D)));
+        AdaptivePollPolicy pollPolicy = new AdaptivePollPolicy(getLongOption(OPTION_POLL_INTERVAL, 2000L),
+                getLongOption(OPTION_POLL_MAX_INTERVAL, 60000L), getDoubleOption(OPTION_POLL_JITTER, 0.2D));
+        jobPoller = new JobPoller(statusCache, executionEngine, pollPolicy, getLongOption(OPTION_POLL_LATENCY, 200L));
+        submissionQueue = new SubmissionQueue(getIntOption(OPTION_SUBMIT_QUEUE_CAPACITY, 1000),
+                getIntOption(OPTION_SUBMITTERS, 4),
+                OverflowPolicy.fromString(options.get(OPTION_SUBMIT_OVERFLOW_POLICY)));
+        final JobStateDispatcher dispatcher = new JobStateDispatcher(getIntOption(OPTION_LISTENER_QUEUE_SIZE, 1024),
+                getIntOption(OPTION_LISTENER_THREADS, 2));
+        final TerminalJobCache terminalCache = new TerminalJobCache(
+                getLongOption(OPTION_TERMINAL_CACHE_MAX_BYTES, 16L * 1024L * 1024L));
+        String admissionPolicy = StringUtils.defaultString(options.get(OPTION_ADMISSION_POLICY)).trim();
+        final AdmissionController admission;
+        if ("hold".equalsIgnoreCase(admissionPolicy) || "reject".equalsIgnoreCase(admissionPolicy)) {
+            admission = new AdmissionController(commandExecutor, executionEngine,
+                    getLongOption(OPTION_QUEUE_REFRESH_INTERVAL, 30000L), "hold".equalsIgnoreCase(admissionPolicy),
+                    statusCache::isTracked);
+        } else {
+            admission = null;
+        }
+        statusCache.setStateListener(event -> {
+            if (isFinished(event.getJob())) {
+                terminalCache.put(event.getJobId(), jobToJobInfo(event.getJob()));
+                if (admission != null) {
+                    admission.finished(event.getJobId());
+                }
+            }
+            dispatcher.stateChanged(event);
+        });
+        admissionController = admission;
+        int submitRetries = getIntOption(OPTION_SUBMIT_RETRIES, 0);
+        submitRetryPolicy = submitRetries <= 0 ? RetryPolicy.NONE
+                : new RetryPolicy(submitRetries + 1, getLongOption(OPTION_SUBMIT_RETRY_DELAY, 1000L),
+                        getLongOption(OPTION_SUBMIT_RETRY_MAX_DELAY, 30000L), SUBMIT_RETRY_JITTER);
+        jobTokenLookup = new JobTokenLookup(commandExecutor);
+        jobStateDispatcher = dispatcher;
+        terminalJobCache = terminalCache;
+    }
+
+    private void closeExecution() {
+        if (accountingLogMonitor != null) {
+            accountingLogMonitor.close();
+            accountingLogMonitor = null;
+        }
+        if (admissionController != null) {
+            admissionController.close();
+        }
+        if (submissionQueue != null) {
+            submissionQueue.close();
+            submissionQueue = null;
+        }
+        if (jobPoller != null) {
+            jobPoller.close();
+            jobPoller = null;
+        }
+        if (jobEventPublisher != null) {
+            jobEventPublisher.close();
+            jobEventPublisher = null;
+        }
+        if (jobStateDispatcher != null) {
+            jobStateDispatcher.close();
+            jobStateDispatcher = null;
+        }
+        if (executionEngine != null) {
+            executionEngine.close();
+            executionEngine = null;
+        }
+        if (commandExecutor != null) {
+            commandExecutor.close();
+            commandExecutor = null;
+        }
+        if (connectionPool != null) {
+            connectionPool.close();
+            connectionPool = null;
+        }
+        statusCache = null;
+        terminalJobCache = null;
+        scriptStager = null;
+        admissionController = null;
+        jobTokenLookup = null;
+        submitRetryPolicy = RetryPolicy.NONE;
+    }
+
+    private int getIntOption(String key, int defaultValue) {
+        String value = options.get(key);
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException nfe) {
+            LOGGER.log(Level.WARNING, "Invalid value for session option " + key + ": " + value, nfe);
+            return defaultValue;
+        }
+    }
+
+    private double getDoubleOption(String key, double defaultValue) {
+        String value = options.get(key);
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException nfe) {
+            LOGGER.log(Level.WARNING, "Invalid value for session option " + key + ": " + value, nfe);
+            return defaultValue;
+        }
+    }
+
+    private boolean getBooleanOption(String key, boolean defaultValue) {
+        String value = options.get(key);
+        return StringUtils.isBlank(value) ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    private long getLongOption(String key, long defaultValue) {
+        String value = options.get(key);
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException nfe) {
+            LOGGER.log(Level.WARNING, "Invalid value for session option " + key + ": " + value, nfe);
+            return defaultValue;
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.ggf.drmaa.Session#exit()
+     */
+    @Override
+    public void exit() throws DrmaaException {
+        LOGGER.log(Level.FINEST, "Session exit()");
+        closeExecution();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.ggf.drmaa.Session#createJobTemplate()
+     */
+    @Override
+    public JobTemplate createJobTemplate() throws DrmaaException {
+        LOGGER.log(Level.FINEST, "Creating new job template");
+        return new JobTemplateImpl();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.ggf.drmaa.Session#deleteJobTemplate(org.ggf.drmaa.JobTemplate)
+     */
+    @Override
+    public void deleteJobTemplate(JobTemplate jt) throws DrmaaException {
+        LOGGER.log(Level.FINEST, "Delete job template");
+        // Not implemented
+    }
+
+    private void addIf(CmdLine cmd, Boolean test, List<String> args) {
+        if (test) {
+            add(cmd, args);
+        }
+    }
+
+    private void add(CmdLine cmd, List<String> args) {
+        for (String arg : args) {
+            cmd.addArgument(arg);
+        }
+    }
+
+    /**
+     * Runs a job, by calling qsub using the job template settings, and
+     * connection info provided when the session was created.
+     *
+     * @param jt job template
+     */
+    @Override
+    public String runJob(JobTemplate jt) throws DrmaaException {
+        return await(runJobAsync(jt));
+    }
+
+    /**
+     * Runs a job without blocking the calling thread.
+     *
+     * <p>
+     * The submission goes through the {@link #getSubmissionQueue() submission queue}. When it is full, this method
+     * blocks or the future fails with a {@link TryLaterException}, as set by {@link #OPTION_SUBMIT_OVERFLOW_POLICY}.
+     * </p>
+     *
+     * @param jt job template, read before this method returns
+     * @return a future completed with the job id
+     * @see #runJob(JobTemplate)
+     */
+    public CompletableFuture<String> runJobAsync(JobTemplate jt) {
+        final CmdLine cmd;
+        try {
+            final String token = newSubmitToken();
+            cmd = buildQsubCommand(jt, null, null, null, token);
+            final String queue = getQueueName(jt);
+            final Map<String, String> resources = getRequestedResources(jt);
+            return submitAdmittedJobAsync(queue, resources, cmd, null, token);
+        } catch (DrmaaException e) {
+            return failed(e);
+        }
+    }
+
+    /**
+     * Runs several jobs, with different templates, in as few remote commands as possible.
+     *
+     * @param jts job templates
+     * @return the result of each template, in the same order
+     * @throws DrmaaException if the session is not active
+     * @see #runJobsAsync(List)
+     */
+    public List<SubmitResult> runJobs(List<JobTemplate> jts) throws DrmaaException {
+        return await(runJobsAsync(jts));
+    }
+
+    /**
+     * Runs several jobs, with different templates, without blocking the calling thread.
+     *
+     * <p>
+     * The qsub commands are written to a script that runs them in sequence, and the script is run by a single remote
+     * command, so that submitting a batch costs one round trip instead of one per job. Batches have at most
+     * {@link #OPTION_SUBMIT_BATCH_SIZE} commands.
+     * </p>
+     *
+     * <p>
+     * Each template is submitted independently: a template that fails does not prevent the next ones from being
+     * submitted, and its {@link SubmitResult} holds the error. If a batch could not be run or did not complete, the
+     * results of its templates that were not reported hold a {@link DrmCommunicationException}, and these jobs may or
+     * may not have been submitted. The jobs submitted are added to the session like the ones of {@link #runJob}, but
+     * they are neither checked by {@link #OPTION_ADMISSION_POLICY} nor attempted again as set by
+     * {@link #OPTION_SUBMIT_RETRIES}.
+     * </p>
+     *
+     * @param jts job templates, read before this method returns
+     * @return a future completed with the result of each template, in the same order
+     */
+    public CompletableFuture<List<SubmitResult>> runJobsAsync(List<JobTemplate> jts) {
+        final CmdLine[] cmds = new CmdLine[jts.size()];
+        final SubmitResult[] results = new SubmitResult[jts.size()];
+        for (int i = 0; i < cmds.length; i++) {
+            try {
+                cmds[i] = buildQsubCommand(jts.get(i));
+            } catch (DrmaaException e) {
+                results[i] = SubmitResult.failed(e);
+            }
+        }
+        try {
+            return getSubmissionQueue().submit(() -> submitJobs(cmds, results));
+        } catch (DrmaaException e) {
+            return failed(e);
+        }
+    }
+
+    private List<SubmitResult> submitJobs(CmdLine[] cmds, SubmitResult[] results) throws DrmaaException {
+        int batchSize = Math.max(1, getIntOption(OPTION_SUBMIT_BATCH_SIZE, 100));
+        List<Integer> batch = new ArrayList<Integer>(Math.min(batchSize, cmds.length));
+        for (int i = 0; i < cmds.length; i++) {
+            if (cmds[i] == null) {
+                continue;
+            }
+            batch.add(i);
+            if (batch.size() == batchSize) {
+                submitBatch(batch, cmds, results);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            submitBatch(batch, cmds, results);
+        }
+        return Collections.unmodifiableList(Arrays.asList(results));
+    }
+
+    /**
+     * Runs qsub commands with one {@code sh -c}. The output of each command is followed by a marker line with its exit
+     * code.
+     */
+    private void submitBatch(List<Integer> batch, CmdLine[] cmds, SubmitResult[] results) throws DrmaaException {
+        String marker = "__DRMAA_PBS_QSUB_" + UUID.randomUUID().toString().replace("-", "") + "__";
+        StringBuilder script = new StringBuilder();
+        for (Integer index : batch) {
+            script.append(cmds[index].toCommandLine(OperatingSystemFamily.UNIX, false))
+                    .append(" </dev/null 2>&1; echo \"").append(marker).append(" $?\"\n");
+        }
+        CommandOutput commandOutput;
+        try {
+            commandOutput = this.executeCommand(CmdLine.build("sh", "-c", script.toString()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(batch, 0, results, "Interrupted while submitting jobs");
+            return;
+        } catch (RuntimeIOException e) {
+            fail(batch, 0, results, "Failed to submit jobs: " + e.getMessage());
+            return;
+        }
+        int next = 0;
+        StringBuilder out = new StringBuilder();
+        for (String line : commandOutput.getStdout().split("\r?\n")) {
+            if (next < batch.size() && line.startsWith(marker)) {
+                int exitValue = Integer.parseInt(line.substring(marker.length()).trim());
+                results[batch.get(next++)] = toSubmitResult(new CommandOutput(exitValue, out.toString(), ""));
+                out.setLength(0);
+            } else {
+                out.append(line).append('\n');
+            }
+        }
+        fail(batch, next, results, "Submission did not complete:\n" + out + commandOutput.getStderr());
+    }
+
+    private SubmitResult toSubmitResult(CommandOutput commandOutput) throws DrmaaException {
+        try {
+            String jobId = handleCommandOutput(commandOutput).trim();
+            LOGGER.info("jobId: " + jobId);
+            track(jobId);
+            return SubmitResult.submitted(jobId);
+        } catch (InvalidJobException e) {
+            return SubmitResult.failed(e);
+        }
+    }
+
+    private static void fail(List<Integer> batch, int from, SubmitResult[] results, String message) {
+        for (int i = from; i < batch.size(); i++) {
+            results[batch.get(i)] = SubmitResult.failed(new DrmCommunicationException(message));
+        }
+    }
+
+    /**
+     * Runs a workflow of jobs, where each job is held until the jobs it depends on have completed successfully.
+     *
+     * @param graph job graph
+     * @return the result of each job, by name, in submission order
+     * @throws InvalidJobTemplateException if the dependencies have a cycle
+     * @throws DrmaaException if the session is not active
+     * @see #runJobGraphAsync(JobGraph)
+     */
+    public Map<String, SubmitResult> runJobGraph(JobGraph graph) throws DrmaaException {
+        return await(runJobGraphAsync(graph));
+    }
+
+    /**
+     * Runs a workflow of jobs without blocking the calling thread.
+     *
+     * <p>
+     * The whole graph is submitted by one remote command: a script, written to the standard input of {@code sh}, runs
+     * the qsub commands in topological order, keeps the id returned by each qsub in a shell variable, and gives it to
+     * the qsub of the dependent jobs with {@code -W depend=afterok:<id>}. No job id goes back to the client before the
+     * whole graph is submitted.
+     * </p>
+     *
+     * <p>
+     * A job whose qsub fails is reported with an {@link InvalidJobException} holding the qsub output, and the jobs
+     * depending on it, directly or not, are not submitted and are reported with an {@link InvalidJobException} too.
+     * The other jobs are submitted. If the script could not be run or did not complete, the jobs not reported are
+     * reported with a {@link DrmCommunicationException}, and may or may not have been submitted. Like the jobs of
+     * {@link #runJobs(List)}, they are neither checked by {@link #OPTION_ADMISSION_POLICY} nor attempted again as set
+     * by {@link #OPTION_SUBMIT_RETRIES}.
+     * </p>
+     *
+     * @param graph job graph, read before this method returns
+     * @return a future completed with the result of each job, by name, in submission order
+     */
+    public CompletableFuture<Map<String, SubmitResult>> runJobGraphAsync(JobGraph graph) {
+        final List<String> order;
+        final String marker = "__DRMAA_PBS_QSUB_" + UUID.randomUUID().toString().replace("-", "") + "__";
+        final StringBuilder script = new StringBuilder();
+        try {
+            order = graph.sort();
+            Map<String, Integer> indexes = new HashMap<String, Integer>();
+            for (String name : order) {
+                int index = indexes.size();
+                indexes.put(name, index);
+                JobTemplate jt = graph.getTemplate(name);
+                CmdLine cmd = buildQsubOptions(jt, null, null, null);
+                StringBuilder condition = new StringBuilder();
+                if (!graph.getDependencies(name).isEmpty()) {
+                    StringBuilder depend = new StringBuilder("\"depend=afterok");
+                    for (String dependency : graph.getDependencies(name)) {
+                        String variable = "$j" + indexes.get(dependency);
+                        depend.append(':').append(variable);
+                        condition.append(condition.length() == 0 ? "" : " && ").append("[ -n \"").append(variable)
+                                .append("\" ]");
+                    }
+                    cmd.addRaw("-W");
+                    cmd.addRaw(depend.append('"').toString());
+                }
+                addScript(cmd, jt, null);
+                String qsub = "out=$(" + cmd.toCommandLine(OperatingSystemFamily.UNIX, false)
+                        + " </dev/null 2>&1); rc=$?";
+                if (condition.length() == 0) {
+                    script.append(qsub).append('\n');
+                } else {
+                    script.append("if ").append(condition).append("; then ").append(qsub)
+                            .append("; else out=; rc=skip; fi\n");
+                }
+                script.append("if [ \"$rc\" = 0 ]; then j").append(index).append("=$out; fi\n");
+                script.append("printf '%s\\n%s %s\\n' \"$out\" '").append(marker).append("' \"$rc\"\n");
+            }
+        } catch (DrmaaException e) {
+            return failed(e);
+        }
+        try {
+            return getSubmissionQueue().submit(() -> submitJobGraph(order, script.toString(), marker));
+        } catch (DrmaaException e) {
+            return failed(e);
+        }
+    }
+
+    private Map<String, SubmitResult> submitJobGraph(List<String> order, String script, String marker)
+            throws DrmaaException {
+        Map<String, SubmitResult> results = new LinkedHashMap<String, SubmitResult>();
+        CommandOutput commandOutput = null;
+        String error = null;
+        try {
+            commandOutput = this.executeCommand(CmdLine.build("sh"), script);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error = "Interrupted while submitting jobs";
+        } catch (RuntimeIOException e) {
+            error = "Failed to submit jobs: " + e.getMessage();
+        }
+        if (commandOutput != null) {
+            StringBuilder out = new StringBuilder();
+            for (String line : commandOutput.getStdout().split("\\r?\\n")) {
+                if (results.size() < order.size() && line.startsWith(marker)) {
+                    String name = order.get(results.size());
+                    String rc = line.substring(marker.length()).trim();
+                    if ("skip".equals(rc)) {
+                        results.put(name, SubmitResult.failed(new InvalidJobException(
+                                "Job " + name + " not submitted, a job it depends on was not")));
+                    } else {
+                        results.put(name,
+                                toSubmitResult(new CommandOutput(Integer.parseInt(rc), out.toString(), "")));
+                    }
+                    out.setLength(0);
+                } else {
+                    out.append(line).append('\n');
+                }
+            }
+            error = "Submission did not complete:\n" + out + commandOutput.getStderr();
+        }
+        for (String name : order.subList(results.size(), order.size())) {
+            results.put(name, SubmitResult.failed(new DrmCommunicationException(error)));
+        }
+        return Collections.unmodifiableMap(results);
+    }
+
+    /**
+     * Runs a job whose script is given inline, streamed to the standard input of qsub.
+     *
+     * @param jt job template, whose remote command and arguments are not used
+     * @param script job script
+     * @return the job id
+     * @throws DrmaaException if the job could not be submitted
+     * @see #runJobScriptAsync(JobTemplate, String)
+     */
+    public String runJobScript(JobTemplate jt, String script) throws DrmaaException {
+        return await(runJobScriptAsync(jt, script));
+    }
+
+    /**
+     * Runs a job whose script is given inline without blocking the calling thread.
+     *
+     * <p>
+     * qsub reads the job script from its standard input when it is given none, so the script is written to it over
+     * the channel of the qsub command. Unlike {@link #stageScript(String)} followed by {@link #runJob(JobTemplate)},
+     * a submission is a single round trip, but the script is sent with every job.
+     * </p>
+     *
+     * @param jt job template, read before this method returns; its remote command and arguments are not used
+     * @param script job script
+     * @return a future completed with the job id
+     */
+    public CompletableFuture<String> runJobScriptAsync(JobTemplate jt, final String script) {
+        final CmdLine cmd;
+        try {
+            final String token = newSubmitToken();
+            cmd = buildQsubOptions(jt, null, null, token);
+            final String queue = getQueueName(jt);
+            final Map<String, String> resources = getRequestedResources(jt);
+            return submitAdmittedJobAsync(queue, resources, cmd, script, token);
+        } catch (DrmaaException e) {
+            return failed(e);
+        }
+    }
+
+    /**
+     * Uploads a job script to the PBS head node, unless a script with the same content is already there.
+     *
+     * @param script script content
+     * @return the remote path of the script, to be used as the remote command of a job template
+     * @throws DrmCommunicationException if the script could not be uploaded
+     * @throws NoActiveSessionException if the session is not initialized
+     * @see ScriptStager
+     */
+    public String stageScript(String script) throws DrmaaException {
+        final ScriptStager stager = this.scriptStager;
+        if (stager == null) {
+            throw new NoActiveSessionException("Session not initialized");
+        }
+        try {
+            return stager.stage(script.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new DrmCommunicationException(e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DrmCommunicationException("Interrupted while staging script");
+        }
+    }
+
+    /**
+     * Uploads a job script with {@link #stageScript(String)}, and makes it the remote command of a job template.
+     *
+     * @param jt job template
+     * @param script script content
+     * @throws DrmaaException if the script could not be uploaded
+     */
+    public void stageScript(JobTemplate jt, String script) throws DrmaaException {
+        jt.setRemoteCommand(stageScript(script));
+    }
+
+    /**
+     * @return the script stager of this session, with its hit and upload counters, or {@code null} if the session
+     *         was initialized with its own command executor
+     */
+    public ScriptStager getScriptStager() {
+        return scriptStager;
+    }
+
+    private CmdLine buildQsubCommand(JobTemplate jt) throws DrmaaException {
+        return buildQsubCommand(jt, null, null, null, null);
+    }
+
+    /**
+     * @param jt job template
+     * @param arrayRange indexes of the job array, or {@code null} for a single job
+     * @param index what {@link JobTemplate#PARAMETRIC_INDEX} is replaced with in the command and its arguments, or
+     *            {@code null} to leave it
+     * @param pathIndex what {@link JobTemplate#PARAMETRIC_INDEX} is replaced with in the output and error paths
+     * @param token client token given to the job, or {@code null}
+     * @return the qsub command
+     */
+    private CmdLine buildQsubCommand(JobTemplate jt, String arrayRange, String index, String pathIndex, String token)
+            throws DrmaaException {
+        CmdLine cmd = buildQsubOptions(jt, arrayRange, pathIndex, token);
+        addScript(cmd, jt, index);
+        return cmd;
+    }
+
+    /**
+     * Adds the remote command of a job template, and its arguments, to a qsub command.
+     */
+    private void addScript(CmdLine cmd, JobTemplate jt, String index) throws DrmaaException {
+        addIf(cmd, true, Arrays.asList(replaceIndex(jt.getRemoteCommand(), index)));
+
+        if (jt.getArgs() != null && jt.getArgs().size() > 0) {
+            for (Object arg : jt.getArgs()) {
+                cmd.addArgument(replaceIndex((String) arg, index));
+            }
+        }
+    }
+
+    /**
+     * @return the qsub command with the options of the job template, without the script
+     */
+    private CmdLine buildQsubOptions(JobTemplate jt, String arrayRange, String pathIndex, String token)
+            throws DrmaaException {
+        CmdLine cmd = CmdLine.build(COMMAND_QSUB);
+        addIf(cmd, StringUtils.isNotBlank(jt.getJobName()), Arrays.asList("-N", jt.getJobName()));
+        // addIf(cmd, StringUtils.isNotBlank(jt.getWorkingDirectory()),
+        // Arrays.asList("-N", jt.getWorkingDirectory()));
+        addIf(cmd, StringUtils.isNotBlank(jt.getOutputPath()),
+                Arrays.asList("-o", replaceIndex(jt.getOutputPath(), pathIndex)));
+        addIf(cmd, StringUtils.isNotBlank(jt.getErrorPath()),
+                Arrays.asList("-e", replaceIndex(jt.getErrorPath(), pathIndex)));
+        addIf(cmd, jt.getJoinFiles(), Arrays.asList("-j", "oe"));
+        addIf(cmd, jt.getHardWallclockTimeLimit() != 0,
+                Arrays.asList("-l", "walltime=" + jt.getHardWallclockTimeLimit()));
+        addIf(cmd, arrayRange != null, Arrays.asList(getPbsFlavor().getArrayOption(), arrayRange));
+        LOGGER.finest("native spec " + jt.getNativeSpecification());
+        List<String> nativeSpecification = getNativeSpecification(jt);
+        if (token != null) {
+            // qsub keeps the variables of one -v only, so the token joins the ones of the native specification
+            int variables = nativeSpecification.indexOf("-v") + 1;
+            if (variables > 0 && variables < nativeSpecification.size()) {
+                nativeSpecification = new ArrayList<String>(nativeSpecification);
+                nativeSpecification.set(variables,
+                        nativeSpecification.get(variables) + "," + JobTokenLookup.toVariable(token));
+            } else {
+                add(cmd, Arrays.asList("-v", JobTokenLookup.toVariable(token)));
+            }
+        }
+        add(cmd, nativeSpecification);
+        return cmd;
+    }
+
+    private static String replaceIndex(String value, String index) {
+        return index == null || value == null ? value : value.replace(JobTemplate.PARAMETRIC_INDEX, index);
+    }
+
+    private PbsFlavor getPbsFlavor() {
+        return PbsFlavor.fromString(options.get(OPTION_PBS_FLAVOR));
+    }
+
+    /**
+     * Submits a job through the submission queue once the {@link AdmissionController} admits it, if there is one.
+     * Held submissions do not hold a worker of the submission queue while they wait: the submission goes back to the
+     * queue once admitted. Jobs holding a slot of their queue are watched, so that the slot is given back when they
+     * finish.
+     *
+     * <p>
+     * A held submission is admitted on whichever thread gives a slot back, which may be a worker of the submission
+     * queue. It goes back to the queue from an engine thread, as a worker waiting for room in its own full queue would
+     * never get it.
+     * </p>
+     */
+    private CompletableFuture<String> submitAdmittedJobAsync(String queue, Map<String, String> resources,
+            CmdLine cmd, String script, String token) throws NoActiveSessionException {
+        final SubmissionQueue submitter = getSubmissionQueue();
+        final ExecutionEngine engine = getExecutionEngine();
+        final AdmissionController admission = this.admissionController;
+        if (admission == null) {
+            return submitter.submit(() -> submitJob(cmd, script, token));
+        }
+        return submitter.submit(() -> admission.admitAsync(queue, resources))
+                .thenCompose(admitted -> admitted)
+                .thenCompose(ticket -> engine.submit(() -> submitter.submit(() -> {
+                    String jobId = submitJob(cmd, script, token);
+                    ticket.submitted(jobId);
+                    if (ticket.getQueue() != null) {
+                        getJobPoller().watch(Collections.singletonList(jobId));
+                    }
+                    return jobId;
+                })).thenCompose(submitted -> submitted)
+                        // gives the slot back if the job was not submitted; does nothing once it was
+                        .whenComplete((jobId, t) -> ticket.cancel()));
+    }
+
+    /**
+     * @return the queue of a job template, given with {@code -q} or {@link #OPTION_DEFAULT_QUEUE}, or {@code null}
+     */
+    private String getQueueName(JobTemplate jt) throws DrmaaException {
+        String queue = AdmissionController.queueOf(getNativeSpecification(jt));
+        return queue != null ? queue : StringUtils.trimToNull(options.get(OPTION_DEFAULT_QUEUE));
+    }
+
+    /**
+     * @return the resources requested by a job template, with {@code -l} or its hard wall clock time limit
+     */
+    private Map<String, String> getRequestedResources(JobTemplate jt) throws DrmaaException {
+        Map<String, String> resources = AdmissionController.resourcesOf(getNativeSpecification(jt));
+        if (jt.getHardWallclockTimeLimit() != 0) {
+            resources.put("walltime", Long.toString(jt.getHardWallclockTimeLimit()));
+        }
+        return resources;
+    }
+
+    private static List<String> getNativeSpecification(JobTemplate jt) throws DrmaaException {
+        return StringUtils.isBlank(jt.getNativeSpecification()) ? Collections.<String> emptyList()
+                : Arrays.asList(jt.getNativeSpecification().split(" "));
+    }
+
+    /**
+     * @return a new client token for a job, or {@code null} if submissions are not retried
+     */
+    private String newSubmitToken() {
+        return submitRetryPolicy.getMaxAttempts() > 1 ? UUID.randomUUID().toString() : null;
+    }
+
+    /**
+     * Submits a job, which starts being tracked.
+     *
+     * @param cmd qsub command
+     * @param script job script written to the standard input of qsub, or {@code null} if the command names the script
+     * @param token client token given to the job by the command, or {@code null} to submit the job once
+     * @return the job id
+     * @see #qsub(CmdLine, String, String)
+     */
+    private String submitJob(CmdLine cmd, String script, String token) throws DrmaaException {
+        String jobId = qsub(cmd, script, token);
+        LOGGER.info("jobId: " + jobId);
+        track(jobId);
+        return jobId;
+    }
+
+    /**
+     * Runs a qsub command, attempting it again after transient failures as set by {@link #OPTION_SUBMIT_RETRIES}.
+     * After a failure that may have happened once the server received the job, the job is searched by its client
+     * token, and only submitted again if the server does not have it. Failures where the job was never sent, as no
+     * connection could be opened, or qsub could not connect to the server, are attempted again without a search.
+     *
+     * @param cmd qsub command
+     * @param script job script written to the standard input of qsub, or {@code null} if the command names the script
+     * @param token client token given to the job by the command, or {@code null} to submit the job once
+     * @return the id of the job, or of the job array, not tracked yet
+     */
+    private String qsub(CmdLine cmd, String script, String token) throws DrmaaException {
+        if (token == null) {
+            CommandOutput commandOutput;
+            try {
+                commandOutput = script == null ? this.executeCommand(cmd) : this.executeCommand(cmd, script);
+            } catch (InterruptedException e) {
+                throw new InvalidJobException(e.getMessage());
+            }
+            LOGGER.finest("qsub exit value: " + commandOutput.getExitValue());
+            return handleCommandOutput(commandOutput).trim();
+        }
+        final RetryPolicy policy = this.submitRetryPolicy;
+        boolean unknownOutcome = false;
+        for (int attempts = 1;; attempts++) {
+            String failure;
+            try {
+                if (unknownOutcome) {
+                    String jobId = getJobTokenLookup().find(token);
+                    if (jobId != null) {
+                        LOGGER.info("Found job " + jobId + " submitted with token " + token);
+                        return jobId;
+                    }
+                    unknownOutcome = false;
+                }
+                CommandOutput commandOutput = script == null ? this.executeCommand(cmd)
+                        : this.executeCommand(cmd, script);
+                if (isUnsentFailure(commandOutput)) {
+                    failure = commandOutput.getStderr().trim();
+                } else if (isTransientFailure(commandOutput)) {
+                    failure = commandOutput.getStderr().trim();
+                    unknownOutcome = true;
+                } else {
+                    LOGGER.finest("qsub exit value: " + commandOutput.getExitValue());
+                    return handleCommandOutput(commandOutput).trim();
+                }
+            } catch (ConnectionUnavailableException e) {
+                // neither qsub nor the search ran; a search still to be done is done on the next attempt
+                failure = e.getMessage();
+            } catch (RuntimeIOException | DrmCommunicationException e) {
+                failure = e.getMessage();
+                unknownOutcome = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InvalidJobException(e.getMessage());
+            }
+            if (!policy.canRetry(attempts)) {
+                throw new DrmCommunicationException("Failed to submit job with token " + token + " after " + attempts
+                        + " attempts: " + failure);
+            }
+            long delay = policy.nextDelay(attempts);
+            LOGGER.log(Level.WARNING, "Attempt " + attempts + " to submit job with token " + token + " failed, trying "
+                    + "again in " + delay + " ms: " + failure);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InvalidJobException(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if qsub failed because it lost the server, which may have received the job
+     */
+    private static boolean isTransientFailure(CommandOutput commandOutput) {
+        return isFailure(commandOutput, TRANSIENT_QSUB_ERRORS);
+    }
+
+    /**
+     * @return {@code true} if qsub failed because it could not connect to the server, which did not receive the job
+     */
+    private static boolean isUnsentFailure(CommandOutput commandOutput) {
+        return isFailure(commandOutput, UNSENT_QSUB_ERRORS);
+    }
+
+    private static boolean isFailure(CommandOutput commandOutput, String[] errors) {
+        if (commandOutput.getExitValue() == 0 || StringUtils.isNotBlank(commandOutput.getStdout())) {
+            return false;
+        }
+        for (String error : errors) {
+            if (StringUtils.contains(commandOutput.getStderr(), error)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds a submitted job to the jobs of this session.
+     *
+     * @param jobId job id
+     */
+    private void track(String jobId) throws DrmaaException {
+        getStatusCache().track(jobId);
+        if (getJobStateDispatcher().isListening(jobId)) {
+            getJobPoller().watch(Collections.singletonList(jobId));
+        }
+    }
+
+    /**
+     * Stops a job, by calling qdel
+     *
+     * @param jobId job Id
+     */
+    public void stopJob(String jobId) throws DrmaaException {
+        CmdLine cmd = CmdLine.build(COMMAND_QDEL, jobId);
+
+        // inner class
+        CommandOutput commandOutput;
+        try {
+            commandOutput = this.executeCommand(cmd);
+        } catch (InterruptedException e) {
+            throw new InvalidJobException(e.getMessage());
+        }
+
+        /*String out = */handleCommandOutput(commandOutput);
+        LOGGER.finest("qdel exit value: " + commandOutput.getExitValue());
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public List runBulkJobs(JobTemplate jt, int start, int end, int incr) throws DrmaaException {
+        return await(runBulkJobsAsync(jt, start, end, incr));
+    }
+
+    /**
+     * Runs bulk jobs without blocking the calling thread.
+     *
+     * <p>
+     * The jobs are submitted as one PBS job array, with a single qsub, and the ids of its subjobs are derived from the
+     * id of the array, such as {@code 123[4].server} for the index 4 of {@code 123[].server}. The job script is a
+     * wrapper written to the standard input of qsub, which runs the command with its arguments, with
+     * {@link JobTemplate#PARAMETRIC_INDEX} replaced with the value of the environment variable holding the subjob
+     * index, read when the subjob runs. In the output and error paths, {@link JobTemplate#PARAMETRIC_INDEX} is
+     * replaced with the placeholder of the {@link PbsFlavor} for it. A range of a single index is submitted as a
+     * regular job, with the index itself in place of {@link JobTemplate#PARAMETRIC_INDEX}.
+     * </p>
+     *
+     * <p>
+     * The qsub is attempted again as set by {@link #OPTION_SUBMIT_RETRIES}. A regular job is checked by
+     * {@link #OPTION_ADMISSION_POLICY}, but a job array is not.
+     * </p>
+     *
+     * @param jt job template, read before this method returns
+     * @param start first index, one or more
+     * @param end last index, inclusive
+     * @param incr step between two indexes, one or more
+     * @return a future completed with the ids of the jobs, in index order, or exceptionally with an
+     *         {@link InvalidJobTemplateException} if the range is invalid
+     * @see #runBulkJobs(JobTemplate, int, int, int)
+     */
+    public CompletableFuture<List<String>> runBulkJobsAsync(JobTemplate jt, final int start, final int end,
+            final int incr) {
+        if (start < 1 || end < start || incr < 1) {
+            return failed(new InvalidJobTemplateException(
+                    "Invalid bulk job range, start: " + start + ", end: " + end + ", incr: " + incr));
+        }
+        final CmdLine cmd;
+        try {
+            final String token = newSubmitToken();
+            if (end - start < incr) {
+                String index = Integer.toString(start);
+                cmd = buildQsubCommand(jt, null, index, index, token);
+                return submitAdmittedJobAsync(getQueueName(jt), getRequestedResources(jt), cmd, null, token)
+                        .thenApply(Collections::singletonList);
+            }
+            PbsFlavor flavor = getPbsFlavor();
+            cmd = buildQsubOptions(jt, flavor.toArrayRange(start, end, incr), flavor.getArrayIndexPathPlaceholder(),
+                    token);
+            final String script = buildArrayJobScript(jt.getRemoteCommand(), jt.getArgs(),
+                    flavor.getArrayIndexVariable());
+            return getSubmissionQueue().submit(() -> submitJobArray(cmd, script, token, start, end, incr));
+        } catch (DrmaaException e) {
+            return failed(e);
+        }
+    }
+
+    /**
+     * Builds the script of a job array, which runs a command with {@link JobTemplate#PARAMETRIC_INDEX} replaced in it
+     * and in its arguments with the value of an environment variable. Every other character is quoted, so that the
+     * arguments reach the command as they are. The script asks to be run by {@code /bin/sh}, as the shell of a job is
+     * otherwise the login shell of the user.
+     *
+     * @param command remote command
+     * @param args arguments, or {@code null}
+     * @param indexVariable environment variable holding the subjob index
+     * @return the job script
+     */
+    static String buildArrayJobScript(String command, List<?> args, String indexVariable) {
+        StringBuilder script = new StringBuilder("#!/bin/sh\n#PBS -S /bin/sh\nexec ");
+        appendShellWord(script, command, indexVariable);
+        if (args != null) {
+            for (Object arg : args) {
+                appendShellWord(script.append(' '), (String) arg, indexVariable);
+            }
+        }
+        return script.append('\n').toString();
+    }
+
+    private static void appendShellWord(StringBuilder script, String value, String indexVariable) {
+        String[] parts = StringUtils.splitByWholeSeparatorPreserveAllTokens(value, JobTemplate.PARAMETRIC_INDEX);
+        if (parts == null || parts.length == 0) {
+            script.append("''");
+            return;
+        }
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) {
+                script.append("\"${").append(indexVariable).append("}\"");
+            }
+            if (!parts[i].isEmpty() || parts.length == 1) {
+                script.append('\'').append(parts[i].replace("'", "'\\''")).append('\'');
             }
         }
     }
 
-    /*
-     * (non-Javadoc)
+    private List<String> submitJobArray(CmdLine cmd, String script, String token, int start, int end, int incr)
+            throws DrmaaException {
+        String arrayId = qsub(cmd, script, token);
+        LOGGER.info("array jobId: " + arrayId);
+        int brackets = arrayId.indexOf("[]");
+        if (brackets < 0) {
+            throw new InvalidJobException("Not a job array id: " + arrayId);
+        }
+        String prefix = arrayId.substring(0, brackets + 1);
+        String suffix = arrayId.substring(brackets + 1);
+        List<String> jobIds = new ArrayList<String>((end - start) / incr + 1);
+        for (long index = start; index <= end; index += incr) {
+            String jobId = prefix + index + suffix;
+            track(jobId);
+            jobIds.add(jobId);
+        }
+        return jobIds;
+    }
+
+    /**
+     * Controls a job with {@code qsig}, {@code qhold}, {@code qrls} or {@code qdel}.
      *
-     * @see org.ggf.drmaa.Session#exit()
+     * @param jobId job id, or {@link Session#JOB_IDS_SESSION_ALL} for all the unfinished jobs of this session
+     * @param action one of {@link Session#SUSPEND}, {@link Session#RESUME}, {@link Session#HOLD},
+     *            {@link Session#RELEASE} or {@link Session#TERMINATE}
+     * @see #control(Collection, int)
      */
     @Override
-    public void exit() throws DrmaaException {
-        LOGGER.log(Level.FINEST, "Session exit()");
-        // Not implemented
+    public void control(String jobId, int action) throws DrmaaException {
+        await(controlAsync(jobId, action));
     }
 
-    /*
-     * (non-Javadoc)
+    /**
+     * Controls a job without blocking the calling thread.
      *
-     * @see org.ggf.drmaa.Session#createJobTemplate()
+     * @param jobId job id, or {@link Session#JOB_IDS_SESSION_ALL} for all the unfinished jobs of this session
+     * @param action one of the {@link Session} actions
+     * @return a future completed once the action has been performed
+     * @see #control(String, int)
      */
-    @Override
-    public JobTemplate createJobTemplate() throws DrmaaException {
-        LOGGER.log(Level.FINEST, "Creating new job template");
-        return new JobTemplateImpl();
+    public CompletableFuture<Void> controlAsync(String jobId, int action) {
+        return controlAsync(Collections.singletonList(jobId), action);
     }
 
-    /*
-     * (non-Javadoc)
+    /**
+     * Controls several jobs, with as few commands as possible.
      *
-     * @see org.ggf.drmaa.Session#deleteJobTemplate(org.ggf.drmaa.JobTemplate)
+     * @param jobIds job ids, which may include {@link Session#JOB_IDS_SESSION_ALL} for all the unfinished jobs of
+     *            this session
+     * @param action one of the {@link Session} actions
+     * @throws DrmaaException if the action is unknown, or failed for one of the jobs
+     * @see #controlAsync(Collection, int)
      */
-    @Override
-    public void deleteJobTemplate(JobTemplate jt) throws DrmaaException {
-        LOGGER.log(Level.FINEST, "Delete job template");
-        // Not implemented
+    public void control(Collection<String> jobIds, int action) throws DrmaaException {
+        await(controlAsync(jobIds, action));
     }
 
-    private void addIf(CmdLine cmd, Boolean test, List<String> args) {
-        if (test) {
-            add(cmd, args);
+    /**
+     * Controls several jobs without blocking the calling thread.
+     *
+     * <p>
+     * Each command is given as many job ids as fit in {@link #OPTION_CONTROL_MAX_COMMAND_LENGTH}, and the commands run
+     * in parallel, over the connections of the session. When {@link Session#JOB_IDS_SESSION_ALL} is given, jobs that
+     * finished before their command ran are not reported as failures.
+     * </p>
+     *
+     * @param jobIds job ids, which may include {@link Session#JOB_IDS_SESSION_ALL} for all the unfinished jobs of
+     *            this session
+     * @param action one of the {@link Session} actions
+     * @return a future completed once the action has been performed on every job
+     */
+    public CompletableFuture<Void> controlAsync(Collection<String> jobIds, int action) {
+        final ExecutionEngine engine;
+        final StatusCache cache;
+        final TerminalJobCache terminalCache;
+        final List<CmdLine> cmds;
+        final Set<String> ids = new LinkedHashSet<String>();
+        boolean sessionAll = false;
+        try {
+            engine = getExecutionEngine();
+            cache = getStatusCache();
+            terminalCache = getTerminalJobCache();
+            for (String jobId : jobIds) {
+                if (JOB_IDS_SESSION_ALL.equals(jobId)) {
+                    sessionAll = true;
+                    for (String trackedId : cache.getUnfinishedJobIds()) {
+                        if (terminalCache.get(trackedId) == null) {
+                            ids.add(trackedId);
+                        }
+                    }
+                } else {
+                    ids.add(jobId);
+                }
+            }
+            cmds = buildControlCommands(getControlCommand(action), ids,
+                    getIntOption(OPTION_CONTROL_MAX_COMMAND_LENGTH, 65536));
+        } catch (DrmaaException e) {
+            return failed(e);
+        }
+        LOGGER.log(Level.FINEST, "Control " + ids.size() + " jobs with " + cmds.size() + " commands");
+        final boolean ignoreFinished = sessionAll;
+        List<CompletableFuture<Void>> controls = new ArrayList<CompletableFuture<Void>>(cmds.size());
+        for (final CmdLine cmd : cmds) {
+            controls.add(engine.submit(() -> {
+                runControlCommand(cmd, ignoreFinished);
+                return null;
+            }));
         }
+        return CompletableFuture.allOf(controls.toArray(new CompletableFuture<?>[controls.size()]))
+                .whenComplete((ignored, error) -> {
+                    for (String jobId : ids) {
+                        cache.invalidate(jobId);
+                    }
+                });
     }
 
-    private void add(CmdLine cmd, List<String> args) {
-        for (String arg : args) {
-            cmd.addArgument(arg);
+    /**
+     * @param action one of the {@link Session} actions
+     * @return the command performing the action, without the job ids
+     * @throws InvalidJobException if the action is unknown
+     */
+    private static String[] getControlCommand(int action) throws DrmaaException {
+        switch (action) {
+        case Session.SUSPEND:
+            return new String[] { COMMAND_QSIG, "-s", "suspend" };
+        case Session.RESUME:
+            return new String[] { COMMAND_QSIG, "-s", "resume" };
+        case Session.HOLD:
+            return new String[] { COMMAND_QHOLD };
+        case Session.RELEASE:
+            return new String[] { COMMAND_QRLS };
+        case Session.TERMINATE:
+            return new String[] { COMMAND_QDEL };
+        default:
+            throw new InvalidJobException("Unknown DRMAA action " + action);
         }
     }
 
     /**
-     * Runs a job, by calling qsub using the job template settings, and
-     * connection info provided when the session was created.
+     * Splits job ids among commands whose arguments do not exceed a length.
      *
-     * @param jt job template
+     * @param command command, without the job ids
+     * @param jobIds job ids
+     * @param maxLength maximum length of the arguments of a command, including the command itself. A command is given
+     *            at least one job id
+     * @return the commands, empty if there is no job id
      */
-    @Override
-    public String runJob(JobTemplate jt) throws DrmaaException {
-        CmdLine cmd = CmdLine.build(COMMAND_QSUB);
-        addIf(cmd, StringUtils.isNotBlank(jt.getJobName()), Arrays.asList("-N", jt.getJobName()));
-        // addIf(cmd, StringUtils.isNotBlank(jt.getWorkingDirectory()),
-        // Arrays.asList("-N", jt.getWorkingDirectory()));
-        addIf(cmd, StringUtils.isNotBlank(jt.getOutputPath()), Arrays.asList("-o", jt.getOutputPath()));
-        addIf(cmd, StringUtils.isNotBlank(jt.getErrorPath()), Arrays.asList("-e", jt.getErrorPath()));
-        addIf(cmd, jt.getJoinFiles(), Arrays.asList("-j", "oe"));
-        addIf(cmd, jt.getHardWallclockTimeLimit() != 0,
-                Arrays.asList("-l", "walltime=" + jt.getHardWallclockTimeLimit()));
-        LOGGER.finest("native spec " + jt.getNativeSpecification());
-        if (StringUtils.isNotBlank(jt.getNativeSpecification())) {
-            add(cmd, Arrays.asList(jt.getNativeSpecification().split(" ")));
+    static List<CmdLine> buildControlCommands(String[] command, Collection<String> jobIds, int maxLength) {
+        int commandLength = command.length - 1;
+        for (String arg : command) {
+            commandLength += arg.length();
         }
-
-        addIf(cmd, true, Arrays.asList(jt.getRemoteCommand()));
-
-        if (jt.getArgs() != null && jt.getArgs().size() > 0) {
-            for (Object arg : jt.getArgs()) {
-                cmd.addArgument((String) arg);
+        List<CmdLine> cmds = new ArrayList<CmdLine>();
+        CmdLine cmd = null;
+        int length = 0;
+        for (String jobId : jobIds) {
+            if (cmd != null && length + jobId.length() + 1 > maxLength) {
+                cmds.add(cmd);
+                cmd = null;
+            }
+            if (cmd == null) {
+                cmd = CmdLine.build(command);
+                length = commandLength;
             }
+            cmd.addArgument(jobId);
+            length += jobId.length() + 1;
         }
-
-        // inner class
-        CommandOutput commandOutput;
-        try {
-            commandOutput = this.executeCommand(cmd);
-        } catch (InterruptedException e) {
-            throw new InvalidJobException(e.getMessage());
+        if (cmd != null) {
+            cmds.add(cmd);
         }
-        LOGGER.finest("qsub exit value: " + commandOutput.getExitValue());
-
-        String out = handleCommandOutput(commandOutput);
-
-        String jobId = out;
-        LOGGER.info("jobId: " + jobId);
-        return jobId.trim();
+        return cmds;
     }
 
     /**
-     * Stops a job, by calling qdel
-     *
-     * @param jobId job Id
+     * @param cmd control command
+     * @param ignoreFinished whether the command may fail for jobs that have finished
      */
-    public void stopJob(String jobId) throws DrmaaException {
-        CmdLine cmd = CmdLine.build(COMMAND_QDEL, jobId);
-
-        // inner class
+    private void runControlCommand(CmdLine cmd, boolean ignoreFinished) throws DrmaaException {
         CommandOutput commandOutput;
         try {
             commandOutput = this.executeCommand(cmd);
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new InvalidJobException(e.getMessage());
         }
-
-        /*String out = */handleCommandOutput(commandOutput);
-        LOGGER.finest("qdel exit value: " + commandOutput.getExitValue());
-    }
-
-    @Override
-    @SuppressWarnings("rawtypes")
-    public List runBulkJobs(JobTemplate jt, int start, int end, int incr) throws DrmaaException {
-        // TODO Auto-generated method stub
-        return null;
+        LOGGER.finest("control exit value: " + commandOutput.getExitValue());
+        if (ignoreFinished && commandOutput.getExitValue() != 0 && isFinishedJobsError(commandOutput.getStderr())) {
+            LOGGER.log(Level.FINE, "Jobs finished before being controlled: " + commandOutput.getStderr());
+            return;
+        }
+        handleCommandOutput(commandOutput);
     }
 
-    @Override
-    public void control(String jobId, int action) throws DrmaaException {
-        LOGGER.log(Level.FINEST, "Control");
-        // TODO implement other actions
-        switch (action) {
-        // case Session.SUSPEND: suspendJob(jobId); break;
-        // case Session.RESUME: resumeJob(jobId); break;
-        // case Session.HOLD: holdJob(jobId); break;
-        // case Session.RELEASE: releaseJob(jobId); break;
-        case Session.TERMINATE:
-            stopJob(jobId);
-            break;
-        default:
-            throw new InvalidJobException("Drmma Action not implemented yet" + action);
+    /**
+     * @return {@code true} if every line of an error output is about a job that has finished
+     */
+    private static boolean isFinishedJobsError(String stderr) {
+        for (String line : StringUtils.split(StringUtils.defaultString(stderr), '\n')) {
+            if (StringUtils.isBlank(line)) {
+                continue;
+            }
+            boolean finished = false;
+            for (String error : FINISHED_JOB_ERRORS) {
+                finished |= line.contains(error);
+            }
+            if (!finished) {
+                return false;
+            }
         }
+        return true;
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * The jobs are checked by the session poller, which queries all of them, and any other job being waited on,
+     * with one qstat per batch of job ids and per poll interval.
+     * </p>
+     */
     @Override
     public void synchronize(@SuppressWarnings("rawtypes") List jobIds, long timeout, boolean dispose)
             throws DrmaaException {
         LOGGER.log(Level.FINEST, "Synchronize");
-        // Not implemented
+        await(synchronizeAsync(jobIds, timeout, dispose));
+    }
+
+    /**
+     * Waits for several jobs to finish without blocking the calling thread.
+     *
+     * @param jobIds job ids, or a list containing {@link Session#JOB_IDS_SESSION_ALL} for all the jobs of this
+     *            session
+     * @param timeout seconds to wait, or {@link Session#TIMEOUT_WAIT_FOREVER}
+     * @param dispose whether to drop the status of the jobs once they have all finished
+     * @return a future completed once all the jobs have finished, or exceptionally with an
+     *         {@link ExitTimeoutException} if they have not finished in time
+     * @see #synchronize(List, long, boolean)
+     */
+    public CompletableFuture<Void> synchronizeAsync(List<?> jobIds, long timeout, boolean dispose) {
+        final long deadline = toDeadline(timeout);
+        final StatusCache cache;
+        final JobPoller poller;
+        final TerminalJobCache terminalCache;
+        try {
+            cache = getStatusCache();
+            poller = getJobPoller();
+            terminalCache = getTerminalJobCache();
+        } catch (DrmaaException e) {
+            return failed(e);
+        }
+        final Set<String> ids = new LinkedHashSet<String>();
+        for (Object jobId : jobIds) {
+            if (JOB_IDS_SESSION_ALL.equals(jobId)) {
+                ids.addAll(cache.getTrackedJobIds());
+            } else {
+                ids.add((String) jobId);
+            }
+        }
+        List<String> unfinished = new ArrayList<String>(ids.size());
+        for (String jobId : ids) {
+            if (terminalCache.get(jobId) == null) {
+                unfinished.add(jobId);
+            }
+        }
+        List<CompletableFuture<Job>> waits = poller.awaitAll(unfinished, deadline);
+        return CompletableFuture.allOf(waits.toArray(new CompletableFuture<?>[waits.size()])).thenRun(() -> {
+            if (dispose) {
+                for (String jobId : ids) {
+                    dispose(jobId, cache, terminalCache);
+                }
+            }
+        });
     }
 
     private JobInfo jobToJobInfo(Job job) {
-        return new JobInfoImpl(job.getId(), job.getResourcesUsed(), job.getState().equals("F") || job.getState().equals("X"),
+        return new JobInfoImpl(job.getId(), job.getResourcesUsed(), isFinished(job),
                 job.getExitStatus(), "", // TODO
                 false, // TODO
                 false, // TODO
@@ -288,49 +1750,85 @@ public class SessionImpl implements Session {
     @Override
     public JobInfo wait(String jobId, long timeout) throws DrmaaException {
         LOGGER.log(Level.FINEST, "wait");
-        JobInfo jobInfo = jobToJobInfo(parseJobs(jobId).get(0));
+        return await(waitAsync(jobId, timeout));
+    }
 
-        while (!jobInfo.hasExited()) {
-            try {
-                Thread.sleep(2000); // 1000 milliseconds is one second.
-            } catch (InterruptedException ex) {
-                Thread.currentThread().interrupt();
+    /**
+     * Waits for a job to finish without blocking the calling thread. The job status is checked by the session poller,
+     * together with the other jobs being waited on, and no thread is held between two checks.
+     *
+     * <p>
+     * As in DRMAA, the information of a finished job is reaped by the wait that returns it: the session forgets the
+     * job, and a later wait only finds it if the server still reports it.
+     * </p>
+     *
+     * @param jobId job id
+     * @param timeout seconds to wait, or {@link Session#TIMEOUT_WAIT_FOREVER}
+     * @return a future completed with the job information once the job has finished, or exceptionally with an
+     *         {@link ExitTimeoutException} if it has not finished in time
+     * @see #wait(String, long)
+     */
+    public CompletableFuture<JobInfo> waitAsync(String jobId, long timeout) {
+        final long deadline = toDeadline(timeout);
+        final StatusCache cache;
+        final TerminalJobCache terminalCache;
+        try {
+            cache = getStatusCache();
+            terminalCache = getTerminalJobCache();
+            JobInfo finished = terminalCache.get(jobId);
+            if (finished != null) {
+                dispose(jobId, cache, terminalCache);
+                return CompletableFuture.completedFuture(finished);
             }
-            jobInfo = jobToJobInfo(parseJobs(jobId).get(0));
+            return getJobPoller().await(jobId, deadline).thenApply(job -> {
+                // the status cache only keeps the state and exit status of a finished job, the rest is kept here
+                JobInfo info = terminalCache.get(jobId);
+                if (info == null) {
+                    info = jobToJobInfo(job);
+                }
+                dispose(jobId, cache, terminalCache);
+                return info;
+            });
+        } catch (DrmaaException e) {
+            return failed(e);
         }
-        return jobInfo;
     }
 
-    private List<Job> parseJobs(String jobId) throws DrmaaException {
-        CmdLine cmd = CmdLine.build(COMMAND_QSTAT, "-fx", jobId);
-
-        // inner class
-        CommandOutput commandOuptut;
-        try {
-            commandOuptut = this.executeCommand(cmd);
-        } catch (InterruptedException e) {
-            throw new InvalidJobException(e.getMessage());
-        }
-        LOGGER.finest("qstat exit value: " + commandOuptut.getExitValue());
+    /**
+     * Forgets the status and the information of a finished job.
+     */
+    private static void dispose(String jobId, StatusCache cache, TerminalJobCache terminalCache) {
+        cache.forget(jobId);
+        terminalCache.remove(jobId);
+    }
 
-        String out = handleCommandOutput(commandOuptut);
+    /**
+     * @param timeout seconds to wait, or {@link Session#TIMEOUT_WAIT_FOREVER}
+     * @return milliseconds since the epoch after which a wait fails
+     */
+    private static long toDeadline(long timeout) {
+        return timeout == TIMEOUT_WAIT_FOREVER ? Long.MAX_VALUE
+                : System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(Math.max(0L, timeout));
+    }
 
-        if (commandOuptut.getExitValue() != 0) {
-            throw new InvalidJobException("Failed to retrieve job program status for job id " + jobId);
-        }
+    private static boolean isFinished(Job job) {
+        return StatusCache.isFinished(job);
+    }
 
-        List<Job> jobs;
+    /**
+     * Gets the status of a job from the session status cache, which refreshes all the session jobs at once when the
+     * cached status is too old.
+     *
+     * @param jobId job id
+     * @return the job
+     * @throws InvalidJobException if the job is unknown, or its status could not be read
+     */
+    private Job getJob(String jobId) throws DrmaaException {
         try {
-            jobs = QSTAT_JOBS_PARSER.parse(out);
-        } catch (ParseException e) {
-            throw new InvalidJobException("Failed to parse qstat output: " + e.getMessage());
+            return getStatusCache().get(jobId);
+        } catch (InterruptedException e) {
+            throw new InvalidJobException(e.getMessage());
         }
-
-        if (jobs.size() < 1)
-            throw new InvalidJobException("Couldn't locate job " + jobId);
-
-        return jobs;
-
     }
 
     /*
@@ -340,7 +1838,29 @@ public class SessionImpl implements Session {
      */
     @Override
     public int getJobProgramStatus(String jobId) throws DrmaaException {
-        Job job = parseJobs(jobId).get(0);
+        return await(getJobProgramStatusAsync(jobId));
+    }
+
+    /**
+     * Gets the status of a job without blocking the calling thread.
+     *
+     * @param jobId job id
+     * @return a future completed with the program status
+     * @see #getJobProgramStatus(String)
+     */
+    public CompletableFuture<Integer> getJobProgramStatusAsync(String jobId) {
+        try {
+            JobInfo finished = getTerminalJobCache().get(jobId);
+            if (finished != null) {
+                return CompletableFuture.completedFuture(finished.getExitStatus() == 0 ? DONE : FAILED);
+            }
+            return getExecutionEngine().submit(() -> toProgramStatus(getJob(jobId)));
+        } catch (DrmaaException e) {
+            return failed(e);
+        }
+    }
+
+    private int toProgramStatus(Job job) {
 
         /**
          * PBS Professional S The job's state:
@@ -441,105 +1961,228 @@ public class SessionImpl implements Session {
         return getDrmSystem();
     }
 
-    /*
-     * ------------------------------ Utility methods
-     * ------------------------------
+    /**
+     * Registers a listener told about the state changes of all the jobs of this session, including the jobs submitted
+     * after it was registered.
+     *
+     * @param listener listener
+     * @throws NoActiveSessionException if the session is not initialized
      */
-    public CommandOutput executeCommand(CmdLine cmd) throws InterruptedException {
-        final OverthereConnection connection = Overthere.getConnection(this.getContact(), this.connectionOptions);
+    public void addJobStateListener(JobStateListener listener) throws NoActiveSessionException {
+        getJobStateDispatcher().addListener(listener, null);
+        getJobPoller().watch(getStatusCache().getUnfinishedJobIds());
+    }
 
-        OverthereProcess process = null;
-        BufferedReader stdout = null;
-        BufferedReader stderr = null;
-        int exitValue = -1;
-        try {
-            // LOGGER.info("Executing " + cmd.toString()) ;
-            process = connection.startProcess(cmd);
-            stdout = new BufferedReader(new InputStreamReader(process.getStdout()));
-            stderr = new BufferedReader(new InputStreamReader(process.getStderr()));
-
-            if (process != null) {
-                try {
-                    exitValue = process.waitFor();
-                } catch (InterruptedException e) {
-                    LOGGER.severe(e.getMessage());
-                    throw e;
-                }
+    /**
+     * Registers a listener told about the state changes of a job.
+     *
+     * @param listener listener
+     * @param jobId job id
+     * @throws NoActiveSessionException if the session is not initialized
+     */
+    public void addJobStateListener(JobStateListener listener, String jobId) throws NoActiveSessionException {
+        addJobStateListener(listener, Collections.singletonList(jobId));
+    }
+
+    /**
+     * Registers a listener told about the state changes of some jobs.
+     *
+     * <p>
+     * The states are read by the session status refresh, the same that serves {@link #wait(String, long)}, so any
+     * number of listeners share the same qstat commands. Listeners are called asynchronously, on dedicated threads; see
+     * {@link #OPTION_LISTENER_QUEUE_SIZE} for what happens to a listener too slow to keep up.
+     * </p>
+     *
+     * @param listener listener
+     * @param jobIds job ids
+     * @throws NoActiveSessionException if the session is not initialized
+     */
+    public void addJobStateListener(JobStateListener listener, Collection<String> jobIds)
+            throws NoActiveSessionException {
+        getJobStateDispatcher().addListener(listener, jobIds);
+        getJobPoller().watch(jobIds);
+    }
+
+    /**
+     * Unregisters a listener, for all the jobs it was registered for.
+     *
+     * @param listener listener
+     * @return {@code true} if the listener was registered
+     * @throws NoActiveSessionException if the session is not initialized
+     */
+    public boolean removeJobStateListener(JobStateListener listener) throws NoActiveSessionException {
+        final JobStateDispatcher dispatcher = getJobStateDispatcher();
+        if (!dispatcher.removeListener(listener)) {
+            return false;
+        }
+        final JobPoller poller = getJobPoller();
+        List<String> unwatched = new ArrayList<String>();
+        for (String jobId : poller.getWatchedJobIds()) {
+            if (!dispatcher.isListening(jobId)) {
+                unwatched.add(jobId);
             }
-        } finally {
-            connection.close();
         }
-
-        return new CommandOutput(exitValue, stdout, stderr);
+        poller.unwatch(unwatched);
+        return true;
     }
 
-    private class CommandOutput {
+    /**
+     * Gets a Reactive Streams publisher of the state changes of all the jobs of this session. Subscribers receive
+     * events as they request them; the events of a job not requested yet are conflated into one, from the last state
+     * the subscriber saw to the latest one. Subscribers are completed when the session exits.
+     *
+     * @return the job event publisher of this session
+     * @throws NoActiveSessionException if the session is not initialized
+     */
+    public synchronized Publisher<JobStateEvent> getJobEventPublisher() throws NoActiveSessionException {
+        if (jobEventPublisher == null) {
+            JobEventPublisher publisher = new JobEventPublisher(getJobStateDispatcher().getExecutor());
+            addJobStateListener(publisher);
+            jobEventPublisher = publisher;
+        }
+        return jobEventPublisher;
+    }
 
-        private final int exitValue;
-        private final BufferedReader stdout;
-        private final BufferedReader stderr;
+    /*
+     * ------------------------------ Utility methods
+     * ------------------------------
+     */
+    /**
+     * @return the status cache of this session, with its hit and miss counters
+     * @throws NoActiveSessionException if the session is not initialized
+     */
+    public StatusCache getStatusCache() throws NoActiveSessionException {
+        final StatusCache cache = this.statusCache;
+        if (cache == null) {
+            throw new NoActiveSessionException("Session not initialized");
+        }
+        return cache;
+    }
 
-        public CommandOutput(int exitValue, BufferedReader stdout, BufferedReader stderr) {
-            super();
-            this.exitValue = exitValue;
-            this.stdout = stdout;
-            this.stderr = stderr;
+    /**
+     * @return the cache of the finished jobs of this session, with its hit and miss counters
+     * @throws NoActiveSessionException if the session is not initialized
+     */
+    public TerminalJobCache getTerminalJobCache() throws NoActiveSessionException {
+        final TerminalJobCache cache = this.terminalJobCache;
+        if (cache == null) {
+            throw new NoActiveSessionException("Session not initialized");
         }
+        return cache;
+    }
 
-        /**
-         * @return the exitValue
-         */
-        public int getExitValue() {
-            return exitValue;
+    /**
+     * @return the admission controller of this session, with its counters, or {@code null} if
+     *         {@link #OPTION_ADMISSION_POLICY} is not set
+     */
+    public AdmissionController getAdmissionController() {
+        return admissionController;
+    }
+
+    /**
+     * @return the queue job submissions go through, with its depth, in-flight count and latency
+     * @throws NoActiveSessionException if the session is not initialized
+     */
+    public SubmissionQueue getSubmissionQueue() throws NoActiveSessionException {
+        final SubmissionQueue queue = this.submissionQueue;
+        if (queue == null) {
+            throw new NoActiveSessionException("Session not initialized");
         }
+        return queue;
+    }
 
-        /**
-         * @return the stdout
-         */
-        public BufferedReader getStdout() {
-            return stdout;
+    private JobTokenLookup getJobTokenLookup() throws NoActiveSessionException {
+        final JobTokenLookup lookup = this.jobTokenLookup;
+        if (lookup == null) {
+            throw new NoActiveSessionException("Session not initialized");
         }
+        return lookup;
+    }
 
-        /**
-         * @return the stderr
-         */
-        public BufferedReader getStderr() {
-            return stderr;
+    private JobPoller getJobPoller() throws NoActiveSessionException {
+        final JobPoller poller = this.jobPoller;
+        if (poller == null) {
+            throw new NoActiveSessionException("Session not initialized");
         }
+        return poller;
+    }
 
+    private JobStateDispatcher getJobStateDispatcher() throws NoActiveSessionException {
+        final JobStateDispatcher dispatcher = this.jobStateDispatcher;
+        if (dispatcher == null) {
+            throw new NoActiveSessionException("Session not initialized");
+        }
+        return dispatcher;
     }
 
-    private String handleCommandOutput(CommandOutput commandOutput) throws DrmaaException {
+    /* package */ ExecutionEngine getExecutionEngine() throws NoActiveSessionException {
+        final ExecutionEngine engine = this.executionEngine;
+        if (engine == null) {
+            throw new NoActiveSessionException("Session not initialized");
+        }
+        return engine;
+    }
 
-        StringBuilder out = new StringBuilder();
-        String line;
+    /**
+     * Waits for a future created by one of the asynchronous methods.
+     *
+     * @param future future
+     * @param <T> result type
+     * @return the future result
+     * @throws DrmaaException the exception the future was completed with
+     */
+    private static <T> T await(CompletableFuture<T> future) throws DrmaaException {
         try {
-            while ((line = commandOutput.getStdout().readLine()) != null) {
-                out.append(line + System.getProperty("line.separator"));
-            }
-        } catch (IOException e) {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new InvalidJobException(e.getMessage());
-        } finally {
-            try {
-                commandOutput.getStdout().close();
-            } catch (IOException e) {
-                LOGGER.warning(e.getMessage());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
             }
+            if (cause instanceof DrmaaException) {
+                throw (DrmaaException) cause;
+            } else if (cause instanceof RejectedExecutionException) {
+                throw new TryLaterException(cause.getMessage());
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new InternalException(cause.getMessage());
         }
+    }
 
-        if (commandOutput.getExitValue() != 0) {
-            try {
-                while ((line = commandOutput.getStderr().readLine()) != null) {
-                    out.append(line + System.getProperty("line.separator"));
-                }
-            } catch (IOException e) {
-                throw new InvalidJobException(e.getMessage());
-            }
-            throw new InvalidJobException("\nStdout/Stderr:\n" + out.toString());
+    private static <T> CompletableFuture<T> failed(Throwable t) {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        future.completeExceptionally(t);
+        return future;
+    }
+
+    public CommandOutput executeCommand(CmdLine cmd) throws InterruptedException {
+        final CommandExecutor executor = this.commandExecutor;
+        if (executor == null) {
+            throw new IllegalStateException("Session not initialized");
         }
+        // LOGGER.info("Executing " + cmd.toString()) ;
+        return executor.execute(cmd);
+    }
 
-        return out.toString();
+    private CommandOutput executeCommand(CmdLine cmd, String input) throws InterruptedException {
+        final CommandExecutor executor = this.commandExecutor;
+        if (executor == null) {
+            throw new IllegalStateException("Session not initialized");
+        }
+        return executor.execute(cmd, input);
+    }
 
+    private String handleCommandOutput(CommandOutput commandOutput) throws DrmaaException {
+        if (commandOutput.getExitValue() != 0) {
+            throw new InvalidJobException("\nStdout/Stderr:\n" + commandOutput.getStdout() + commandOutput.getStderr());
+        }
+        return commandOutput.getStdout();
     }
 
 }
@@ -0,0 +1,92 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs;
+
+import org.ggf.drmaa.DrmaaException;
+
+/**
+ * Outcome of the submission of one job template of a batch: either the id of the submitted job, or the reason it was
+ * not submitted.
+ *
+ * @author Bruno P. Kinoshita
+ * @since 0.3
+ */
+public final class SubmitResult {
+
+    private final String jobId;
+    private final DrmaaException error;
+
+    private SubmitResult(String jobId, DrmaaException error) {
+        this.jobId = jobId;
+        this.error = error;
+    }
+
+    /**
+     * @param jobId id of the submitted job
+     * @return the result of a submitted job
+     */
+    public static SubmitResult submitted(String jobId) {
+        return new SubmitResult(jobId, null);
+    }
+
+    /**
+     * @param error reason the job was not submitted
+     * @return the result of a job that was not submitted
+     */
+    public static SubmitResult failed(DrmaaException error) {
+        return new SubmitResult(null, error);
+    }
+
+    /**
+     * @return {@code true} if the job was submitted
+     */
+    public boolean isSubmitted() {
+        return error == null;
+    }
+
+    /**
+     * @return the job id, or {@code null} if the job was not submitted
+     */
+    public String getJobId() {
+        return jobId;
+    }
+
+    /**
+     * @return the reason the job was not submitted, or {@code null} if it was
+     */
+    public DrmaaException getError() {
+        return error;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return isSubmitted() ? "SubmitResult [jobId=" + jobId + "]" : "SubmitResult [error=" + error + "]";
+    }
+
+}
@@ -0,0 +1,66 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.exec;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with jitter, shared by the policies deciding when to query or attempt something again.
+ *
+ * @author Bruno P. Kinoshita
+ * @since 0.3
+ */
+public final class Backoff {
+
+    private Backoff() {
+    }
+
+    /**
+     * @param base delay before any doubling, at least zero
+     * @param max longest delay
+     * @param doublings number of times the base delay is doubled
+     * @return the base delay doubled the given number of times, at most the longest delay
+     */
+    public static long exponential(long base, long max, int doublings) {
+        if (base <= 0L) {
+            return 0L;
+        }
+        // no more doubling than what fits in a long
+        int shift = Math.min(Math.max(0, doublings), Long.numberOfLeadingZeros(base) - 1);
+        return Math.min(max, base << shift);
+    }
+
+    /**
+     * @param delay delay
+     * @param jitter fraction of the delay by which it is randomly increased or decreased, between 0 and 1
+     * @return the delay, randomly spread by the jitter fraction
+     */
+    public static long jitter(long delay, double jitter) {
+        if (jitter <= 0D) {
+            return delay;
+        }
+        return delay + (long) (delay * jitter * (2D * ThreadLocalRandom.current().nextDouble() - 1D));
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.exec;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.UUID;
+
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.OperatingSystemFamily;
+
+/**
+ * Runs commands (qsub, qstat, qdel, ...) on the PBS head node.
+ *
+ * @author Bruno P. Kinoshita
+ * @since 0.3
+ */
+public interface CommandExecutor extends Closeable {
+
+    /**
+     * Runs a command and waits for it to complete.
+     *
+     * @param cmd command line
+     * @return the command output
+     * @throws InterruptedException if interrupted while waiting for the command
+     * @throws com.xebialabs.overthere.RuntimeIOException if the command could not be run
+     */
+    CommandOutput execute(CmdLine cmd) throws InterruptedException;
+
+    /**
+     * Runs a command with the given text as its standard input, such as a job script for qsub, and waits for it to
+     * complete.
+     *
+     * <p>
+     * By default the command is run by {@code sh -c}, with the input in a here-document, so that it takes the same
+     * single round trip as {@link #execute(CmdLine)}. As the input is then part of an argument, it is limited by the
+     * maximum size of a command argument, 128 KB on Linux. Implementations that start a process per command write the
+     * input to the process instead, and the ones running a shell write it to the shell.
+     * </p>
+     *
+     * @param cmd command line
+     * @param input standard input of the command
+     * @return the command output
+     * @throws InterruptedException if interrupted while waiting for the command
+     * @throws com.xebialabs.overthere.RuntimeIOException if the command could not be run
+     */
+    default CommandOutput execute(CmdLine cmd, String input) throws InterruptedException {
+        String marker = "__DRMAA_PBS_EOF_" + UUID.randomUUID().toString().replace("-", "") + "__";
+        StringBuilder script = new StringBuilder(cmd.toCommandLine(OperatingSystemFamily.UNIX, false))
+                .append(" <<'").append(marker).append("'\n").append(input);
+        if (!input.endsWith("\n")) {
+            script.append('\n');
+        }
+        script.append(marker).append('\n');
+        return execute(CmdLine.build("sh", "-c", script.toString()));
+    }
+
+    /**
+     * Runs several commands and waits for all of them to complete. Implementations may send the commands to the remote
+     * side before the first one completes.
+     *
+     * @param cmds command lines
+     * @return the command outputs, in the same order as the commands
+     * @throws InterruptedException if interrupted while waiting for the commands
+     * @throws com.xebialabs.overthere.RuntimeIOException if the commands could not be run
+     */
+    List<CommandOutput> executeAll(List<CmdLine> cmds) throws InterruptedException;
+
+    /**
+     * Releases the resources held by this executor.
+     */
+    @Override
+    void close();
+
+}
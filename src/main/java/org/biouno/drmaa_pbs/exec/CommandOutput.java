@@ -0,0 +1,68 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.exec;
+
+/**
+ * The exit value and output of a command. The standard output and error are read while the command runs, so that a
+ * command with a large output does not block on a full pipe.
+ *
+ * @author Bruno P. Kinoshita
+ * @author Kevin Ying
+ * @since 0.3
+ */
+public class CommandOutput {
+
+    private final int exitValue;
+    private final String stdout;
+    private final String stderr;
+
+    public CommandOutput(int exitValue, String stdout, String stderr) {
+        super();
+        this.exitValue = exitValue;
+        this.stdout = stdout;
+        this.stderr = stderr;
+    }
+
+    /**
+     * @return the exitValue
+     */
+    public int getExitValue() {
+        return exitValue;
+    }
+
+    /**
+     * @return the stdout
+     */
+    public String getStdout() {
+        return stdout;
+    }
+
+    /**
+     * @return the stderr
+     */
+    public String getStderr() {
+        return stderr;
+    }
+
+}
@@ -0,0 +1,52 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.exec;
+
+import com.xebialabs.overthere.OverthereConnection;
+
+/**
+ * Creates and checks the connections kept by a {@link ConnectionPool}.
+ *
+ * @author Bruno P. Kinoshita
+ * @since 0.3
+ */
+public interface ConnectionFactory {
+
+    /**
+     * Opens a new connection.
+     *
+     * @return a new connection
+     * @throws com.xebialabs.overthere.RuntimeIOException if the connection cannot be established
+     */
+    OverthereConnection open();
+
+    /**
+     * Checks whether a connection that has been idle in the pool can still be used.
+     *
+     * @param connection an idle connection
+     * @return {@code true} if the connection is healthy
+     */
+    boolean validate(OverthereConnection connection);
+
+}
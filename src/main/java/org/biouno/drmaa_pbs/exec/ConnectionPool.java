@@ -0,0 +1,360 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.exec;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.RuntimeIOException;
+
+/**
+ * A pool of long-lived connections, so that each command only pays for opening a channel, and not for a full
+ * handshake and authentication.
+ *
+ * <p>
+ * Idle connections are handed out most recently used first. A background thread closes connections that have been idle
+ * for longer than the idle timeout, keeps at least the minimum number of connections open, and validates the idle ones
+ * with the {@link ConnectionFactory}. A connection idle for longer than the validation interval is also validated
+ * before being borrowed.
+ * </p>
+ *
+ * @author Bruno P. Kinoshita
+ * @since 0.3
+ */
+public class ConnectionPool implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(ConnectionPool.class.getName());
+
+    private final ConnectionFactory factory;
+    private final int minSize;
+    private final int maxSize;
+    private final long idleTimeoutMillis;
+    private final long validationIntervalMillis;
+    private final long borrowTimeoutMillis;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    /**
+     * Idle connections, most recently released first.
+     */
+    private final Deque<IdleConnection> idle = new ArrayDeque<IdleConnection>();
+    /**
+     * Number of open connections, idle or borrowed.
+     */
+    private int total = 0;
+    private boolean closed = false;
+
+    private final ScheduledExecutorService evictor;
+
+    /**
+     * Creates a pool.
+     *
+     * @param factory connection factory
+     * @param minSize connections kept open even when idle
+     * @param maxSize maximum number of open connections
+     * @param idleTimeoutMillis time after which an idle connection above the minimum size is closed
+     * @param validationIntervalMillis idle time after which a connection is validated before being reused
+     * @param borrowTimeoutMillis maximum time to wait for a connection when the pool is exhausted
+     */
+    public ConnectionPool(ConnectionFactory factory, int minSize, int maxSize, long idleTimeoutMillis,
+            long validationIntervalMillis, long borrowTimeoutMillis) {
+        if (maxSize < 1 || minSize < 0 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size: min " + minSize + ", max " + maxSize);
+        }
+        this.factory = factory;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.validationIntervalMillis = validationIntervalMillis;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "drmaa-pbs-pool-evictor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long period = Math.max(1000L, Math.min(idleTimeoutMillis, validationIntervalMillis) / 2);
+        this.evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    evict();
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Failed to maintain connection pool: " + e.getMessage(), e);
+                }
+            }
+        }, 0L, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Borrows a connection, opening a new one if there is no idle connection and the pool is not full. The
+     * connection must be given back with {@link #release(OverthereConnection)} or
+     * {@link #invalidate(OverthereConnection)}.
+     *
+     * @return a connection
+     * @throws InterruptedException if interrupted while waiting for a connection
+     * @throws ConnectionUnavailableException if no connection becomes available in time, or a new one cannot be
+     *             opened
+     */
+    public OverthereConnection borrow() throws InterruptedException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(borrowTimeoutMillis);
+        while (true) {
+            IdleConnection candidate = null;
+            lock.lock();
+            try {
+                while (true) {
+                    if (closed) {
+                        throw new IllegalStateException("Connection pool is closed");
+                    }
+                    candidate = idle.pollFirst();
+                    if (candidate != null) {
+                        break;
+                    }
+                    if (total < maxSize) {
+                        total++;
+                        break;
+                    }
+                    if (remaining <= 0L) {
+                        throw new ConnectionUnavailableException("Timed out waiting for a connection after "
+                                + borrowTimeoutMillis + "ms (pool size " + maxSize + ")");
+                    }
+                    remaining = available.awaitNanos(remaining);
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            if (candidate == null) {
+                return open();
+            }
+            if (System.currentTimeMillis() - candidate.idleSince < validationIntervalMillis
+                    || isValid(candidate.connection)) {
+                return candidate.connection;
+            }
+            LOGGER.fine("Discarding broken connection " + candidate.connection);
+            invalidate(candidate.connection);
+        }
+    }
+
+    /**
+     * Gives a healthy connection back to the pool.
+     *
+     * @param connection a borrowed connection
+     */
+    public void release(OverthereConnection connection) {
+        lock.lock();
+        try {
+            if (!closed) {
+                idle.offerFirst(new IdleConnection(connection, System.currentTimeMillis()));
+                available.signal();
+                return;
+            }
+            total--;
+        } finally {
+            lock.unlock();
+        }
+        closeQuietly(connection);
+    }
+
+    /**
+     * Closes a borrowed connection that failed, freeing its slot in the pool.
+     *
+     * @param connection a borrowed connection
+     */
+    public void invalidate(OverthereConnection connection) {
+        lock.lock();
+        try {
+            total--;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+        closeQuietly(connection);
+    }
+
+    /**
+     * Closes the idle connections and stops the pool. Connections still borrowed are closed when released.
+     */
+    @Override
+    public void close() {
+        List<IdleConnection> drained;
+        lock.lock();
+        try {
+            closed = true;
+            drained = new ArrayList<IdleConnection>(idle);
+            idle.clear();
+            total -= drained.size();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        evictor.shutdownNow();
+        for (IdleConnection entry : drained) {
+            closeQuietly(entry.connection);
+        }
+    }
+
+    /**
+     * @return the number of open connections, idle or borrowed
+     */
+    public int getSize() {
+        lock.lock();
+        try {
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of idle connections
+     */
+    public int getIdleCount() {
+        lock.lock();
+        try {
+            return idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes expired idle connections, validates the remaining ones, and opens new connections until the minimum size
+     * is reached.
+     */
+    void evict() {
+        long now = System.currentTimeMillis();
+        List<IdleConnection> expired = new ArrayList<IdleConnection>();
+        List<IdleConnection> toValidate = new ArrayList<IdleConnection>();
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            // oldest connections are at the tail
+            Iterator<IdleConnection> it = idle.descendingIterator();
+            while (it.hasNext()) {
+                IdleConnection entry = it.next();
+                if (total > minSize && now - entry.idleSince >= idleTimeoutMillis) {
+                    it.remove();
+                    total--;
+                    expired.add(entry);
+                } else if (now - entry.idleSince >= validationIntervalMillis) {
+                    it.remove();
+                    toValidate.add(entry);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        for (IdleConnection entry : expired) {
+            LOGGER.fine("Closing idle connection " + entry.connection);
+            closeQuietly(entry.connection);
+        }
+        for (IdleConnection entry : toValidate) {
+            if (isValid(entry.connection)) {
+                release(entry.connection);
+            } else {
+                invalidate(entry.connection);
+            }
+        }
+
+        while (true) {
+            lock.lock();
+            try {
+                if (closed || total >= minSize) {
+                    return;
+                }
+                total++;
+            } finally {
+                lock.unlock();
+            }
+            release(open());
+        }
+    }
+
+    private OverthereConnection open() {
+        try {
+            return factory.open();
+        } catch (RuntimeException e) {
+            lock.lock();
+            try {
+                total--;
+                available.signal();
+            } finally {
+                lock.unlock();
+            }
+            if (e instanceof RuntimeIOException && !(e instanceof ConnectionUnavailableException)) {
+                throw new ConnectionUnavailableException("Failed to open connection: " + e.getMessage(), e);
+            }
+            throw e;
+        }
+    }
+
+    private boolean isValid(OverthereConnection connection) {
+        try {
+            return factory.validate(connection);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.FINE, "Connection validation failed: " + e.getMessage(), e);
+            return false;
+        }
+    }
+
+    private static void closeQuietly(OverthereConnection connection) {
+        try {
+            connection.close();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.FINE, "Failed to close connection: " + e.getMessage(), e);
+        }
+    }
+
+    private static final class IdleConnection {
+
+        private final OverthereConnection connection;
+        private final long idleSince;
+
+        IdleConnection(OverthereConnection connection, long idleSince) {
+            this.connection = connection;
+            this.idleSince = idleSince;
+        }
+
+    }
+
+}
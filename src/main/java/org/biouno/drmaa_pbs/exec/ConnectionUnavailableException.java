@@ -0,0 +1,54 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.exec;
+
+import com.xebialabs.overthere.RuntimeIOException;
+
+/**
+ * Thrown when no connection could be borrowed from a {@link ConnectionPool}, or opened, so that the command was not
+ * sent to the host.
+ *
+ * @author Bruno P. Kinoshita
+ * @since 0.3
+ */
+public class ConnectionUnavailableException extends RuntimeIOException {
+
+    private static final long serialVersionUID = -3326453101875125043L;
+
+    /**
+     * @param message detail message
+     */
+    public ConnectionUnavailableException(String message) {
+        super(message);
+    }
+
+    /**
+     * @param message detail message
+     * @param cause why the connection could not be opened
+     */
+    public ConnectionUnavailableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
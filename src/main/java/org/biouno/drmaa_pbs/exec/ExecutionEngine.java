@@ -0,0 +1,278 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.exec;
+
+import java.io.Closeable;
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.ggf.drmaa.NoActiveSessionException;
+
+/**
+ * Runs the blocking work of a session (remote commands and the parsing of their output) on a bounded number of
+ * threads, and schedules delayed work such as the next poll of a job status.
+ *
+ * <p>
+ * Tasks submitted from one of the engine threads run in the calling thread, so that a blocking call made from a
+ * completion callback cannot wait on a task queued behind itself.
+ * </p>
+ *
+ * <p>
+ * By default tasks run on a fixed pool of platform threads, one per concurrent task. When virtual threads are
+ * requested and the JVM supports them (Java 21 or newer), each task runs on a new virtual thread instead, and the
+ * concurrency limit is enforced with a semaphore, so that thousands of tasks blocked on remote commands do not need
+ * thousands of operating system threads.
+ * </p>
+ *
+ * <p>
+ * Once the engine is closed, the tasks still waiting for a thread, and the ones submitted afterwards, fail with a
+ * {@link NoActiveSessionException}, so that no caller waits for them forever.
+ * </p>
+ *
+ * @author Bruno P. Kinoshita
+ * @since 0.3
+ */
+public class ExecutionEngine implements Closeable {
+
+    /**
+     * A unit of work that may fail with a checked exception.
+     *
+     * @param <T> result type
+     */
+    public interface Task<T> {
+
+        T call() throws Exception;
+
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ExecutionEngine.class.getName());
+
+    private static final ThreadLocal<Boolean> ENGINE_THREAD = new ThreadLocal<Boolean>();
+
+    /**
+     * A task waiting for an engine thread, with the future failed if the engine is closed first.
+     */
+    private static final class QueuedTask implements Runnable {
+
+        private final Runnable body;
+        private final CompletableFuture<?> future;
+
+        private QueuedTask(Runnable body, CompletableFuture<?> future) {
+            this.body = body;
+            this.future = future;
+        }
+
+        @Override
+        public void run() {
+            body.run();
+        }
+
+    }
+
+    private final int concurrency;
+    private final ExecutorService workers;
+    /**
+     * Limits the running tasks when they run on virtual threads, {@code null} with platform threads.
+     */
+    private final Semaphore permits;
+    private final ScheduledExecutorService scheduler;
+    private volatile boolean closed = false;
+
+    /**
+     * Creates an engine that runs tasks on platform threads.
+     *
+     * @param concurrency maximum number of tasks running at the same time
+     */
+    public ExecutionEngine(int concurrency) {
+        this(concurrency, false);
+    }
+
+    /**
+     * @param concurrency maximum number of tasks running at the same time
+     * @param virtualThreads whether to run tasks on virtual threads, if the JVM supports them
+     */
+    public ExecutionEngine(int concurrency, boolean virtualThreads) {
+        this.concurrency = Math.max(1, concurrency);
+        ExecutorService virtual = virtualThreads ? newVirtualThreadPerTaskExecutor() : null;
+        if (virtual != null) {
+            this.workers = virtual;
+            this.permits = new Semaphore(this.concurrency);
+        } else {
+            final AtomicInteger count = new AtomicInteger();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(this.concurrency, this.concurrency, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), r -> {
+                        Thread thread = new Thread(r, "drmaa-pbs-worker-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            this.workers = pool;
+            this.permits = null;
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "drmaa-pbs-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Runs a task on one of the engine threads.
+     *
+     * @param task task
+     * @param <T> result type
+     * @return a future completed with the task result, or exceptionally with what the task threw
+     */
+    public <T> CompletableFuture<T> submit(Task<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        if (Boolean.TRUE.equals(ENGINE_THREAD.get())) {
+            run(task, future);
+            return future;
+        }
+        Runnable body;
+        if (permits == null) {
+            body = () -> {
+                ENGINE_THREAD.set(Boolean.TRUE);
+                run(task, future);
+            };
+        } else {
+            body = () -> {
+                ENGINE_THREAD.set(Boolean.TRUE);
+                try {
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    future.completeExceptionally(closed ? newClosedException() : e);
+                    return;
+                }
+                try {
+                    run(task, future);
+                } finally {
+                    permits.release();
+                }
+            };
+        }
+        try {
+            workers.execute(new QueuedTask(body, future));
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(newClosedException());
+        }
+        return future;
+    }
+
+    /**
+     * Runs an action after a delay. The action must not block; blocking work should be given to
+     * {@link #submit(Task)}.
+     *
+     * @param action action
+     * @param delay delay
+     * @param unit delay unit
+     * @return the scheduled action
+     */
+    public ScheduledFuture<?> schedule(Runnable action, long delay, TimeUnit unit) {
+        return scheduler.schedule(action, delay, unit);
+    }
+
+    /**
+     * @return {@code true} if tasks run on virtual threads
+     */
+    public boolean isVirtualThreads() {
+        return permits != null;
+    }
+
+    /**
+     * @return the maximum number of tasks running at the same time
+     */
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * @return the number of tasks waiting for a platform thread, always zero with virtual threads
+     */
+    public int getQueuedTaskCount() {
+        return workers instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) workers).getQueue().size() : 0;
+    }
+
+    /**
+     * Stops the engine threads. Queued tasks fail with a {@link NoActiveSessionException}, running tasks are
+     * interrupted, and scheduled actions are cancelled.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Runnable action : scheduler.shutdownNow()) {
+            if (action instanceof Future) {
+                ((Future<?>) action).cancel(false);
+            }
+        }
+        for (Runnable queued : workers.shutdownNow()) {
+            if (queued instanceof QueuedTask) {
+                ((QueuedTask) queued).future.completeExceptionally(newClosedException());
+            }
+        }
+    }
+
+    private static NoActiveSessionException newClosedException() {
+        return new NoActiveSessionException("Execution engine closed");
+    }
+
+    /**
+     * Looks up {@code Executors.newVirtualThreadPerTaskExecutor()}, which only exists on Java 21 or newer.
+     *
+     * @return a virtual thread executor, or {@code null} if the JVM does not support virtual threads
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (NoSuchMethodException e) {
+            LOGGER.info("Virtual threads are not supported by this JVM, using platform threads");
+        } catch (ReflectiveOperationException e) {
+            LOGGER.log(Level.WARNING, "Failed to create virtual thread executor, using platform threads", e);
+        }
+        return null;
+    }
+
+    private static <T> void run(Task<T> task, CompletableFuture<T> future) {
+        try {
+            future.complete(task.call());
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+        }
+    }
+
+}
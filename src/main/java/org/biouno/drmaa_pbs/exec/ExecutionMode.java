@@ -0,0 +1,80 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.exec;
+
+/**
+ * How commands are run on the PBS head node.
+ *
+ * @author Bruno P. Kinoshita
+ * @since 0.3
+ */
+public enum ExecutionMode {
+
+    /**
+     * A new process for each command.
+     *
+     * @see ProcessCommandExecutor
+     */
+    PROCESS("process"),
+    /**
+     * Commands written to a long-running shell, one per connection.
+     *
+     * @see ShellCommandExecutor
+     */
+    SHELL("shell");
+
+    private final String mode;
+
+    ExecutionMode(String mode) {
+        this.mode = mode;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    /**
+     * @param mode mode name, case insensitive
+     * @return the matching mode, or {@link #PROCESS} if there is none
+     */
+    public static ExecutionMode fromString(String mode) {
+        for (ExecutionMode value : values()) {
+            if (value.mode.equalsIgnoreCase(mode)) {
+                return value;
+            }
+        }
+        return PROCESS;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Enum#toString()
+     */
+    @Override
+    public String toString() {
+        return this.mode;
+    }
+
+}
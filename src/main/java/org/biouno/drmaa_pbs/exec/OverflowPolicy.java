@@ -0,0 +1,80 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.exec;
+
+/**
+ * What a {@link SubmissionQueue} does with a new submission when it is full.
+ *
+ * @author Bruno P. Kinoshita
+ * @since 0.3
+ */
+public enum OverflowPolicy {
+
+    /**
+     * The caller waits until there is room in the queue.
+     */
+    BLOCK("block"),
+    /**
+     * The new submission is rejected at once.
+     */
+    FAIL_FAST("failFast"),
+    /**
+     * The oldest queued submission is rejected to make room for the new one.
+     */
+    DROP("drop");
+
+    private final String policy;
+
+    OverflowPolicy(String policy) {
+        this.policy = policy;
+    }
+
+    public String getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @param policy policy name, case insensitive
+     * @return the matching policy, or {@link #BLOCK} if there is none
+     */
+    public static OverflowPolicy fromString(String policy) {
+        for (OverflowPolicy value : values()) {
+            if (value.policy.equalsIgnoreCase(policy)) {
+                return value;
+            }
+        }
+        return BLOCK;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Enum#toString()
+     */
+    @Override
+    public String toString() {
+        return this.policy;
+    }
+
+}
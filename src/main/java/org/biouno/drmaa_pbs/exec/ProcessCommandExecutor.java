@@ -0,0 +1,228 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.exec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.IOUtils;
+
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.OverthereProcess;
+import com.xebialabs.overthere.RuntimeIOException;
+
+/**
+ * Runs each command as a new process, on a connection borrowed from a {@link ConnectionPool}.
+ *
+ * <p>
+ * The standard output and error are drained while the process runs, the standard error in a background thread and
+ * the standard output in the calling thread. Otherwise a command writing more than the pipe buffer, like
+ * {@code qstat -fx} on a busy server, would block forever. For the same reason, the standard input is written by a
+ * background thread: a command reading a large input, like a script given to {@code sh}, may have to write its output
+ * before it reads the end of its input.
+ * </p>
+ *
+ * @author Bruno P. Kinoshita
+ * @author Kevin Ying
+ * @since 0.3
+ */
+public class ProcessCommandExecutor implements CommandExecutor {
+
+    private static final Logger LOGGER = Logger.getLogger(ProcessCommandExecutor.class.getName());
+
+    private final ConnectionPool pool;
+
+    /**
+     * Threads draining the standard error of running commands, and writing their standard input.
+     */
+    private final ExecutorService drainers = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "drmaa-pbs-stream-drainer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public ProcessCommandExecutor(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.biouno.drmaa_pbs.exec.CommandExecutor#execute(com.xebialabs.overthere.CmdLine)
+     */
+    @Override
+    public CommandOutput execute(CmdLine cmd) throws InterruptedException {
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        int exitValue = execute(cmd, stdout, stderr);
+        return new CommandOutput(exitValue, stdout.toString(), stderr.toString());
+    }
+
+    /**
+     * Runs a command, streaming its output to the given streams while it runs.
+     *
+     * @param cmd command line
+     * @param stdout where the standard output is written to
+     * @param stderr where the standard error is written to
+     * @return the exit value
+     * @throws InterruptedException if interrupted while waiting for the command
+     * @throws RuntimeIOException if the command could not be run, or its output could not be read
+     */
+    public int execute(CmdLine cmd, OutputStream stdout, OutputStream stderr) throws InterruptedException {
+        return execute(cmd, null, stdout, stderr);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * The input is written to the standard input of the process, which is then closed.
+     * </p>
+     */
+    @Override
+    public CommandOutput execute(CmdLine cmd, String input) throws InterruptedException {
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        int exitValue = execute(cmd, input.getBytes(StandardCharsets.UTF_8), stdout, stderr);
+        return new CommandOutput(exitValue, stdout.toString(), stderr.toString());
+    }
+
+    private int execute(CmdLine cmd, byte[] input, OutputStream stdout, OutputStream stderr)
+            throws InterruptedException {
+        final OverthereConnection connection = pool.borrow();
+
+        int exitValue = -1;
+        boolean healthy = false;
+        try {
+            final OverthereProcess process = connection.startProcess(cmd);
+            Future<Long> stderrDrainer = drainers.submit(drain(process.getStderr(), stderr));
+            Future<Void> stdinWriter = input == null ? null : drainers.submit(write(input, process.getStdin()));
+            try {
+                try {
+                    IOUtils.copyLarge(process.getStdout(), stdout);
+                } finally {
+                    IOUtils.closeQuietly(process.getStdout());
+                }
+                if (stdinWriter != null) {
+                    stdinWriter.get();
+                }
+                stderrDrainer.get();
+                exitValue = process.waitFor();
+            } catch (IOException e) {
+                process.destroy();
+                throw new RuntimeIOException("Failed to read output of " + cmd + ": " + e.getMessage(), e);
+            } catch (ExecutionException e) {
+                process.destroy();
+                throw new RuntimeIOException("Failed to write input or read error output of " + cmd + ": "
+                        + e.getCause().getMessage(), e.getCause());
+            } catch (InterruptedException e) {
+                LOGGER.severe(e.getMessage());
+                process.destroy();
+                stderrDrainer.cancel(true);
+                if (stdinWriter != null) {
+                    stdinWriter.cancel(true);
+                }
+                throw e;
+            }
+            healthy = true;
+        } finally {
+            if (healthy) {
+                pool.release(connection);
+            } else {
+                pool.invalidate(connection);
+            }
+        }
+
+        return exitValue;
+    }
+
+    private static Callable<Void> write(final byte[] input, final OutputStream out) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                try {
+                    out.write(input);
+                } finally {
+                    IOUtils.closeQuietly(out);
+                }
+                return null;
+            }
+        };
+    }
+
+    private static Callable<Long> drain(final InputStream in, final OutputStream out) {
+        return new Callable<Long>() {
+            @Override
+            public Long call() throws IOException {
+                try {
+                    return IOUtils.copyLarge(in, out);
+                } finally {
+                    IOUtils.closeQuietly(in);
+                }
+            }
+        };
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.biouno.drmaa_pbs.exec.CommandExecutor#executeAll(java.util.List)
+     */
+    @Override
+    public List<CommandOutput> executeAll(List<CmdLine> cmds) throws InterruptedException {
+        List<CommandOutput> outputs = new ArrayList<CommandOutput>(cmds.size());
+        for (CmdLine cmd : cmds) {
+            outputs.add(execute(cmd));
+        }
+        return outputs;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.biouno.drmaa_pbs.exec.CommandExecutor#close()
+     */
+    @Override
+    public void close() {
+        drainers.shutdownNow();
+        pool.close();
+    }
+
+}
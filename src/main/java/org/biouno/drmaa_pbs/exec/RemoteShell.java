@@ -0,0 +1,336 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.exec;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.LinkedHashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.OperatingSystemFamily;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.OverthereProcess;
+import com.xebialabs.overthere.RuntimeIOException;
+
+/**
+ * A long-running shell on the PBS head node, used to run many commands without starting a new process (and, over
+ * SSH, a new channel) for each one.
+ *
+ * <p>
+ * Each command is written to the shell standard input, followed by commands that print a frame marker with the exit
+ * code to the standard output, and a frame marker to the standard error. Commands are run in the order they were
+ * submitted, so the output between two markers belongs to the next pending command. Several commands can be submitted
+ * before the first one completes.
+ * </p>
+ *
+ * @author Bruno P. Kinoshita
+ * @since 0.3
+ */
+public class RemoteShell implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(RemoteShell.class.getName());
+
+    private static final String NEW_LINE = System.getProperty("line.separator");
+
+    private final OverthereProcess process;
+    private final OperatingSystemFamily os;
+    /**
+     * Frame marker, unique per shell so that it cannot be confused with the output of a command.
+     */
+    private final String marker = "__DRMAA_PBS_" + UUID.randomUUID().toString().replace("-", "") + "__";
+    private final Writer stdin;
+
+    /**
+     * Serializes writes, so that commands are run in the order they are queued.
+     */
+    private final Object writeLock = new Object();
+    /**
+     * Guards the pending queues and the failure.
+     */
+    private final Object stateLock = new Object();
+    private final Queue<PendingCommand> stdoutQueue = new ArrayDeque<PendingCommand>();
+    private final Queue<PendingCommand> stderrQueue = new ArrayDeque<PendingCommand>();
+    private RuntimeIOException failure;
+    private int pending = 0;
+
+    /**
+     * Starts a shell on the given connection.
+     *
+     * @param connection connection to the PBS head node
+     */
+    public RemoteShell(OverthereConnection connection) {
+        this(connection.startProcess(CmdLine.build("sh")), connection.getHostOperatingSystem());
+    }
+
+    /**
+     * Uses an already started shell process.
+     *
+     * @param process a shell reading commands from its standard input
+     * @param os the operating system family where the shell runs
+     */
+    public RemoteShell(OverthereProcess process, OperatingSystemFamily os) {
+        this.process = process;
+        this.os = os;
+        this.stdin = new OutputStreamWriter(process.getStdin());
+        startReader(process.getStdout(), true);
+        startReader(process.getStderr(), false);
+    }
+
+    /**
+     * Queues a command for execution.
+     *
+     * @param cmd command line
+     * @return a future that completes with the command output
+     * @throws RuntimeIOException if the shell is no longer usable
+     */
+    public Future<CommandOutput> submit(CmdLine cmd) {
+        return submit(cmd.toCommandLine(os, false) + " </dev/null\n");
+    }
+
+    /**
+     * Queues a command for execution, with the given text as its standard input. The input is written to the shell as
+     * a here-document, read by the shell itself, so that it is not limited by the maximum size of a command argument.
+     *
+     * @param cmd command line
+     * @param input standard input of the command
+     * @return a future that completes with the command output
+     * @throws RuntimeIOException if the shell is no longer usable
+     */
+    public Future<CommandOutput> submit(CmdLine cmd, String input) {
+        String eof = "__DRMAA_PBS_EOF_" + UUID.randomUUID().toString().replace("-", "") + "__";
+        StringBuilder line = new StringBuilder(cmd.toCommandLine(os, false)).append(" <<'").append(eof).append("'\n")
+                .append(input);
+        if (!input.endsWith("\n")) {
+            line.append('\n');
+        }
+        return submit(line.append(eof).append('\n').toString());
+    }
+
+    /**
+     * @param line command, with its standard input, ending with a new line
+     */
+    private Future<CommandOutput> submit(String line) {
+        final PendingCommand command = new PendingCommand();
+        synchronized (writeLock) {
+            synchronized (stateLock) {
+                if (failure != null) {
+                    throw failure;
+                }
+                stdoutQueue.add(command);
+                stderrQueue.add(command);
+                pending++;
+            }
+            try {
+                stdin.write(line
+                        + "__drmaa_rc=$?\n"
+                        + "printf '%s %d\\n' '" + marker + "' \"$__drmaa_rc\"\n"
+                        + "printf '%s\\n' '" + marker + "' >&2\n");
+                stdin.flush();
+            } catch (IOException e) {
+                fail(new RuntimeIOException("Failed to write to remote shell: " + e.getMessage(), e));
+            }
+        }
+        return command;
+    }
+
+    /**
+     * @return the number of commands submitted and not yet completed
+     */
+    public int getPendingCount() {
+        synchronized (stateLock) {
+            return pending;
+        }
+    }
+
+    /**
+     * @return {@code true} if the shell can still run commands
+     */
+    public boolean isAlive() {
+        synchronized (stateLock) {
+            return failure == null;
+        }
+    }
+
+    /**
+     * Terminates the shell. Pending commands fail.
+     */
+    @Override
+    public void close() {
+        fail(new RuntimeIOException("Remote shell closed"));
+        try {
+            stdin.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to close remote shell input: " + e.getMessage(), e);
+        }
+        process.destroy();
+    }
+
+    private void fail(RuntimeIOException cause) {
+        synchronized (stateLock) {
+            if (failure == null) {
+                failure = cause;
+            }
+            // a command whose stdout frame was read is only left in the stderr queue
+            Set<PendingCommand> commands = new LinkedHashSet<PendingCommand>(stdoutQueue);
+            commands.addAll(stderrQueue);
+            stdoutQueue.clear();
+            stderrQueue.clear();
+            for (PendingCommand command : commands) {
+                if (!command.isDone()) {
+                    command.fail(failure);
+                    pending--;
+                }
+            }
+        }
+    }
+
+    private void startReader(final InputStream stream, final boolean isStdout) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    read(new BufferedReader(new InputStreamReader(stream)), isStdout);
+                    fail(new RuntimeIOException("Remote shell terminated"));
+                } catch (IOException e) {
+                    fail(new RuntimeIOException("Failed to read from remote shell: " + e.getMessage(), e));
+                }
+            }
+        }, "drmaa-pbs-shell-" + (isStdout ? "stdout" : "stderr"));
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void read(BufferedReader reader, boolean isStdout) throws IOException {
+        StringBuilder out = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            int index = line.indexOf(marker);
+            if (index < 0) {
+                out.append(line).append(NEW_LINE);
+                continue;
+            }
+            // output without a trailing new line is followed by the marker in the same line
+            out.append(line, 0, index);
+            synchronized (stateLock) {
+                PendingCommand command = isStdout ? stdoutQueue.poll() : stderrQueue.poll();
+                if (command != null) {
+                    if (isStdout) {
+                        command.setStdout(out.toString(),
+                                Integer.parseInt(line.substring(index + marker.length()).trim()));
+                    } else {
+                        command.setStderr(out.toString());
+                    }
+                    if (command.isDone()) {
+                        pending--;
+                    }
+                }
+            }
+            out.setLength(0);
+        }
+    }
+
+    /**
+     * A command written to the shell, completed once both of its output frames have been read.
+     */
+    private static final class PendingCommand implements Future<CommandOutput> {
+
+        private final CountDownLatch latch = new CountDownLatch(2);
+        private volatile String stdout;
+        private volatile String stderr;
+        private volatile int exitValue = -1;
+        private volatile RuntimeIOException failure;
+
+        void setStdout(String stdout, int exitValue) {
+            this.stdout = stdout;
+            this.exitValue = exitValue;
+            latch.countDown();
+        }
+
+        void setStderr(String stderr) {
+            this.stderr = stderr;
+            latch.countDown();
+        }
+
+        void fail(RuntimeIOException failure) {
+            this.failure = failure;
+            latch.countDown();
+            latch.countDown();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return latch.getCount() == 0;
+        }
+
+        @Override
+        public CommandOutput get() throws InterruptedException, ExecutionException {
+            latch.await();
+            return getOutput();
+        }
+
+        @Override
+        public CommandOutput get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+                TimeoutException {
+            if (!latch.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return getOutput();
+        }
+
+        private CommandOutput getOutput() throws ExecutionException {
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
+            return new CommandOutput(exitValue, stdout, stderr);
+        }
+
+    }
+
+}
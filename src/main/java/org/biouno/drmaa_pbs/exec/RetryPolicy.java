@@ -0,0 +1,98 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.exec;
+
+/**
+ * Decides how many times an operation that failed for a transient reason is attempted, and how long to wait before
+ * each new attempt.
+ *
+ * <p>
+ * The delay doubles after each failed attempt, from the initial delay up to the maximum delay, and is spread randomly
+ * by the jitter fraction, so that clients that failed together do not retry together.
+ * </p>
+ *
+ * @author Bruno P. Kinoshita
+ * @since 0.3
+ */
+public class RetryPolicy {
+
+    /**
+     * Attempts an operation once, without retrying it.
+     */
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0L, 0L, 0D);
+
+    private final int maxAttempts;
+    private final long initialDelay;
+    private final long maxDelay;
+    private final double jitter;
+
+    /**
+     * @param maxAttempts maximum number of attempts, including the first one
+     * @param initialDelayMillis delay before the second attempt, in milliseconds
+     * @param maxDelayMillis longest delay, in milliseconds
+     * @param jitter fraction of the delay by which it is randomly increased or decreased, between 0 and 1
+     */
+    public RetryPolicy(int maxAttempts, long initialDelayMillis, long maxDelayMillis, double jitter) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialDelay = Math.max(0L, initialDelayMillis);
+        this.maxDelay = Math.max(this.initialDelay, maxDelayMillis);
+        this.jitter = Math.max(0D, Math.min(1D, jitter));
+    }
+
+    /**
+     * @return the maximum number of attempts, including the first one
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @param attempts number of attempts made so far
+     * @return {@code true} if another attempt may be made
+     */
+    public boolean canRetry(int attempts) {
+        return attempts < maxAttempts;
+    }
+
+    /**
+     * @param attempts number of attempts made so far, at least one
+     * @return milliseconds to wait before the next attempt
+     */
+    public long nextDelay(int attempts) {
+        long delay = Backoff.jitter(Backoff.exponential(initialDelay, maxDelay, attempts - 1), jitter);
+        return Math.max(0L, Math.min(maxDelay, delay));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "RetryPolicy [maxAttempts=" + maxAttempts + ", initialDelay=" + initialDelay + ", maxDelay=" + maxDelay
+                + ", jitter=" + jitter + "]";
+    }
+
+}
@@ -0,0 +1,420 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.exec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.OverthereFile;
+import com.xebialabs.overthere.RuntimeIOException;
+import com.xebialabs.overthere.util.CapturingOverthereExecutionOutputHandler;
+import com.xebialabs.overthere.util.NullOverthereExecutionOutputHandler;
+
+/**
+ * Uploads job scripts to a directory of the PBS head node, named after the SHA-256 of their content, so that a script
+ * submitted many times is uploaded once.
+ *
+ * <p>
+ * The stager remembers the scripts of the directory, including the ones left by previous sessions, which it lists on
+ * first use. A script already there is not uploaded again. New scripts are written to a temporary file and renamed, so
+ * that a concurrent submission never sees a partial script. Concurrent submissions of the same new script wait for a
+ * single upload, and a script renamed in place by another session in the meantime counts as staged. The directory
+ * keeps at most a number of scripts; beyond
+ * it, the least recently staged ones are deleted. qsub copies the script when the job is submitted, so a script is
+ * only needed until its qsub returns.
+ * </p>
+ *
+ * <p>
+ * As the stager cannot tell when that qsub returns, nor whether another session sharing the directory has just
+ * staged the same script, a script is only deleted once a grace period has passed since it was last staged, by any
+ * session. Each session touches the remote file of a script it stages when the file was not touched for half the
+ * grace period, and deletes a script with {@code find -mmin}, so that the age is measured by the clock of the head
+ * node. A caller thus has at least half the grace period to run qsub. The directory may keep more scripts than the
+ * maximum while they are in their grace period.
+ * </p>
+ *
+ * @author Bruno P. Kinoshita
+ * @since 0.3
+ */
+public class ScriptStager {
+
+    private static final Logger LOGGER = Logger.getLogger(ScriptStager.class.getName());
+
+    private static final String SUFFIX = ".sh";
+    private static final Pattern SCRIPT_NAME = Pattern.compile("[0-9a-f]{64}\\.sh");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final ConnectionPool pool;
+    private final String directory;
+    private final int maxScripts;
+    private final long gracePeriodNanos;
+    /**
+     * Staged scripts by hash, least recently staged first. Guarded by itself.
+     */
+    private final LinkedHashMap<String, Script> scripts = new LinkedHashMap<String, Script>(16, 0.75F, true);
+    private boolean loaded = false;
+    /**
+     * Scripts being staged by hash, so that concurrent callers staging the same script share its upload.
+     */
+    private final Map<String, CompletableFuture<String>> staging =
+            new ConcurrentHashMap<String, CompletableFuture<String>>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong uploads = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * A staged script.
+     */
+    private static final class Script {
+
+        private final String path;
+        /**
+         * When this stager last returned the script, in nanoseconds.
+         */
+        private long stagedAt;
+        /**
+         * When this stager last uploaded or touched the remote file, in nanoseconds, or {@link Long#MIN_VALUE}.
+         */
+        private long touchedAt = Long.MIN_VALUE;
+
+        private Script(String path) {
+            this.path = path;
+        }
+
+    }
+
+    /**
+     * @param pool pool of connections to the PBS head node
+     * @param directory remote directory of the scripts, created if needed
+     * @param maxScripts maximum number of scripts kept in the directory
+     * @param gracePeriodMillis milliseconds after a script was last staged during which it is not deleted. Zero
+     *            deletes the least recently staged scripts as soon as there are too many
+     */
+    public ScriptStager(ConnectionPool pool, String directory, int maxScripts, long gracePeriodMillis) {
+        this.pool = pool;
+        this.directory = directory;
+        this.maxScripts = Math.max(1, maxScripts);
+        this.gracePeriodNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, gracePeriodMillis));
+    }
+
+    /**
+     * Makes a script available on the PBS head node.
+     *
+     * @param content script content
+     * @return the remote path of the script
+     * @throws IOException if the script could not be uploaded
+     * @throws InterruptedException if interrupted while waiting for a connection
+     */
+    public String stage(byte[] content) throws IOException, InterruptedException {
+        String hash = sha256(content);
+        synchronized (scripts) {
+            Script script = loaded ? scripts.get(hash) : null;
+            if (script != null) {
+                script.stagedAt = System.nanoTime();
+                if (!needsTouch(script, script.stagedAt)) {
+                    hits.incrementAndGet();
+                    return script.path;
+                }
+            }
+        }
+        CompletableFuture<String> future = new CompletableFuture<String>();
+        CompletableFuture<String> running = staging.putIfAbsent(hash, future);
+        if (running != null) {
+            String path = await(running, hash);
+            hits.incrementAndGet();
+            return path;
+        }
+        try {
+            String path = stage(hash, content);
+            future.complete(path);
+            return path;
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            staging.remove(hash, future);
+        }
+    }
+
+    /**
+     * Waits for another caller staging the same script.
+     */
+    private String await(CompletableFuture<String> running, String hash) throws IOException, InterruptedException {
+        try {
+            return running.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to stage script " + hash + " in " + directory + ": "
+                    + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Checks whether a script is in the directory, uploading it if not.
+     */
+    private String stage(String hash, byte[] content) throws IOException, InterruptedException {
+        OverthereConnection connection = pool.borrow();
+        try {
+            OverthereFile dir = connection.getFile(directory);
+            synchronized (scripts) {
+                if (!loaded) {
+                    load(dir);
+                }
+            }
+            OverthereFile file = dir.getFile(hash + SUFFIX);
+            if (file.exists() && file.length() == content.length) {
+                if (gracePeriodNanos > 0L) {
+                    touch(connection, file.getPath());
+                }
+                hits.incrementAndGet();
+            } else if (upload(dir, file, content)) {
+                uploads.incrementAndGet();
+            } else {
+                hits.incrementAndGet();
+            }
+            List<String> evicted = new ArrayList<String>();
+            synchronized (scripts) {
+                long now = System.nanoTime();
+                Script script = scripts.get(hash);
+                if (script == null) {
+                    script = new Script(file.getPath());
+                    scripts.put(hash, script);
+                }
+                script.stagedAt = now;
+                script.touchedAt = now;
+                for (Iterator<Script> it = scripts.values().iterator(); scripts.size() > maxScripts;) {
+                    Script eldest = it.next();
+                    if (now - eldest.stagedAt < gracePeriodNanos) {
+                        // the next ones were staged even more recently
+                        break;
+                    }
+                    evicted.add(eldest.path);
+                    it.remove();
+                }
+            }
+            if (!evicted.isEmpty()) {
+                delete(connection, evicted);
+            }
+            pool.release(connection);
+            return file.getPath();
+        } catch (RuntimeIOException e) {
+            pool.invalidate(connection);
+            throw new IOException("Failed to stage script " + hash + " in " + directory + ": " + e.getMessage(), e);
+        } catch (IOException | RuntimeException e) {
+            pool.invalidate(connection);
+            throw e;
+        }
+    }
+
+    /**
+     * Adopts the scripts already in the directory, creating it if needed. Called with the lock held.
+     */
+    private void load(OverthereFile dir) {
+        if (!dir.exists()) {
+            dir.mkdirs();
+        } else {
+            List<OverthereFile> files = new ArrayList<OverthereFile>();
+            for (OverthereFile file : dir.listFiles()) {
+                if (SCRIPT_NAME.matcher(file.getName()).matches()) {
+                    files.add(file);
+                }
+            }
+            Collections.sort(files, Comparator.comparingLong(OverthereFile::lastModified));
+            // found in the directory, so as old as the grace period for this stager; find checks their actual age
+            long stagedAt = System.nanoTime() - gracePeriodNanos;
+            for (OverthereFile file : files) {
+                String name = file.getName();
+                Script script = new Script(file.getPath());
+                script.stagedAt = stagedAt;
+                scripts.put(name.substring(0, name.length() - SUFFIX.length()), script);
+            }
+        }
+        loaded = true;
+    }
+
+    /**
+     * Writes a script to a temporary file, renamed to the script once complete.
+     *
+     * @return {@code false} if another session renamed the same script in place first, e.g. over SFTP, where the
+     *         rename fails once the script exists
+     */
+    private static boolean upload(OverthereFile dir, OverthereFile file, byte[] content) throws IOException {
+        OverthereFile temp = dir.getFile("." + file.getName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            try (OutputStream out = temp.getOutputStream()) {
+                out.write(content);
+            }
+            temp.setExecutable(true);
+            temp.renameTo(file);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            deleteQuietly(temp);
+            if (e instanceof RuntimeIOException && file.exists() && file.length() == content.length) {
+                LOGGER.log(Level.FINE, "Script " + file.getPath() + " was staged by another session", e);
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    private static void deleteQuietly(OverthereFile file) {
+        try {
+            if (file.exists()) {
+                file.delete();
+            }
+        } catch (RuntimeIOException e) {
+            LOGGER.log(Level.FINE, "Failed to delete temporary script " + file.getPath(), e);
+        }
+    }
+
+    /**
+     * @return {@code true} if the remote file of a script must be touched to stay in its grace period
+     */
+    private boolean needsTouch(Script script, long now) {
+        return gracePeriodNanos > 0L && (script.touchedAt == Long.MIN_VALUE
+                || now - script.touchedAt > gracePeriodNanos / 2);
+    }
+
+    private static void touch(OverthereConnection connection, String path) {
+        int exitValue = connection.execute(NullOverthereExecutionOutputHandler.swallow(),
+                NullOverthereExecutionOutputHandler.swallow(), CmdLine.build("touch", "-c", path));
+        if (exitValue != 0) {
+            LOGGER.log(Level.FINE, "Failed to touch staged script " + path + ", exit value " + exitValue);
+        }
+    }
+
+    /**
+     * Deletes scripts, but only the ones whose remote file is older than the grace period.
+     */
+    private void delete(OverthereConnection connection, List<String> paths) {
+        if (gracePeriodNanos == 0L) {
+            for (String path : paths) {
+                try {
+                    connection.getFile(path).delete();
+                    evictions.incrementAndGet();
+                } catch (RuntimeIOException e) {
+                    LOGGER.log(Level.FINE, "Failed to delete staged script " + path, e);
+                }
+            }
+            return;
+        }
+        CmdLine cmd = CmdLine.build("find");
+        cmd.addArgument(directory);
+        cmd.addArgument("-maxdepth");
+        cmd.addArgument("1");
+        cmd.addArgument("(");
+        for (int i = 0; i < paths.size(); i++) {
+            if (i > 0) {
+                cmd.addArgument("-o");
+            }
+            cmd.addArgument("-name");
+            cmd.addArgument(paths.get(i).substring(paths.get(i).lastIndexOf('/') + 1));
+        }
+        cmd.addArgument(")");
+        cmd.addArgument("-mmin");
+        cmd.addArgument("+" + Math.max(1L, TimeUnit.NANOSECONDS.toMinutes(gracePeriodNanos + 59999999999L)));
+        cmd.addArgument("-print");
+        cmd.addArgument("-delete");
+        CapturingOverthereExecutionOutputHandler deleted = CapturingOverthereExecutionOutputHandler.capturingHandler();
+        try {
+            int exitValue = connection.execute(deleted, NullOverthereExecutionOutputHandler.swallow(), cmd);
+            evictions.addAndGet(deleted.getOutputLines().size());
+            if (exitValue != 0) {
+                LOGGER.log(Level.FINE, "Failed to delete staged scripts " + paths + ", exit value " + exitValue);
+            }
+        } catch (RuntimeIOException e) {
+            LOGGER.log(Level.FINE, "Failed to delete staged scripts " + paths, e);
+        }
+    }
+
+    private static String sha256(byte[] content) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[2 * i] = HEX[(digest[i] >> 4) & 0xF];
+            hex[2 * i + 1] = HEX[digest[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * @return the number of scripts staged without being uploaded
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of scripts uploaded
+     */
+    public long getUploadCount() {
+        return uploads.get();
+    }
+
+    /**
+     * @return the number of scripts deleted to keep the directory bounded
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of scripts known to be in the directory
+     */
+    public int size() {
+        synchronized (scripts) {
+            return scripts.size();
+        }
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+}
@@ -0,0 +1,209 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.exec;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.RuntimeIOException;
+
+/**
+ * Runs commands through {@link RemoteShell}s, one per pooled connection. Commands from concurrent callers are
+ * pipelined into the least busy shell, and new shells are started while every shell is busy and the limit has not been
+ * reached.
+ *
+ * @author Bruno P. Kinoshita
+ * @since 0.3
+ */
+public class ShellCommandExecutor implements CommandExecutor {
+
+    private final ConnectionPool pool;
+    private final int maxShells;
+    /**
+     * Running shells, and the connection each one holds.
+     */
+    private final Map<RemoteShell, OverthereConnection> shells = new IdentityHashMap<RemoteShell, OverthereConnection>();
+    /**
+     * Shells being started.
+     */
+    private int starting = 0;
+    private boolean closed = false;
+
+    /**
+     * @param pool connection pool where the connections for the shells are borrowed from
+     * @param maxShells maximum number of shells
+     */
+    public ShellCommandExecutor(ConnectionPool pool, int maxShells) {
+        this.pool = pool;
+        this.maxShells = Math.max(1, maxShells);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.biouno.drmaa_pbs.exec.CommandExecutor#execute(com.xebialabs.overthere.CmdLine)
+     */
+    @Override
+    public CommandOutput execute(CmdLine cmd) throws InterruptedException {
+        return get(shell().submit(cmd));
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * The input is written to the shell as a here-document, so that it is not limited by the maximum size of a command
+     * argument.
+     * </p>
+     */
+    @Override
+    public CommandOutput execute(CmdLine cmd, String input) throws InterruptedException {
+        return get(shell().submit(cmd, input));
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * All the commands are written to the same shell before waiting for the first one.
+     * </p>
+     */
+    @Override
+    public List<CommandOutput> executeAll(List<CmdLine> cmds) throws InterruptedException {
+        RemoteShell shell = shell();
+        List<Future<CommandOutput>> futures = new ArrayList<Future<CommandOutput>>(cmds.size());
+        for (CmdLine cmd : cmds) {
+            futures.add(shell.submit(cmd));
+        }
+        List<CommandOutput> outputs = new ArrayList<CommandOutput>(cmds.size());
+        for (Future<CommandOutput> future : futures) {
+            outputs.add(get(future));
+        }
+        return outputs;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.biouno.drmaa_pbs.exec.CommandExecutor#close()
+     */
+    @Override
+    public void close() {
+        List<RemoteShell> running;
+        synchronized (shells) {
+            closed = true;
+            running = new ArrayList<RemoteShell>(shells.keySet());
+        }
+        for (RemoteShell shell : running) {
+            discard(shell);
+        }
+        pool.close();
+    }
+
+    /**
+     * @return the least busy shell, starting a new one if all are busy
+     * @throws InterruptedException if interrupted while waiting for a connection
+     */
+    private RemoteShell shell() throws InterruptedException {
+        RemoteShell selected = null;
+        List<RemoteShell> dead = new ArrayList<RemoteShell>();
+        synchronized (shells) {
+            if (closed) {
+                throw new IllegalStateException("Executor is closed");
+            }
+            for (Iterator<RemoteShell> it = shells.keySet().iterator(); it.hasNext();) {
+                RemoteShell shell = it.next();
+                if (!shell.isAlive()) {
+                    dead.add(shell);
+                } else if (selected == null || shell.getPendingCount() < selected.getPendingCount()) {
+                    selected = shell;
+                }
+            }
+        }
+        for (RemoteShell shell : dead) {
+            discard(shell);
+        }
+        synchronized (shells) {
+            if (selected != null && (selected.getPendingCount() == 0 || shells.size() + starting >= maxShells)) {
+                return selected;
+            }
+            starting++;
+        }
+
+        RemoteShell shell;
+        OverthereConnection connection;
+        try {
+            connection = pool.borrow();
+            try {
+                shell = new RemoteShell(connection);
+            } catch (RuntimeException e) {
+                pool.invalidate(connection);
+                throw e;
+            }
+        } finally {
+            synchronized (shells) {
+                starting--;
+            }
+        }
+        synchronized (shells) {
+            if (!closed) {
+                shells.put(shell, connection);
+                return shell;
+            }
+        }
+        shell.close();
+        pool.invalidate(connection);
+        throw new IllegalStateException("Executor is closed");
+    }
+
+    private void discard(RemoteShell shell) {
+        OverthereConnection connection;
+        synchronized (shells) {
+            connection = shells.remove(shell);
+        }
+        if (connection != null) {
+            shell.close();
+            pool.invalidate(connection);
+        }
+    }
+
+    private static CommandOutput get(Future<CommandOutput> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeIOException) {
+                throw (RuntimeIOException) e.getCause();
+            }
+            throw new RuntimeIOException(e.getCause());
+        }
+    }
+
+}
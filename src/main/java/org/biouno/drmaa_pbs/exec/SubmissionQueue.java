@@ -0,0 +1,251 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.exec;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded queue of job submissions, run by a fixed number of worker threads, so that many threads submitting jobs
+ * at once do not run as many qsub commands at once.
+ *
+ * <p>
+ * Submissions are queued without blocking up to the capacity of the queue. When it is full, the
+ * {@link OverflowPolicy} decides whether the caller waits, the new submission is rejected, or the oldest queued
+ * submission is. Rejected submissions complete with a {@link RejectedExecutionException}.
+ * </p>
+ *
+ * @author Bruno P. Kinoshita
+ * @since 0.3
+ */
+public class SubmissionQueue implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(SubmissionQueue.class.getName());
+
+    /**
+     * A queued task and the future of its result.
+     */
+    private static final class Submission<T> {
+
+        private final ExecutionEngine.Task<T> task;
+        private final CompletableFuture<T> future = new CompletableFuture<T>();
+        private final long queuedAt = System.nanoTime();
+
+        private Submission(ExecutionEngine.Task<T> task) {
+            this.task = task;
+        }
+
+        /**
+         * Runs the task, and records it in the metrics of the queue before completing the future, so that callers see
+         * the metrics up to date.
+         */
+        private void run(SubmissionQueue queue) {
+            T result;
+            try {
+                result = task.call();
+            } catch (Throwable t) {
+                queue.finished(this);
+                future.completeExceptionally(t);
+                return;
+            }
+            queue.finished(this);
+            future.complete(result);
+        }
+
+    }
+
+    private final BlockingQueue<Submission<?>> queue;
+    private final OverflowPolicy policy;
+    private final List<Thread> workers;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong latencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+    private volatile boolean closed = false;
+
+    /**
+     * @param capacity maximum number of queued submissions, not counting the running ones
+     * @param workers number of submissions running at the same time
+     * @param policy what to do with a new submission when the queue is full
+     */
+    public SubmissionQueue(int capacity, int workers, OverflowPolicy policy) {
+        this.queue = new ArrayBlockingQueue<Submission<?>>(Math.max(1, capacity));
+        this.policy = policy;
+        this.workers = new ArrayList<Thread>();
+        for (int i = 1; i <= Math.max(1, workers); i++) {
+            Thread worker = new Thread(this::work, "drmaa-pbs-submitter-" + i);
+            worker.setDaemon(true);
+            this.workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Queues a submission. With {@link OverflowPolicy#BLOCK}, waits while the queue is full.
+     *
+     * @param task submission, such as a qsub
+     * @param <T> result type
+     * @return a future completed with the task result, or exceptionally with what the task threw, a
+     *         {@link RejectedExecutionException} if the submission was rejected, or an {@link InterruptedException} if
+     *         the caller was interrupted while waiting for room in the queue
+     */
+    public <T> CompletableFuture<T> submit(ExecutionEngine.Task<T> task) {
+        Submission<T> submission = new Submission<T>(task);
+        if (closed) {
+            return reject(submission, "Submission queue is closed");
+        }
+        switch (policy) {
+        case FAIL_FAST:
+            if (!queue.offer(submission)) {
+                return reject(submission, "Submission queue is full");
+            }
+            break;
+        case DROP:
+            while (!queue.offer(submission)) {
+                Submission<?> oldest = queue.poll();
+                if (oldest != null) {
+                    reject(oldest, "Dropped from full submission queue");
+                }
+            }
+            break;
+        default:
+            try {
+                queue.put(submission);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                submission.future.completeExceptionally(e);
+                return submission.future;
+            }
+        }
+        if (closed && queue.remove(submission)) {
+            reject(submission, "Submission queue is closed");
+        }
+        return submission.future;
+    }
+
+    private void work() {
+        while (!closed) {
+            Submission<?> submission;
+            try {
+                submission = queue.poll(100L, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (submission == null) {
+                continue;
+            }
+            inFlight.incrementAndGet();
+            submission.run(this);
+        }
+    }
+
+    private void finished(Submission<?> submission) {
+        inFlight.decrementAndGet();
+        long latency = System.nanoTime() - submission.queuedAt;
+        completed.incrementAndGet();
+        latencyNanos.addAndGet(latency);
+        maxLatencyNanos.accumulateAndGet(latency, Math::max);
+    }
+
+    private <T> CompletableFuture<T> reject(Submission<T> submission, String message) {
+        rejected.incrementAndGet();
+        LOGGER.log(Level.FINE, message);
+        submission.future.completeExceptionally(new RejectedExecutionException(message));
+        return submission.future;
+    }
+
+    /**
+     * @return the number of queued submissions
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of running submissions
+     */
+    public int getInFlightCount() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return the number of submissions run, successfully or not
+     */
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    /**
+     * @return the number of submissions rejected, because the queue was full or closed
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the mean time from queueing to completion of the submissions run, in milliseconds
+     */
+    public double getAverageLatencyMillis() {
+        long count = completed.get();
+        return count == 0 ? 0D : latencyNanos.get() / (count * 1000000D);
+    }
+
+    /**
+     * @return the longest time from queueing to completion of a submission run, in milliseconds
+     */
+    public long getMaxLatencyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxLatencyNanos.get());
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Stops the workers. Queued submissions are rejected, running ones are interrupted.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        Submission<?> submission;
+        while ((submission = queue.poll()) != null) {
+            reject(submission, "Submission queue is closed");
+        }
+    }
+
+}
@@ -913,6 +913,7 @@ public class Job implements Serializable {
         XSTREAM.alias("Job", Job.class);
         XSTREAM.registerConverter(new MapEntryConverter());
         XSTREAM.processAnnotations(Job.class);
+        XSTREAM.allowTypes(new Class<?>[] { Job.class });
     }
 
     /**
@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.model;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What changed in the jobs reported by PBS since the previous query.
+ *
+ * @author Bruno P. Kinoshita
+ * @since 0.3
+ */
+public class JobChangeSet {
+
+    private final List<Job> added;
+    private final List<Job> changed;
+    private final List<String> removed;
+    private final List<String> unchanged;
+
+    /**
+     * @param added jobs that were not reported before
+     * @param changed jobs whose modification time, state or substate changed
+     * @param removed ids of the jobs no longer reported
+     * @param unchanged ids of the jobs reported again without changes
+     */
+    public JobChangeSet(List<Job> added, List<Job> changed, List<String> removed, List<String> unchanged) {
+        this.added = Collections.unmodifiableList(added);
+        this.changed = Collections.unmodifiableList(changed);
+        this.removed = Collections.unmodifiableList(removed);
+        this.unchanged = Collections.unmodifiableList(unchanged);
+    }
+
+    public List<Job> getAdded() {
+        return added;
+    }
+
+    public List<Job> getChanged() {
+        return changed;
+    }
+
+    public List<String> getRemoved() {
+        return removed;
+    }
+
+    public List<String> getUnchanged() {
+        return unchanged;
+    }
+
+    /**
+     * @return {@code true} if no job was added, changed or removed
+     */
+    public boolean isEmpty() {
+        return added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "JobChangeSet [added=" + added.size() + ", changed=" + changed.size() + ", removed=" + removed.size()
+                + ", unchanged=" + unchanged.size() + "]";
+    }
+
+}
@@ -0,0 +1,227 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.parser;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.biouno.drmaa_pbs.model.Job;
+import org.biouno.drmaa_pbs.model.JobChangeSet;
+
+/**
+ * Parser for qstat -fx output that only parses the jobs that changed since the previous output.
+ *
+ * <p>
+ * The parser keeps the {@code mtime}, {@code job_state} and {@code substate} of the jobs of the previous outputs by
+ * id. The XML of each job is scanned for its {@code Job_Id} and these fields, and only the jobs for which one of them
+ * changed are given to the {@link QstatJobsParser}, so that a queue of thousands of jobs where only a few moved costs
+ * a few parsed jobs. The parsed {@link Job} objects are not kept: the caller keeps the ones it needs, and reuses them
+ * for the jobs reported unchanged. A job without a numeric {@code mtime} is always parsed.
+ * </p>
+ *
+ * @author Bruno P. Kinoshita
+ * @since 0.3
+ */
+public class QstatJobsDeltaParser {
+
+    private static final QstatJobsParser QSTAT_JOBS_PARSER = new QstatJobsParser();
+
+    private static final String JOB_START = "<Job>";
+    private static final String JOB_END = "</Job>";
+
+    /**
+     * Value of a missing or non-numeric field.
+     */
+    private static final long UNKNOWN = Long.MIN_VALUE;
+
+    /**
+     * The fields a job is compared on.
+     */
+    private static final class Snapshot {
+
+        private final long mtime;
+        private final String state;
+        private final long substate;
+
+        private Snapshot(long mtime, String state, long substate) {
+            this.mtime = mtime;
+            this.state = state;
+            this.substate = substate;
+        }
+
+        private boolean matches(long mtime, String state, long substate) {
+            return mtime != UNKNOWN && this.mtime == mtime && this.substate == substate
+                    && (this.state == null ? state == null : this.state.equals(state));
+        }
+
+    }
+
+    private final Map<String, Snapshot> snapshots = new ConcurrentHashMap<String, Snapshot>();
+
+    /**
+     * Parses the output of a qstat of all the jobs. Jobs of the previous outputs that are missing are removed.
+     *
+     * @param text qstat -fx output
+     * @return the changes since the previous outputs
+     * @throws ParseException if the output could not be parsed
+     */
+    public JobChangeSet parse(String text) throws ParseException {
+        return parse(text, null);
+    }
+
+    /**
+     * Parses the output of a qstat of some jobs. Only the queried jobs that are missing are removed.
+     *
+     * @param text qstat -fx output
+     * @param queried ids given to qstat, or {@code null} if all the jobs were queried
+     * @return the changes since the previous outputs
+     * @throws ParseException if the output could not be parsed
+     */
+    public JobChangeSet parse(String text, Collection<String> queried) throws ParseException {
+        List<Job> added = new ArrayList<Job>();
+        List<Job> changed = new ArrayList<Job>();
+        List<String> unchanged = new ArrayList<String>();
+        Set<String> seen = new HashSet<String>();
+        StringBuilder toParse = null;
+        List<Snapshot> keys = null;
+        int from = 0;
+        while (true) {
+            int start = text.indexOf(JOB_START, from);
+            if (start < 0) {
+                break;
+            }
+            int end = text.indexOf(JOB_END, start);
+            if (end < 0) {
+                throw new ParseException("Unterminated job in qstat output at offset " + start);
+            }
+            end += JOB_END.length();
+            from = end;
+            String id = unescape(element(text, "Job_Id", start, end));
+            long mtime = toLong(element(text, "mtime", start, end));
+            String state = element(text, "job_state", start, end);
+            long substate = toLong(element(text, "substate", start, end));
+            Snapshot previous = id == null ? null : snapshots.get(id);
+            if (previous != null && previous.matches(mtime, state, substate)) {
+                unchanged.add(id);
+                seen.add(id);
+                continue;
+            }
+            if (toParse == null) {
+                toParse = new StringBuilder("<Data>");
+                keys = new ArrayList<Snapshot>();
+            }
+            toParse.append(text, start, end);
+            // interned, as there are only a few states
+            keys.add(new Snapshot(mtime, state == null ? null : state.intern(), substate));
+        }
+        if (toParse != null) {
+            List<Job> jobs = QSTAT_JOBS_PARSER.parse(toParse.append("</Data>").toString());
+            for (int i = 0; i < jobs.size(); i++) {
+                Job job = jobs.get(i);
+                Snapshot previous = snapshots.put(job.getId(), keys.get(i));
+                (previous == null ? added : changed).add(job);
+                seen.add(job.getId());
+            }
+        }
+        List<String> removed = new ArrayList<String>();
+        for (String id : queried == null ? snapshots.keySet() : queried) {
+            if (!seen.contains(id) && snapshots.remove(id) != null) {
+                removed.add(id);
+            }
+        }
+        return new JobChangeSet(added, changed, removed, unchanged);
+    }
+
+    /**
+     * Forgets a job, so that it is parsed again if reported.
+     *
+     * @param id job id
+     */
+    public void remove(String id) {
+        snapshots.remove(id);
+    }
+
+    /**
+     * Forgets all the jobs.
+     */
+    public void clear() {
+        snapshots.clear();
+    }
+
+    /**
+     * @return the number of jobs kept
+     */
+    public int size() {
+        return snapshots.size();
+    }
+
+    /**
+     * @return the text of the first element with this name between two offsets, or {@code null}
+     */
+    private static String element(String text, String name, int from, int to) {
+        String open = "<" + name + ">";
+        int start = text.indexOf(open, from);
+        if (start < 0 || start >= to) {
+            return null;
+        }
+        start += open.length();
+        int end = text.indexOf("</" + name + ">", start);
+        if (end < 0 || end > to) {
+            return null;
+        }
+        return text.substring(start, end).trim();
+    }
+
+    /**
+     * @return the value as a number, or {@link #UNKNOWN} if it is missing or not a number
+     */
+    private static long toLong(String value) {
+        if (value == null || value.isEmpty() || value.length() > 18) {
+            return UNKNOWN;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) < '0' || value.charAt(i) > '9') {
+                return UNKNOWN;
+            }
+        }
+        return Long.parseLong(value);
+    }
+
+    /**
+     * @return the value with the XML entities qstat may write replaced
+     */
+    private static String unescape(String value) {
+        if (value == null || value.indexOf('&') < 0) {
+            return value;
+        }
+        return value.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&apos;", "'")
+                .replace("&amp;", "&");
+    }
+
+}
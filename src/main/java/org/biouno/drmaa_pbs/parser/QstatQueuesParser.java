@@ -77,7 +77,7 @@ public class QstatQueuesParser implements Parser<String, List<Queue>> {
                         queues.add(queue);
                     }
                     queue = new Queue();
-                    final String name = matcher.group(1);
+                    final String name = matcher.group(1).trim();
                     queue.setName(name);
                 } else if (StringUtils.isNotBlank(line)) {
                     String[] temp = Utils.splitFirst(line, CHAR_EQUALS);
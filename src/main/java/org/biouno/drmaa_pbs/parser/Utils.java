@@ -24,6 +24,8 @@
 package org.biouno.drmaa_pbs.parser;
 
 import java.util.Vector;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Utils class.
@@ -33,6 +35,8 @@ import java.util.Vector;
  */
 public final class Utils {
 
+    private static final Pattern DURATION = Pattern.compile("(?:(?:(\\d+):)?(\\d+):)?(\\d+)(?:\\.\\d*)?");
+
     /**
      * Hidden constructor of the utility class.
      */
@@ -74,4 +78,28 @@ public final class Utils {
         return (String[]) rv.toArray(new String[rv.size()]);
     }
 
+    /**
+     * Parses a PBS duration, such as a walltime, given either as {@code [[hours:]minutes:]seconds} or as a number of
+     * seconds. A fraction of a second, as in {@code 00:00:01.5}, is dropped.
+     *
+     * @param duration duration
+     * @return the duration in seconds, or {@code -1} if it is blank or invalid
+     */
+    public static long parseDuration(String duration) {
+        if (duration == null) {
+            return -1L;
+        }
+        Matcher matcher = DURATION.matcher(duration.trim());
+        if (!matcher.matches()) {
+            return -1L;
+        }
+        try {
+            long hours = matcher.group(1) == null ? 0L : Long.parseLong(matcher.group(1));
+            long minutes = matcher.group(2) == null ? 0L : Long.parseLong(matcher.group(2));
+            return hours * 3600L + minutes * 60L + Long.parseLong(matcher.group(3));
+        } catch (NumberFormatException nfe) {
+            return -1L;
+        }
+    }
+
 }
@@ -0,0 +1,149 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.status;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.biouno.drmaa_pbs.exec.Backoff;
+import org.biouno.drmaa_pbs.exec.ConnectionPool;
+import org.biouno.drmaa_pbs.exec.ExecutionEngine;
+
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.RuntimeIOException;
+
+/**
+ * Completes the waits of a {@link JobPoller} from the end records of the PBS accounting log, as soon as they are
+ * written, instead of waiting for the next qstat. The poller keeps querying qstat, so jobs are still seen finishing
+ * when the log cannot be read.
+ *
+ * <p>
+ * The log is read every interval. When it cannot be read, e.g. because the connection dropped or the session user has
+ * no access to {@code server_priv}, the failure is logged and the log is read again after a delay that doubles with
+ * each consecutive failure, up to a minute. Meanwhile jobs are only seen finishing with qstat.
+ * </p>
+ *
+ * @author Bruno P. Kinoshita
+ * @since 0.3
+ */
+public class AccountingLogMonitor implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(AccountingLogMonitor.class.getName());
+
+    /**
+     * Longest delay between two reads after failures, in milliseconds.
+     */
+    private static final long MAX_RETRY_DELAY = 60000L;
+
+    private final AccountingLogTailer tailer;
+    private final ConnectionPool connectionPool;
+    private final ExecutionEngine engine;
+    private final JobPoller poller;
+    private final long interval;
+    private volatile boolean closed;
+    /**
+     * Number of consecutive reads that failed.
+     */
+    private int failures = 0;
+
+    /**
+     * @param tailer reads the accounting log
+     * @param connectionPool connections to the host of the accounting log
+     * @param engine engine reading the log and scheduling the reads
+     * @param poller poller whose waits are completed
+     * @param intervalMillis milliseconds between two reads
+     */
+    public AccountingLogMonitor(AccountingLogTailer tailer, ConnectionPool connectionPool, ExecutionEngine engine,
+            JobPoller poller, long intervalMillis) {
+        this.tailer = tailer;
+        this.connectionPool = connectionPool;
+        this.engine = engine;
+        this.poller = poller;
+        this.interval = Math.max(1L, intervalMillis);
+    }
+
+    /**
+     * Starts reading the log.
+     */
+    public void start() {
+        engine.submit(() -> {
+            read();
+            return null;
+        });
+    }
+
+    private void read() {
+        if (closed) {
+            return;
+        }
+        OverthereConnection connection = null;
+        try {
+            connection = connectionPool.borrow();
+            List<AccountingRecord> records = tailer.poll(connection);
+            connectionPool.release(connection);
+            connection = null;
+            for (AccountingRecord record : records) {
+                if (AccountingRecord.END.equals(record.getType())) {
+                    poller.finished(record.toFinishedJob());
+                }
+            }
+        } catch (IOException | RuntimeIOException e) {
+            if (connection != null) {
+                connectionPool.invalidate(connection);
+            }
+            long delay = Backoff.exponential(interval, Math.max(interval, MAX_RETRY_DELAY), failures++);
+            LOGGER.log(failures == 1 ? Level.WARNING : Level.FINE, "Cannot read the PBS accounting log, job "
+                    + "completion is only checked with qstat until the next read in " + delay + " ms", e);
+            schedule(delay);
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (failures > 0) {
+            LOGGER.log(Level.INFO, "Reading the PBS accounting log again after " + failures + " failures");
+            failures = 0;
+        }
+        schedule(interval);
+    }
+
+    private void schedule(long delay) {
+        if (!closed) {
+            engine.schedule(this::start, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops reading the log.
+     */
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+}
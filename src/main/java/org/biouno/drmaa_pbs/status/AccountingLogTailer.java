@@ -0,0 +1,192 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.status;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.OverthereFile;
+import com.xebialabs.overthere.OverthereProcess;
+
+/**
+ * Reads the records appended to the PBS accounting log since the last read.
+ *
+ * <p>
+ * PBS writes one accounting file per day, named after the date ({@code server_priv/accounting/20151017}). The tailer
+ * remembers the file and byte offset it stopped at, reads only what was appended since, and moves on to the file of
+ * the new day once the previous one has been read to the end. An incomplete last line is read again on the next
+ * call. The file is read over a connection, so that the log of a remote server can be tailed as well as a local one,
+ * with {@code tail -c +<offset>} running on its host, so that only the appended bytes cross the connection.
+ * </p>
+ *
+ * <p>
+ * On the first read the tailer starts at the end of the current file, unless a position was given with
+ * {@link #seek(String, long)}, e.g. one saved by a previous session.
+ * </p>
+ *
+ * @author Bruno P. Kinoshita
+ * @since 0.3
+ */
+public class AccountingLogTailer {
+
+    private static final DateTimeFormatter FILE_NAME = DateTimeFormatter.BASIC_ISO_DATE;
+
+    /**
+     * Most bytes read by one call, so that a large backlog is read in several calls.
+     */
+    private static final int MAX_READ = 16 * 1024 * 1024;
+
+    private final String directory;
+    private final Clock clock;
+
+    private String fileName;
+    private long offset;
+
+    /**
+     * @param directory directory of the accounting files
+     */
+    public AccountingLogTailer(String directory) {
+        this(directory, Clock.systemDefaultZone());
+    }
+
+    /**
+     * @param directory directory of the accounting files
+     * @param clock clock giving the current day
+     */
+    public AccountingLogTailer(String directory, Clock clock) {
+        this.directory = directory;
+        this.clock = clock;
+    }
+
+    /**
+     * Sets the position of the next read.
+     *
+     * @param fileName accounting file name
+     * @param offset byte offset in the file
+     */
+    public synchronized void seek(String fileName, long offset) {
+        this.fileName = fileName;
+        this.offset = offset;
+    }
+
+    /**
+     * @return the accounting file read last, or {@code null} before the first read
+     */
+    public synchronized String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * @return the byte offset of the next read in {@link #getFileName()}
+     */
+    public synchronized long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Reads the records appended since the last call.
+     *
+     * @param connection connection to the host of the accounting log
+     * @return the new records, in the order they were written
+     * @throws IOException if the log could not be read
+     */
+    public synchronized List<AccountingRecord> poll(OverthereConnection connection) throws IOException {
+        String today = LocalDate.now(clock).format(FILE_NAME);
+        List<AccountingRecord> records = new ArrayList<AccountingRecord>();
+        if (fileName == null) {
+            OverthereFile file = getFile(connection, today);
+            fileName = today;
+            offset = file.exists() ? file.length() : 0L;
+            return records;
+        }
+        boolean complete = read(connection, records);
+        if (complete && !today.equals(fileName)) {
+            fileName = today;
+            offset = 0L;
+            read(connection, records);
+        }
+        return records;
+    }
+
+    /**
+     * Reads the current file from the current offset.
+     *
+     * @param connection connection
+     * @param records list the records are added to
+     * @return {@code true} if the file was read to its end
+     * @throws IOException if the file could not be read
+     */
+    private boolean read(OverthereConnection connection, List<AccountingRecord> records) throws IOException {
+        OverthereFile file = getFile(connection, fileName);
+        if (!file.exists()) {
+            return true;
+        }
+        long length = file.length();
+        if (length < offset) {
+            // truncated or replaced
+            offset = 0L;
+        }
+        if (length == offset) {
+            return true;
+        }
+        int size = (int) Math.min(MAX_READ, length - offset);
+        byte[] bytes = new byte[size];
+        OverthereProcess tail = connection
+                .startProcess(CmdLine.build("tail", "-c", "+" + (offset + 1), file.getPath()));
+        try (InputStream in = tail.getStdout()) {
+            size = IOUtils.read(in, bytes);
+        } finally {
+            // the rest of a large backlog is read by the next calls
+            tail.destroy();
+        }
+        int start = 0;
+        for (int i = 0; i < size; i++) {
+            if (bytes[i] == '\n') {
+                String line = new String(bytes, start, i - start, StandardCharsets.UTF_8).trim();
+                AccountingRecord record = line.isEmpty() ? null : AccountingRecord.parse(line);
+                if (record != null) {
+                    records.add(record);
+                }
+                start = i + 1;
+            }
+        }
+        offset += start;
+        return offset == length;
+    }
+
+    private OverthereFile getFile(OverthereConnection connection, String name) {
+        return connection.getFile(directory + "/" + name);
+    }
+
+}
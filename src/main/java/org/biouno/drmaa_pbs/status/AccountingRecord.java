@@ -0,0 +1,146 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.status;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.biouno.drmaa_pbs.model.Job;
+
+/**
+ * A record of the PBS accounting log, such as
+ * {@code 10/17/2015 10:00:00;E;123.server;user=bob queue=batch Exit_status=0 resources_used.walltime=00:00:10}.
+ *
+ * @author Bruno P. Kinoshita
+ * @since 0.3
+ */
+public class AccountingRecord {
+
+    /**
+     * Type of the record written when a job ends.
+     */
+    public static final String END = "E";
+
+    private static final String RESOURCES_USED = "resources_used.";
+    private static final String EXIT_STATUS = "Exit_status";
+
+    private final String timestamp;
+    private final String type;
+    private final String jobId;
+    private final Map<String, String> attributes;
+
+    /**
+     * @param timestamp record date and time, as written by PBS
+     * @param type record type, e.g. {@link #END}
+     * @param jobId job id
+     * @param attributes record attributes
+     */
+    public AccountingRecord(String timestamp, String type, String jobId, Map<String, String> attributes) {
+        this.timestamp = timestamp;
+        this.type = type;
+        this.jobId = jobId;
+        this.attributes = Collections.unmodifiableMap(new LinkedHashMap<String, String>(attributes));
+    }
+
+    /**
+     * Parses a line of the accounting log.
+     *
+     * @param line line, without its line terminator
+     * @return the record, or {@code null} if the line is not a record
+     */
+    public static AccountingRecord parse(String line) {
+        String[] fields = line.split(";", 4);
+        if (fields.length < 3) {
+            return null;
+        }
+        Map<String, String> attributes = new LinkedHashMap<String, String>();
+        if (fields.length == 4) {
+            for (String attribute : fields[3].trim().split("\\s+")) {
+                int equals = attribute.indexOf('=');
+                if (equals > 0) {
+                    attributes.put(attribute.substring(0, equals), attribute.substring(equals + 1));
+                }
+            }
+        }
+        return new AccountingRecord(fields[0], fields[1], fields[2], attributes);
+    }
+
+    public String getTimestamp() {
+        return timestamp;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public Map<String, String> getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * @return the exit status of the job, or {@code -1} if the record has none
+     */
+    public int getExitStatus() {
+        try {
+            return Integer.parseInt(attributes.get(EXIT_STATUS));
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the {@code resources_used.*} attributes, without their prefix
+     */
+    public Map<String, String> getResourcesUsed() {
+        Map<String, String> resourcesUsed = new HashMap<String, String>();
+        for (Entry<String, String> attribute : attributes.entrySet()) {
+            if (attribute.getKey().startsWith(RESOURCES_USED)) {
+                resourcesUsed.put(attribute.getKey().substring(RESOURCES_USED.length()), attribute.getValue());
+            }
+        }
+        return resourcesUsed;
+    }
+
+    /**
+     * @return a finished job with the exit status and resources of an end record
+     */
+    public Job toFinishedJob() {
+        Job job = new Job();
+        job.setId(jobId);
+        job.setState("F");
+        job.setExitStatus(getExitStatus());
+        job.setResourcesUsed(getResourcesUsed());
+        job.setQueue(attributes.get("queue"));
+        job.setName(attributes.get("jobname"));
+        return job;
+    }
+
+}
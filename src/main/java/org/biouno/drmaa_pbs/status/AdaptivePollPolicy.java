@@ -0,0 +1,134 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.status;
+
+import java.util.Map;
+
+import org.biouno.drmaa_pbs.exec.Backoff;
+import org.biouno.drmaa_pbs.model.Job;
+import org.biouno.drmaa_pbs.parser.Utils;
+
+/**
+ * Decides when the status of a job being waited on is queried again.
+ *
+ * <p>
+ * Each time a job is found in the same state as before, the delay before its next query doubles, from the minimum
+ * interval up to the maximum interval, so that jobs queued or running for days are rarely queried. A state change
+ * resets the delay to the minimum interval. A running job is queried at least twice as often as its remaining
+ * walltime, given by {@code Walltime.Remaining} or computed from {@code Resource_List.walltime} and
+ * {@code resources_used.walltime}, so that it is seen soon after it reaches its limit. A job that is exiting is
+ * queried at the minimum interval.
+ * </p>
+ *
+ * <p>
+ * Delays are spread randomly by the jitter fraction, so that clients started together do not query the server
+ * together.
+ * </p>
+ *
+ * @author Bruno P. Kinoshita
+ * @since 0.3
+ */
+public class AdaptivePollPolicy {
+
+    private static final String WALLTIME = "walltime";
+    private static final String REMAINING = "Remaining";
+
+    private final long minInterval;
+    private final long maxInterval;
+    private final double jitter;
+
+    /**
+     * @param minIntervalMillis delay after a state change, in milliseconds
+     * @param maxIntervalMillis longest delay, in milliseconds
+     * @param jitter fraction of the delay by which it is randomly increased or decreased, between 0 and 1
+     */
+    public AdaptivePollPolicy(long minIntervalMillis, long maxIntervalMillis, double jitter) {
+        this.minInterval = Math.max(1L, minIntervalMillis);
+        this.maxInterval = Math.max(this.minInterval, maxIntervalMillis);
+        this.jitter = Math.max(0D, Math.min(1D, jitter));
+    }
+
+    /**
+     * @return the delay after a state change, in milliseconds
+     */
+    public long getMinInterval() {
+        return minInterval;
+    }
+
+    /**
+     * @return the longest delay, in milliseconds
+     */
+    public long getMaxInterval() {
+        return maxInterval;
+    }
+
+    /**
+     * @param job job, as last queried
+     * @param unchangedPolls number of consecutive queries that found the job in its current state, minus one
+     * @return milliseconds before the job is queried again
+     */
+    public long nextDelay(Job job, int unchangedPolls) {
+        String state = job.getState();
+        long delay;
+        if ("E".equals(state)) {
+            delay = minInterval;
+        } else {
+            delay = Backoff.exponential(minInterval, maxInterval, unchangedPolls);
+            if ("R".equals(state) || "B".equals(state)) {
+                long remaining = getRemainingWalltime(job);
+                if (remaining >= 0L) {
+                    delay = Math.min(delay, Math.max(minInterval, remaining * 1000L / 2L));
+                }
+            }
+        }
+        delay = Backoff.jitter(delay, jitter);
+        return Math.max(minInterval, Math.min(maxInterval, delay));
+    }
+
+    /**
+     * @param job job
+     * @return seconds the job may still run, or {@code -1} if unknown
+     */
+    static long getRemainingWalltime(Job job) {
+        Map<String, String> walltime = job.getWalltime();
+        if (walltime != null) {
+            long remaining = Utils.parseDuration(walltime.get(REMAINING));
+            if (remaining >= 0L) {
+                return remaining;
+            }
+        }
+        Map<String, String> requested = job.getResourceList();
+        Map<String, String> used = job.getResourcesUsed();
+        if (requested == null || used == null) {
+            return -1L;
+        }
+        long limit = Utils.parseDuration(requested.get(WALLTIME));
+        long elapsed = Utils.parseDuration(used.get(WALLTIME));
+        if (limit < 0L || elapsed < 0L) {
+            return -1L;
+        }
+        return Math.max(0L, limit - elapsed);
+    }
+
+}
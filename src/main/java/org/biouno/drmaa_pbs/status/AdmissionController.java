@@ -0,0 +1,644 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.status;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+import org.biouno.drmaa_pbs.exec.CommandExecutor;
+import org.biouno.drmaa_pbs.exec.CommandOutput;
+import org.biouno.drmaa_pbs.exec.ExecutionEngine;
+import org.biouno.drmaa_pbs.model.Queue;
+import org.biouno.drmaa_pbs.parser.ParseException;
+import org.biouno.drmaa_pbs.parser.QstatQueuesParser;
+import org.biouno.drmaa_pbs.parser.Utils;
+import org.ggf.drmaa.DeniedByDrmException;
+import org.ggf.drmaa.DrmaaException;
+import org.ggf.drmaa.InternalException;
+import org.ggf.drmaa.NoActiveSessionException;
+import org.ggf.drmaa.TryLaterException;
+
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.RuntimeIOException;
+
+/**
+ * Checks job submissions against the limits of their queue before they are sent, so that pbs_server does not have
+ * to process submissions it would reject, or that would exceed the number of jobs a user may run.
+ *
+ * <p>
+ * The queues are read with {@code qstat -Qf}, and read again once the snapshot is older than the refresh interval. A
+ * submission is denied if its queue is disabled, or if a resource it requests is over the {@code resources_max} of
+ * the queue. When the queue has a {@code max_user_run}, the active jobs of the user in the queue are counted: the ones
+ * listed by {@code qselect}, read again with the queues, and the ones this session submitted since. A submission that
+ * would exceed it is either held until a slot frees up, or rejected. Submissions to a queue that is unknown, or while
+ * the queues cannot be read, are admitted: the server still checks them.
+ * </p>
+ *
+ * <p>
+ * Held submissions do not block a thread. They wait in a list per queue, in submission order, and their futures are
+ * completed when a job of the session finishes, or when the queue and the jobs of the user, checked again every
+ * second while submissions are held, show a free slot.
+ * </p>
+ *
+ * @author Bruno P. Kinoshita
+ * @since 0.3
+ */
+public class AdmissionController {
+
+    private static final Logger LOGGER = Logger.getLogger(AdmissionController.class.getName());
+
+    private static final String COMMAND_QSTAT = "qstat";
+    private static final String COMMAND_QSELECT = "qselect";
+    private static final String RESOURCES_MAX = "resources_max.";
+    private static final Pattern SIZE = Pattern.compile("(?i)(\\d+)\\s*([kmgtp]?)(b|w)?");
+    private static final Pattern COUNT = Pattern.compile("(\\d+)(?::.*)?");
+    private static final long MAX_RECHECK_INTERVAL = 1000L;
+
+    /**
+     * A submission admitted to a queue, holding a slot of the queue until its job finishes.
+     */
+    public final class Ticket {
+
+        private final String queue;
+        private boolean open = true;
+
+        private Ticket(String queue) {
+            this.queue = queue;
+        }
+
+        /**
+         * @return the queue whose slot this ticket holds, or {@code null} if the queue has no limit of jobs
+         */
+        public String getQueue() {
+            return queue;
+        }
+
+        /**
+         * Hands the slot over to the submitted job, until it is {@link AdmissionController#finished(String) finished}.
+         *
+         * @param jobId job id
+         */
+        public void submitted(String jobId) {
+            if (queue == null) {
+                return;
+            }
+            synchronized (slots) {
+                if (open) {
+                    open = false;
+                    reserved.merge(queue, -1, Integer::sum);
+                    slots.computeIfAbsent(queue, k -> new HashSet<String>()).add(jobId);
+                }
+            }
+        }
+
+        /**
+         * Gives the slot back, when the job could not be submitted. Does nothing once the job was submitted.
+         */
+        public void cancel() {
+            if (queue == null) {
+                return;
+            }
+            synchronized (slots) {
+                if (!open) {
+                    return;
+                }
+                open = false;
+                reserved.merge(queue, -1, Integer::sum);
+            }
+            dispatch();
+        }
+
+    }
+
+    private final CommandExecutor executor;
+    private final ExecutionEngine engine;
+    private final long refreshNanos;
+    private final boolean hold;
+    private final Predicate<String> active;
+    private final QstatQueuesParser parser = new QstatQueuesParser();
+
+    private final Object refreshLock = new Object();
+    private volatile Map<String, Queue> queues;
+    private volatile long refreshedAt;
+
+    /**
+     * Jobs of the session holding a slot, by queue. Guarded by itself, like {@link #reserved}, {@link #userJobs},
+     * {@link #userJobsReadAt}, {@link #waiting} and {@link #closed}.
+     */
+    private final Map<String, Set<String>> slots = new HashMap<String, Set<String>>();
+    /**
+     * Slots of the submissions admitted but not submitted yet, by queue.
+     */
+    private final Map<String, Integer> reserved = new HashMap<String, Integer>();
+    /**
+     * Active jobs of the user, of this session or not, by queue, as last listed by qselect.
+     */
+    private final Map<String, Set<String>> userJobs = new HashMap<String, Set<String>>();
+    private final Map<String, Long> userJobsReadAt = new HashMap<String, Long>();
+    /**
+     * Held submissions, by queue, in submission order.
+     */
+    private final Map<String, Deque<CompletableFuture<Ticket>>> waiting =
+            new LinkedHashMap<String, Deque<CompletableFuture<Ticket>>>();
+    private boolean recheckScheduled = false;
+    private boolean closed = false;
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong held = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+
+    /**
+     * @param executor runs qstat and qselect
+     * @param engine checks the queues again while submissions are held
+     * @param refreshMillis age after which the queues and the jobs of the user are read again
+     * @param hold whether submissions over {@code max_user_run} wait, instead of failing with a
+     *            {@link TryLaterException}
+     * @param active tells whether a job holding a slot may still be active, e.g. whether the session still tracks it;
+     *            jobs for which it returns {@code false} give their slot back
+     */
+    public AdmissionController(CommandExecutor executor, ExecutionEngine engine, long refreshMillis, boolean hold,
+            Predicate<String> active) {
+        this.executor = executor;
+        this.engine = engine;
+        this.refreshNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, refreshMillis));
+        this.hold = hold;
+        this.active = active;
+    }
+
+    /**
+     * Admits a submission, waiting for a slot of its queue if needed.
+     *
+     * @param queueName queue of the job, or {@code null} if not known
+     * @param resources resources requested by the job, such as {@code walltime} or {@code mem}
+     * @return the ticket of the submission, to be told whether the job was submitted
+     * @throws DeniedByDrmException if the queue is disabled, or one of the resources is over its maximum
+     * @throws TryLaterException if the queue has no free slot, and submissions are not held
+     * @throws InterruptedException if interrupted while waiting for a slot
+     * @see #admitAsync(String, Map)
+     */
+    public Ticket admit(String queueName, Map<String, String> resources) throws DrmaaException, InterruptedException {
+        CompletableFuture<Ticket> future = admitAsync(queueName, resources);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DrmaaException) {
+                throw (DrmaaException) e.getCause();
+            }
+            throw new InternalException(e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Admits a submission without blocking while it is held. The queue and the jobs of the user are read first if
+     * they are stale.
+     *
+     * @param queueName queue of the job, or {@code null} if not known
+     * @param resources resources requested by the job, such as {@code walltime} or {@code mem}
+     * @return a future completed with the ticket of the submission once it is admitted, or exceptionally with a
+     *         {@link DeniedByDrmException} if the queue is disabled or one of the resources is over its maximum, with a
+     *         {@link TryLaterException} if the queue has no free slot and submissions are not held, or with a
+     *         {@link NoActiveSessionException} if the controller is closed while the submission is held. Cancelling
+     *         the future drops a held submission
+     * @throws InterruptedException if interrupted while reading the queue
+     */
+    public CompletableFuture<Ticket> admitAsync(String queueName, Map<String, String> resources)
+            throws InterruptedException {
+        Queue queue = queueName == null ? null : getQueue(queueName);
+        if (queue == null) {
+            admitted.incrementAndGet();
+            return CompletableFuture.completedFuture(new Ticket(null));
+        }
+        if (!queue.isEnabled()) {
+            rejected.incrementAndGet();
+            return failed(new DeniedByDrmException("Queue " + queueName + " is disabled"));
+        }
+        for (Entry<String, String> resource : resources.entrySet()) {
+            String max = queue.getResourcesMax().get(RESOURCES_MAX + resource.getKey().toLowerCase(Locale.ENGLISH));
+            if (max != null && exceeds(resource.getKey(), resource.getValue(), max)) {
+                rejected.incrementAndGet();
+                return failed(new DeniedByDrmException("Requested " + resource.getKey() + "=" + resource.getValue()
+                        + " exceeds resources_max." + resource.getKey() + "=" + max + " of queue " + queueName));
+            }
+        }
+        if (queue.getMaxUserRun() <= 0) {
+            admitted.incrementAndGet();
+            return CompletableFuture.completedFuture(new Ticket(null));
+        }
+        readUserJobs(queueName);
+        synchronized (slots) {
+            if (closed) {
+                return failed(new NoActiveSessionException("Admission controller closed"));
+            }
+            release();
+            Deque<CompletableFuture<Ticket>> waiters = waiting.get(queueName);
+            // a new submission does not overtake the held ones
+            if (waiters == null && hasSlot(queueName)) {
+                reserved.merge(queueName, 1, Integer::sum);
+                admitted.incrementAndGet();
+                return CompletableFuture.completedFuture(new Ticket(queueName));
+            }
+            if (!hold) {
+                rejected.incrementAndGet();
+                return failed(new TryLaterException("Queue " + queueName + " already has " + queue.getMaxUserRun()
+                        + " active jobs of this user, its max_user_run"));
+            }
+            held.incrementAndGet();
+            CompletableFuture<Ticket> future = new CompletableFuture<Ticket>();
+            if (waiters == null) {
+                waiters = new ArrayDeque<CompletableFuture<Ticket>>();
+                waiting.put(queueName, waiters);
+            }
+            waiters.add(future);
+            scheduleRecheck();
+            return future;
+        }
+    }
+
+    /**
+     * Gives back the slot of a job that finished.
+     *
+     * @param jobId job id
+     */
+    public void finished(String jobId) {
+        boolean released = false;
+        synchronized (slots) {
+            for (Set<String> jobIds : slots.values()) {
+                released |= jobIds.remove(jobId);
+            }
+            for (Set<String> jobIds : userJobs.values()) {
+                released |= jobIds.remove(jobId);
+            }
+        }
+        if (released) {
+            dispatch();
+        }
+    }
+
+    /**
+     * Fails the held submissions with a {@link NoActiveSessionException}, and stops checking the queues.
+     */
+    public void close() {
+        List<CompletableFuture<Ticket>> dropped = new ArrayList<CompletableFuture<Ticket>>();
+        synchronized (slots) {
+            closed = true;
+            for (Deque<CompletableFuture<Ticket>> waiters : waiting.values()) {
+                dropped.addAll(waiters);
+            }
+            waiting.clear();
+        }
+        for (CompletableFuture<Ticket> future : dropped) {
+            future.completeExceptionally(new NoActiveSessionException("Admission controller closed"));
+        }
+    }
+
+    /**
+     * @return the number of submissions held, waiting for a slot
+     */
+    public int getWaitingCount() {
+        synchronized (slots) {
+            int count = 0;
+            for (Deque<CompletableFuture<Ticket>> waiters : waiting.values()) {
+                count += waiters.size();
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Admits the held submissions for which a slot is free, in submission order.
+     */
+    private void dispatch() {
+        Map<CompletableFuture<Ticket>, String> ready = new LinkedHashMap<CompletableFuture<Ticket>, String>();
+        synchronized (slots) {
+            release();
+            for (Iterator<Entry<String, Deque<CompletableFuture<Ticket>>>> it = waiting.entrySet().iterator(); it
+                    .hasNext();) {
+                Entry<String, Deque<CompletableFuture<Ticket>>> entry = it.next();
+                Deque<CompletableFuture<Ticket>> waiters = entry.getValue();
+                while (!waiters.isEmpty()) {
+                    if (waiters.peekFirst().isDone()) {
+                        // cancelled
+                        waiters.pollFirst();
+                    } else if (hasSlot(entry.getKey())) {
+                        reserved.merge(entry.getKey(), 1, Integer::sum);
+                        ready.put(waiters.pollFirst(), entry.getKey());
+                    } else {
+                        break;
+                    }
+                }
+                if (waiters.isEmpty()) {
+                    it.remove();
+                }
+            }
+        }
+        // outside of the lock, as completing a future runs what depends on it
+        for (Entry<CompletableFuture<Ticket>, String> entry : ready.entrySet()) {
+            Ticket ticket = new Ticket(entry.getValue());
+            if (entry.getKey().complete(ticket)) {
+                admitted.incrementAndGet();
+            } else {
+                ticket.cancel();
+            }
+        }
+    }
+
+    /**
+     * Checks the queues again later, while submissions are held. Called with the lock held.
+     */
+    private void scheduleRecheck() {
+        if (recheckScheduled || closed || waiting.isEmpty()) {
+            return;
+        }
+        recheckScheduled = true;
+        long delay = Math.max(1L, Math.min(TimeUnit.NANOSECONDS.toMillis(refreshNanos), MAX_RECHECK_INTERVAL));
+        engine.schedule(() -> engine.submit(() -> {
+            recheck();
+            return null;
+        }), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reads the queues that have held submissions again if they are stale, and admits the ones for which a slot is
+     * now free.
+     */
+    private void recheck() throws InterruptedException {
+        List<String> queueNames;
+        synchronized (slots) {
+            recheckScheduled = false;
+            queueNames = new ArrayList<String>(waiting.keySet());
+        }
+        try {
+            for (String queueName : queueNames) {
+                getQueue(queueName);
+                readUserJobs(queueName);
+            }
+        } finally {
+            dispatch();
+            synchronized (slots) {
+                scheduleRecheck();
+            }
+        }
+    }
+
+    /**
+     * Gives back the slots of the jobs that are no longer active. Called with the lock held.
+     */
+    private void release() {
+        for (Set<String> jobIds : slots.values()) {
+            for (Iterator<String> it = jobIds.iterator(); it.hasNext();) {
+                if (!active.test(it.next())) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if the queue has a free slot for one more job of the user. Called with the lock held
+     */
+    private boolean hasSlot(String queueName) {
+        Queue queue = queues == null ? null : queues.get(queueName);
+        return queue == null || queue.getMaxUserRun() <= 0 || countSlots(queueName) < queue.getMaxUserRun();
+    }
+
+    private int countSlots(String queueName) {
+        Set<String> jobIds = slots.get(queueName);
+        Integer pending = reserved.get(queueName);
+        int count = (jobIds == null ? 0 : jobIds.size()) + (pending == null ? 0 : pending);
+        Set<String> others = userJobs.get(queueName);
+        if (others != null) {
+            for (String jobId : others) {
+                if (jobIds == null || !jobIds.contains(jobId)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Lists the active jobs of the user in a queue with qselect, if the last list is stale. The last list is kept if
+     * they cannot be listed.
+     */
+    private void readUserJobs(String queueName) throws InterruptedException {
+        synchronized (slots) {
+            Long readAt = userJobsReadAt.get(queueName);
+            if (readAt != null && System.nanoTime() - readAt < refreshNanos) {
+                return;
+            }
+            userJobsReadAt.put(queueName, System.nanoTime());
+        }
+        Set<String> jobIds = new HashSet<String>();
+        try {
+            CommandOutput output = executor.execute(CmdLine.build("sh", "-c",
+                    COMMAND_QSELECT + " -q '" + queueName.replace("'", "'\\''") + "' -u \"$(id -un)\""));
+            if (output.getExitValue() != 0) {
+                LOGGER.log(Level.FINE, "Cannot list the jobs of the user in queue " + queueName + ": "
+                        + output.getStderr());
+                return;
+            }
+            for (String line : output.getStdout().split("\\r?\\n")) {
+                if (StringUtils.isNotBlank(line)) {
+                    jobIds.add(line.trim());
+                }
+            }
+        } catch (RuntimeIOException e) {
+            LOGGER.log(Level.FINE, "Cannot list the jobs of the user in queue " + queueName, e);
+            return;
+        }
+        synchronized (slots) {
+            userJobs.put(queueName, jobIds);
+        }
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable t) {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        future.completeExceptionally(t);
+        return future;
+    }
+
+    /**
+     * @param queueName queue name
+     * @return the queue, read again if the snapshot is stale, or {@code null} if it is unknown
+     */
+    public Queue getQueue(String queueName) throws InterruptedException {
+        Map<String, Queue> snapshot = this.queues;
+        if (snapshot == null || System.nanoTime() - refreshedAt >= refreshNanos) {
+            synchronized (refreshLock) {
+                if (this.queues == null || System.nanoTime() - refreshedAt >= refreshNanos) {
+                    refresh();
+                }
+                snapshot = this.queues;
+            }
+        }
+        return snapshot.get(queueName);
+    }
+
+    /**
+     * Reads the queues. The previous snapshot is kept if they cannot be read.
+     */
+    private void refresh() throws InterruptedException {
+        refreshes.incrementAndGet();
+        refreshedAt = System.nanoTime();
+        try {
+            CommandOutput output = executor.execute(CmdLine.build(COMMAND_QSTAT, "-Qf"));
+            if (output.getExitValue() != 0) {
+                throw new ParseException("qstat exited with " + output.getExitValue() + ": " + output.getStderr());
+            }
+            Map<String, Queue> read = new LinkedHashMap<String, Queue>();
+            for (Queue queue : parser.parse(output.getStdout())) {
+                read.put(queue.getName(), queue);
+            }
+            this.queues = read;
+        } catch (ParseException | RuntimeIOException e) {
+            LOGGER.log(Level.WARNING, "Cannot read the PBS queues, submissions are checked against the last ones read",
+                    e);
+            if (this.queues == null) {
+                this.queues = Collections.emptyMap();
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if the requested value of a resource is known to be over its maximum
+     */
+    static boolean exceeds(String name, String requested, String max) {
+        String key = name.toLowerCase(Locale.ENGLISH);
+        long value;
+        long limit;
+        if ("walltime".equals(key) || "cput".equals(key) || "pcput".equals(key)) {
+            value = Utils.parseDuration(requested);
+            limit = Utils.parseDuration(max);
+        } else if (key.endsWith("mem") || "file".equals(key)) {
+            value = bytes(requested);
+            limit = bytes(max);
+        } else {
+            value = count(requested);
+            limit = count(max);
+        }
+        return value >= 0 && limit >= 0 && value > limit;
+    }
+
+    private static long bytes(String size) {
+        Matcher matcher = SIZE.matcher(size.trim());
+        if (!matcher.matches()) {
+            return -1L;
+        }
+        long value = Long.parseLong(matcher.group(1));
+        int shift = "kmgtp".indexOf(matcher.group(2).toLowerCase(Locale.ENGLISH)) + 1;
+        value <<= 10 * shift;
+        return "w".equalsIgnoreCase(matcher.group(3)) ? value * 8L : value;
+    }
+
+    private static long count(String count) {
+        Matcher matcher = COUNT.matcher(count.trim());
+        return matcher.matches() ? Long.parseLong(matcher.group(1)) : -1L;
+    }
+
+    /**
+     * @param nativeSpecification native specification of a job template, split on spaces
+     * @return the queue given with {@code -q}, without its server, or {@code null}
+     */
+    public static String queueOf(List<String> nativeSpecification) {
+        for (int i = 0; i < nativeSpecification.size() - 1; i++) {
+            if ("-q".equals(nativeSpecification.get(i))) {
+                return StringUtils.substringBefore(nativeSpecification.get(i + 1), "@");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param nativeSpecification native specification of a job template, split on spaces
+     * @return the resources requested with {@code -l name=value[,name=value]}
+     */
+    public static Map<String, String> resourcesOf(List<String> nativeSpecification) {
+        Map<String, String> resources = new LinkedHashMap<String, String>();
+        for (int i = 0; i < nativeSpecification.size() - 1; i++) {
+            if ("-l".equals(nativeSpecification.get(i))) {
+                for (String resource : nativeSpecification.get(i + 1).split(",")) {
+                    int equals = resource.indexOf('=');
+                    if (equals > 0) {
+                        resources.put(resource.substring(0, equals), resource.substring(equals + 1));
+                    }
+                }
+            }
+        }
+        return resources;
+    }
+
+    /**
+     * @return the number of submissions admitted
+     */
+    public long getAdmittedCount() {
+        return admitted.get();
+    }
+
+    /**
+     * @return the number of submissions that waited for a slot
+     */
+    public long getHeldCount() {
+        return held.get();
+    }
+
+    /**
+     * @return the number of submissions rejected before being sent
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the number of times the queues were read
+     */
+    public long getRefreshCount() {
+        return refreshes.get();
+    }
+
+}
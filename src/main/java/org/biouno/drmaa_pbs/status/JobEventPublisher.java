@@ -0,0 +1,241 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.status;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * A Reactive Streams {@link Publisher} of the job state changes of a session.
+ *
+ * <p>
+ * Each subscriber gets events only as fast as it requests them. While it has not requested more, the events of a job
+ * are conflated into one, from the state the subscriber last saw to the latest state, so that the events kept for a
+ * subscriber that falls behind are bounded by the number of jobs, and the status refresh is never held back.
+ * </p>
+ *
+ * <p>
+ * Events are delivered on the given executor, one at a time for each subscriber.
+ * </p>
+ *
+ * @author Bruno P. Kinoshita
+ * @since 0.3
+ */
+public class JobEventPublisher implements Publisher<JobStateEvent>, JobStateListener, Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(JobEventPublisher.class.getName());
+
+    /**
+     * A subscriber, what it requested and its pending events.
+     */
+    private final class JobEventSubscription implements Subscription, Runnable {
+
+        private final Subscriber<? super JobStateEvent> subscriber;
+        /**
+         * Pending events by job id, in arrival order. Guarded by this subscription.
+         */
+        private final Map<String, JobStateEvent> pending = new LinkedHashMap<String, JobStateEvent>();
+        private final AtomicLong requested = new AtomicLong();
+        /**
+         * Number of times a drain was asked for; only the caller that moves it from zero runs the drain.
+         */
+        private final AtomicInteger work = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile boolean completed;
+        private Throwable error;
+
+        private JobEventSubscription(Subscriber<? super JobStateEvent> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        private void offer(JobStateEvent event) {
+            synchronized (this) {
+                JobStateEvent previous = pending.get(event.getJobId());
+                if (previous != null) {
+                    conflated.incrementAndGet();
+                    event = new JobStateEvent(event.getJobId(), previous.getOldState(), event.getNewState(),
+                            event.getJob());
+                }
+                pending.put(event.getJobId(), event);
+            }
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0L) {
+                synchronized (this) {
+                    error = new IllegalArgumentException("Requested " + n + " events, must be positive");
+                }
+            } else {
+                long current;
+                do {
+                    current = requested.get();
+                } while (!requested.compareAndSet(current, current + n < 0L ? Long.MAX_VALUE : current + n));
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+            synchronized (this) {
+                pending.clear();
+            }
+        }
+
+        private void complete() {
+            completed = true;
+            drain();
+        }
+
+        private void drain() {
+            if (work.getAndIncrement() == 0) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    LOGGER.log(Level.FINE, "Could not deliver job events, the session has exited", e);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                while (!cancelled) {
+                    Throwable failure;
+                    JobStateEvent event = null;
+                    synchronized (this) {
+                        failure = error;
+                        if (failure == null && requested.get() > 0L && !pending.isEmpty()) {
+                            Iterator<JobStateEvent> it = pending.values().iterator();
+                            event = it.next();
+                            it.remove();
+                        }
+                    }
+                    if (failure != null) {
+                        cancel();
+                        subscriber.onError(failure);
+                    } else if (event != null) {
+                        if (requested.get() != Long.MAX_VALUE) {
+                            requested.decrementAndGet();
+                        }
+                        subscriber.onNext(event);
+                    } else if (completed) {
+                        cancel();
+                        subscriber.onComplete();
+                    } else {
+                        break;
+                    }
+                }
+                missed = work.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+    }
+
+    private final Executor executor;
+    private final Set<JobEventSubscription> subscriptions = ConcurrentHashMap.<JobEventSubscription> newKeySet();
+    private final AtomicLong conflated = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * @param executor delivers the events to the subscribers
+     */
+    public JobEventPublisher(Executor executor) {
+        this.executor = executor;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.reactivestreams.Publisher#subscribe(org.reactivestreams.Subscriber)
+     */
+    @Override
+    public void subscribe(Subscriber<? super JobStateEvent> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("Subscriber must not be null");
+        }
+        JobEventSubscription subscription = new JobEventSubscription(subscriber);
+        subscriptions.add(subscription);
+        subscriber.onSubscribe(subscription);
+        if (closed) {
+            subscription.complete();
+        }
+    }
+
+    /**
+     * Queues an event for every subscriber. Never blocks.
+     *
+     * @param event event
+     */
+    @Override
+    public void stateChanged(JobStateEvent event) {
+        for (JobEventSubscription subscription : subscriptions) {
+            subscription.offer(event);
+        }
+    }
+
+    /**
+     * @return the number of subscribers
+     */
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    /**
+     * @return the number of events merged into a pending event of the same job
+     */
+    public long getConflatedCount() {
+        return conflated.get();
+    }
+
+    /**
+     * Completes all the subscribers. Pending events they have not requested yet are discarded.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (JobEventSubscription subscription : subscriptions) {
+            subscription.complete();
+        }
+    }
+
+}
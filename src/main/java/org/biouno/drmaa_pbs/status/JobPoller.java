@@ -0,0 +1,497 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.status;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.biouno.drmaa_pbs.exec.Backoff;
+import org.biouno.drmaa_pbs.exec.ExecutionEngine;
+import org.biouno.drmaa_pbs.model.Job;
+import org.ggf.drmaa.ExitTimeoutException;
+import org.ggf.drmaa.InvalidJobException;
+import org.ggf.drmaa.NoActiveSessionException;
+
+/**
+ * Waits for jobs to finish on behalf of every caller of a session.
+ *
+ * <p>
+ * The poller keeps the jobs being waited on, and refreshes them with batched queries of the {@link StatusCache},
+ * whatever the number of waiters. Waiters whose job has reached the {@code F} or {@code X} state are then completed.
+ * </p>
+ *
+ * <p>
+ * Jobs can also be watched without waiting for them, e.g. for their state listeners. They are polled the same way
+ * until they finish.
+ * </p>
+ *
+ * <p>
+ * When each job is queried again is decided by an {@link AdaptivePollPolicy}. When a query is due, the jobs that are
+ * due within the minimum interval, or within half of their own delay, are queried with it, so that jobs on different
+ * schedules still share commands.
+ * </p>
+ *
+ * <p>
+ * The poller wakes up more often than it polls, every latency interval, so that a new waiter gets its first status,
+ * and an expired waiter its timeout, without waiting for its job next query. It keeps waking up while a query
+ * runs, only one query running at a time. No thread is held while there is nothing to wait on.
+ * </p>
+ *
+ * <p>
+ * A failed query is retried later, with a delay doubling from the minimum interval, and its waiters keep waiting.
+ * They only fail with the error after {@value #MAX_QUERY_FAILURES} consecutive failures.
+ * </p>
+ *
+ * <p>
+ * Deadlines are kept in a {@link TimerWheel} ticking at the latency interval, so a tick only looks at the waiters
+ * expiring in it, whatever the number of waiters. Waits without a deadline, and waits that are already expired, take
+ * no timer.
+ * </p>
+ *
+ * @author Bruno P. Kinoshita
+ * @since 0.3
+ */
+public class JobPoller implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(JobPoller.class.getName());
+
+    /**
+     * Number of consecutive failed queries after which the waiters of the jobs queried fail.
+     */
+    public static final int MAX_QUERY_FAILURES = 5;
+
+    /**
+     * A caller waiting for a job.
+     */
+    private static final class Waiter {
+
+        private final String jobId;
+        private final CompletableFuture<Job> future = new CompletableFuture<Job>();
+        /**
+         * Whether the job status was queried since this waiter was added. A waiter only times out once it has been.
+         */
+        private volatile boolean checked;
+        /**
+         * Whether the deadline passed before the job status was queried. The waiter times out once it has been.
+         */
+        private volatile boolean expired;
+        private volatile TimerWheel.Timer<Waiter> timer;
+
+        private Waiter(String jobId) {
+            this.jobId = jobId;
+        }
+
+    }
+
+    /**
+     * When a job being waited on is queried next. Only accessed while holding the poller lock.
+     */
+    private static final class Schedule {
+
+        /**
+         * Milliseconds since the epoch, zero to query the job at the next tick.
+         */
+        private long nextPoll;
+        private long delay;
+        private int unchangedPolls;
+        private String lastState;
+
+    }
+
+    private final StatusCache cache;
+    private final ExecutionEngine engine;
+    private final AdaptivePollPolicy policy;
+    private final long latency;
+
+    private final Set<Waiter> waiters = ConcurrentHashMap.<Waiter> newKeySet();
+    private final Set<String> watched = ConcurrentHashMap.<String> newKeySet();
+    private final Map<String, Schedule> schedules = new HashMap<String, Schedule>();
+    private final TimerWheel<Waiter> deadlines;
+    /**
+     * Whether a tick is scheduled or running.
+     */
+    private final AtomicBoolean ticking = new AtomicBoolean();
+    /**
+     * Whether a query is running. Guarded by the poller lock, like the count of consecutive failed queries.
+     */
+    private boolean querying;
+    private int failures;
+    private volatile boolean closed;
+
+    /**
+     * @param cache cache used to query the job statuses
+     * @param engine engine running the queries and scheduling the ticks
+     * @param policy decides when each job is queried
+     * @param latencyMillis maximum milliseconds before a new waiter is checked, or an expired one times out
+     */
+    public JobPoller(StatusCache cache, ExecutionEngine engine, AdaptivePollPolicy policy, long latencyMillis) {
+        this.cache = cache;
+        this.engine = engine;
+        this.policy = policy;
+        this.latency = Math.max(1L, Math.min(latencyMillis, policy.getMinInterval()));
+        this.deadlines = new TimerWheel<Waiter>(latency, System.currentTimeMillis());
+    }
+
+    /**
+     * Waits for a job to finish.
+     *
+     * @param jobId job id
+     * @param deadline milliseconds since the epoch after which the wait fails, or {@link Long#MAX_VALUE} to wait
+     *            forever
+     * @return a future completed with the finished job, or exceptionally with an {@link ExitTimeoutException} if it
+     *         has not finished by the deadline, or an {@link InvalidJobException} if it is unknown
+     */
+    public CompletableFuture<Job> await(String jobId, long deadline) {
+        return awaitAll(Collections.singletonList(jobId), deadline).get(0);
+    }
+
+    /**
+     * Waits for several jobs to finish. All the jobs are part of the same first query.
+     *
+     * @param jobIds job ids
+     * @param deadline milliseconds since the epoch after which the waits fail, or {@link Long#MAX_VALUE} to wait
+     *            forever
+     * @return one future per job, in the same order, completed as in {@link #await(String, long)}
+     */
+    public List<CompletableFuture<Job>> awaitAll(Collection<String> jobIds, long deadline) {
+        List<CompletableFuture<Job>> futures = new ArrayList<CompletableFuture<Job>>(jobIds.size());
+        List<Waiter> added = new ArrayList<Waiter>(jobIds.size());
+        boolean expired = deadline <= System.currentTimeMillis();
+        for (String jobId : jobIds) {
+            Waiter waiter = new Waiter(jobId);
+            futures.add(waiter.future);
+            Job known = cache.peek(jobId);
+            if (closed) {
+                waiter.future.completeExceptionally(new NoActiveSessionException("Session exited"));
+            } else if (known != null && StatusCache.isFinished(known)) {
+                waiter.future.complete(known);
+            } else if (known != null && expired) {
+                // a job already known may not be queried again soon, but the waiter can time out right away
+                waiter.future.completeExceptionally(new ExitTimeoutException("Timed out waiting for job " + jobId));
+            } else {
+                waiter.checked = known != null;
+                waiter.expired = expired;
+                added.add(waiter);
+            }
+        }
+        if (!added.isEmpty()) {
+            waiters.addAll(added);
+            if (!expired && deadline != Long.MAX_VALUE) {
+                // only once added, so that a timer expiring right away finds its waiter
+                for (Waiter waiter : added) {
+                    waiter.timer = deadlines.schedule(waiter, deadline);
+                }
+            }
+            startTicking();
+        }
+        return futures;
+    }
+
+    /**
+     * Completes the waits on a job known to have finished without querying it, e.g. from the accounting log.
+     *
+     * @param job finished job
+     */
+    public void finished(Job job) {
+        cache.update(job);
+        for (Waiter waiter : waiters) {
+            if (waiter.jobId.equals(job.getId())) {
+                complete(waiter, job, null);
+            }
+        }
+    }
+
+    /**
+     * Polls jobs until they finish, without waiting for them.
+     *
+     * @param jobIds job ids
+     */
+    public void watch(Collection<String> jobIds) {
+        if (closed) {
+            return;
+        }
+        boolean added = false;
+        for (String jobId : jobIds) {
+            Job known = cache.peek(jobId);
+            if (known == null || !StatusCache.isFinished(known)) {
+                added |= watched.add(jobId);
+            }
+        }
+        if (added) {
+            startTicking();
+        }
+    }
+
+    /**
+     * Stops polling jobs that were watched. Jobs also being waited on are still polled.
+     *
+     * @param jobIds job ids
+     */
+    public void unwatch(Collection<String> jobIds) {
+        watched.removeAll(jobIds);
+    }
+
+    /**
+     * @return the ids of the jobs watched
+     */
+    public Set<String> getWatchedJobIds() {
+        return Collections.unmodifiableSet(watched);
+    }
+
+    /**
+     * @return the number of callers waiting
+     */
+    public int getWaiterCount() {
+        return waiters.size();
+    }
+
+    private void startTicking() {
+        if (!closed && ticking.compareAndSet(false, true)) {
+            engine.schedule(this::tick, 0L, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Runs on the engine scheduler, so it must not block: the query itself is submitted to the engine.
+     */
+    private synchronized void tick() {
+        if (closed) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        deadlines.advance(now, this::expire);
+        final List<Waiter> polled = new ArrayList<Waiter>();
+        final Set<String> jobIds = new LinkedHashSet<String>();
+        boolean due = false;
+        for (String jobId : getPolledJobIds()) {
+            Schedule schedule = schedules.get(jobId);
+            if (schedule == null) {
+                schedule = new Schedule();
+                schedules.put(jobId, schedule);
+            }
+            due |= schedule.nextPoll <= now;
+            if (schedule.nextPoll <= now + Math.max(policy.getMinInterval(), schedule.delay / 2L)) {
+                jobIds.add(jobId);
+            }
+        }
+        for (Waiter waiter : waiters) {
+            if (jobIds.contains(waiter.jobId)) {
+                polled.add(waiter);
+            }
+        }
+        if (due && !querying) {
+            querying = true;
+            engine.submit(() -> {
+                cache.refresh(jobIds);
+                return null;
+            }).whenComplete((result, error) -> queried(polled, jobIds, error));
+        }
+        scheduleNextTick();
+    }
+
+    /**
+     * Dispatches the outcome of a query. A failed query is retried later, its waiters only failing once the
+     * queries failed {@value #MAX_QUERY_FAILURES} times in a row.
+     *
+     * @param polled waiters whose job was queried
+     * @param jobIds jobs queried
+     * @param error what the query failed with, if it did
+     */
+    private synchronized void queried(List<Waiter> polled, Set<String> jobIds, Throwable error) {
+        querying = false;
+        if (closed) {
+            return;
+        }
+        for (Waiter waiter : polled) {
+            waiter.checked = true;
+        }
+        if (error == null) {
+            failures = 0;
+            reschedule(jobIds);
+            dispatch(polled, jobIds, null);
+            return;
+        }
+        failures++;
+        long now = System.currentTimeMillis();
+        long delay = Backoff.exponential(policy.getMinInterval(), policy.getMaxInterval(), failures - 1);
+        for (String jobId : jobIds) {
+            schedules.get(jobId).nextPoll = now + delay;
+        }
+        if (failures < MAX_QUERY_FAILURES) {
+            LOGGER.log(Level.WARNING, "Could not query the status of " + jobIds.size() + " jobs, retrying in "
+                    + delay + " ms", error);
+            for (Waiter waiter : polled) {
+                if (waiter.expired) {
+                    complete(waiter, null, new ExitTimeoutException("Timed out waiting for job " + waiter.jobId));
+                }
+            }
+        } else {
+            failures = 0;
+            dispatch(polled, jobIds, error);
+        }
+    }
+
+    /**
+     * @return the ids of the jobs waited on or watched
+     */
+    private Set<String> getPolledJobIds() {
+        Set<String> jobIds = new LinkedHashSet<String>();
+        for (Waiter waiter : waiters) {
+            jobIds.add(waiter.jobId);
+        }
+        jobIds.addAll(watched);
+        return jobIds;
+    }
+
+    /**
+     * Decides when the jobs just queried are queried next.
+     *
+     * @param jobIds jobs just queried
+     */
+    private void reschedule(Set<String> jobIds) {
+        long now = System.currentTimeMillis();
+        for (String jobId : jobIds) {
+            Schedule schedule = schedules.get(jobId);
+            Job job = cache.peek(jobId);
+            if (job == null) {
+                schedule.nextPoll = now + policy.getMinInterval();
+                continue;
+            }
+            if (job.getState() != null && job.getState().equals(schedule.lastState)) {
+                schedule.unchangedPolls++;
+            } else {
+                schedule.unchangedPolls = 0;
+                schedule.lastState = job.getState();
+            }
+            schedule.delay = policy.nextDelay(job, schedule.unchangedPolls);
+            schedule.nextPoll = now + schedule.delay;
+        }
+    }
+
+    /**
+     * Completes the waiters whose job was just queried and has finished, is unknown, or whose deadline has passed,
+     * and stops watching the jobs that finished or are unknown.
+     *
+     * @param polled waiters whose job was just queried
+     * @param jobIds jobs just queried
+     * @param error what the query failed with, if it did
+     */
+    private void dispatch(List<Waiter> polled, Set<String> jobIds, Throwable error) {
+        for (Waiter waiter : polled) {
+            Job job = cache.peek(waiter.jobId);
+            if (error != null) {
+                complete(waiter, null, error);
+            } else if (job == null) {
+                complete(waiter, null, new InvalidJobException("Couldn't locate job " + waiter.jobId));
+            } else if (StatusCache.isFinished(job)) {
+                complete(waiter, job, null);
+            } else if (waiter.expired) {
+                complete(waiter, null, new ExitTimeoutException("Timed out waiting for job " + waiter.jobId));
+            }
+        }
+        for (Iterator<String> it = watched.iterator(); it.hasNext();) {
+            String jobId = it.next();
+            Job job = cache.peek(jobId);
+            if (job == null ? error == null && jobIds.contains(jobId) : StatusCache.isFinished(job)) {
+                it.remove();
+            }
+        }
+        schedules.keySet().retainAll(getPolledJobIds());
+    }
+
+    /**
+     * Times out a waiter whose deadline has passed, or marks it to time out once its job has been queried.
+     *
+     * @param waiter waiter
+     */
+    private void expire(Waiter waiter) {
+        waiter.timer = null;
+        if (waiter.checked) {
+            complete(waiter, null, new ExitTimeoutException("Timed out waiting for job " + waiter.jobId));
+        } else {
+            waiter.expired = true;
+        }
+    }
+
+    private void complete(Waiter waiter, Job job, Throwable error) {
+        if (!waiters.remove(waiter)) {
+            return;
+        }
+        TimerWheel.Timer<Waiter> timer = waiter.timer;
+        if (timer != null) {
+            timer.cancel();
+        }
+        if (error != null) {
+            waiter.future.completeExceptionally(error);
+        } else {
+            waiter.future.complete(job);
+        }
+    }
+
+    private void scheduleNextTick() {
+        if (closed) {
+            return;
+        }
+        if (waiters.isEmpty() && watched.isEmpty()) {
+            ticking.set(false);
+            // a job may have been added after the check above, while ticking was still set
+            if ((waiters.isEmpty() && watched.isEmpty()) || !ticking.compareAndSet(false, true)) {
+                return;
+            }
+        }
+        try {
+            engine.schedule(this::tick, latency, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.FINE, "Could not schedule the next poll, the session has exited", e);
+        }
+    }
+
+    /**
+     * Stops polling. Callers still waiting fail with a {@link NoActiveSessionException}.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        watched.clear();
+        deadlines.clear();
+        for (Waiter waiter : new ArrayList<Waiter>(waiters)) {
+            complete(waiter, null, new NoActiveSessionException("Session exited"));
+        }
+    }
+
+}
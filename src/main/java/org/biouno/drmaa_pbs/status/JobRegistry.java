@@ -0,0 +1,516 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.status;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The jobs of a session, and the last state read for each of them, kept in a compact form.
+ *
+ * <p>
+ * PBS job ids look like {@code 12345.server}. The number is kept as a {@code long} in an open addressing hash table,
+ * and the server suffix is interned, so that a job costs a few bytes in parallel primitive arrays instead of a
+ * {@link String} key, a boxed value and a map entry. The sub-jobs of an array job ({@code 123[4].server}) are kept
+ * as the set of their indexes under the id of the array ({@code 123[].server}), with their states in arrays indexed
+ * the same way. Ids of another form, such as the array jobs themselves, are kept in a regular map.
+ * </p>
+ *
+ * <p>
+ * States are the one letter PBS states, {@code Q}, {@code R}, {@code F}, etc. The exit status of a job is kept with
+ * its state, so that a finished job can be answered for without keeping its full status. The registry is thread
+ * safe.
+ * </p>
+ *
+ * @author Bruno P. Kinoshita
+ * @since 0.3
+ */
+public class JobRegistry {
+
+    private static final long EMPTY = -1L;
+    private static final long REMOVED = -2L;
+    private static final char NO_STATE = 0;
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * A job whose id is not a number and a server suffix.
+     */
+    private static final class Other {
+
+        private char state = NO_STATE;
+        private int exitStatus;
+
+    }
+
+    /**
+     * The sub-jobs of an array job.
+     */
+    private static final class ArrayJob {
+
+        /**
+         * Id before the index, e.g. {@code 123[}.
+         */
+        private final String prefix;
+        /**
+         * Id after the index, e.g. {@code ].server}.
+         */
+        private final String suffix;
+        private final BitSet indexes = new BitSet();
+        private char[] states = new char[0];
+        private int[] exitStatuses = new int[0];
+
+        private ArrayJob(String prefix, String suffix) {
+            this.prefix = prefix;
+            this.suffix = suffix;
+        }
+
+        private void ensureCapacity(int index) {
+            if (index >= states.length) {
+                int capacity = (int) Math.min(Integer.MAX_VALUE, Math.max(index + 1L, states.length * 2L));
+                states = Arrays.copyOf(states, capacity);
+                exitStatuses = Arrays.copyOf(exitStatuses, capacity);
+            }
+        }
+
+        private boolean contains(int index) {
+            return indexes.get(index);
+        }
+
+    }
+
+    /**
+     * Job numbers, {@link #EMPTY} or {@link #REMOVED}.
+     */
+    private long[] numbers;
+    /**
+     * Index of the server suffix of each job in {@link #servers}.
+     */
+    private short[] serverIndexes;
+    /**
+     * Last state read for each job, or {@link #NO_STATE}.
+     */
+    private char[] states;
+    /**
+     * Exit status of each job, once it has finished.
+     */
+    private int[] exitStatuses;
+    /**
+     * Slots that are not {@link #EMPTY}, including the {@link #REMOVED} ones.
+     */
+    private int used;
+    private int size;
+
+    private final List<String> servers = new ArrayList<String>();
+    private final Map<String, Short> serverIndex = new HashMap<String, Short>();
+    /**
+     * Sub-jobs, by id of their array job.
+     */
+    private final Map<String, ArrayJob> arrays = new HashMap<String, ArrayJob>();
+    private int subJobs;
+    /**
+     * Jobs whose id is neither a number and a server suffix nor a sub-job.
+     */
+    private final Map<String, Other> others = new HashMap<String, Other>();
+
+    public JobRegistry() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param jobId job id
+     * @return {@code true} if the job was not registered yet
+     */
+    public synchronized boolean add(String jobId) {
+        int index = subJobIndex(jobId);
+        if (index >= 0) {
+            String arrayId = arrayId(jobId);
+            ArrayJob array = arrays.get(arrayId);
+            if (array == null) {
+                int open = jobId.indexOf('[');
+                array = new ArrayJob(jobId.substring(0, open + 1), jobId.substring(jobId.indexOf(']', open)));
+                arrays.put(arrayId, array);
+            } else if (array.contains(index)) {
+                return false;
+            }
+            array.ensureCapacity(index);
+            array.indexes.set(index);
+            array.states[index] = NO_STATE;
+            array.exitStatuses[index] = 0;
+            subJobs++;
+            return true;
+        }
+        int dot = numberEnd(jobId);
+        if (dot < 0) {
+            if (others.containsKey(jobId)) {
+                return false;
+            }
+            others.put(jobId, new Other());
+            return true;
+        }
+        long number = Long.parseLong(jobId.substring(0, dot));
+        short server = intern(jobId.substring(dot + 1));
+        if (find(number, server) >= 0) {
+            return false;
+        }
+        if ((used + 1) * 2 > numbers.length) {
+            rehash(size + 1 > numbers.length / 4 ? numbers.length * 2 : numbers.length);
+        }
+        int slot = slot(number, server);
+        while (numbers[slot] >= 0L) {
+            slot = (slot + 1) & (numbers.length - 1);
+        }
+        if (numbers[slot] == EMPTY) {
+            used++;
+        }
+        numbers[slot] = number;
+        serverIndexes[slot] = server;
+        states[slot] = NO_STATE;
+        exitStatuses[slot] = 0;
+        size++;
+        return true;
+    }
+
+    /**
+     * @param jobId job id
+     * @return {@code true} if the job was registered
+     */
+    public synchronized boolean remove(String jobId) {
+        int index = subJobIndex(jobId);
+        if (index >= 0) {
+            String arrayId = arrayId(jobId);
+            ArrayJob array = arrays.get(arrayId);
+            if (array == null || !array.contains(index)) {
+                return false;
+            }
+            array.indexes.clear(index);
+            subJobs--;
+            if (array.indexes.isEmpty()) {
+                arrays.remove(arrayId);
+            }
+            return true;
+        }
+        int slot = find(jobId);
+        if (slot == -1) {
+            return false;
+        }
+        if (slot == -2) {
+            others.remove(jobId);
+            return true;
+        }
+        numbers[slot] = REMOVED;
+        states[slot] = NO_STATE;
+        size--;
+        return true;
+    }
+
+    /**
+     * @param jobId job id
+     * @return {@code true} if the job is registered
+     */
+    public synchronized boolean contains(String jobId) {
+        int index = subJobIndex(jobId);
+        if (index >= 0) {
+            ArrayJob array = arrays.get(arrayId(jobId));
+            return array != null && array.contains(index);
+        }
+        return find(jobId) != -1;
+    }
+
+    /**
+     * Records the state of a registered job.
+     *
+     * @param jobId job id
+     * @param state one letter state
+     * @return the previous state, or {@code null} if none was recorded or the job is not registered
+     */
+    public synchronized String setState(String jobId, String state) {
+        char newState = state == null || state.length() != 1 ? NO_STATE : state.charAt(0);
+        char oldState;
+        int index = subJobIndex(jobId);
+        if (index >= 0) {
+            ArrayJob array = arrays.get(arrayId(jobId));
+            if (array == null || !array.contains(index)) {
+                return null;
+            }
+            oldState = array.states[index];
+            array.states[index] = newState;
+        } else {
+            int slot = find(jobId);
+            if (slot == -1) {
+                return null;
+            } else if (slot == -2) {
+                Other other = others.get(jobId);
+                oldState = other.state;
+                other.state = newState;
+            } else {
+                oldState = states[slot];
+                states[slot] = newState;
+            }
+        }
+        return oldState == NO_STATE ? null : String.valueOf(oldState);
+    }
+
+    /**
+     * @param jobId job id
+     * @return the last state recorded, or {@code null} if none was or the job is not registered
+     */
+    public synchronized String getState(String jobId) {
+        char state = NO_STATE;
+        int index = subJobIndex(jobId);
+        if (index >= 0) {
+            ArrayJob array = arrays.get(arrayId(jobId));
+            if (array != null && array.contains(index)) {
+                state = array.states[index];
+            }
+        } else {
+            int slot = find(jobId);
+            state = slot == -1 ? NO_STATE : slot == -2 ? others.get(jobId).state : states[slot];
+        }
+        return state == NO_STATE ? null : String.valueOf(state);
+    }
+
+    /**
+     * Records the exit status of a registered job.
+     *
+     * @param jobId job id
+     * @param exitStatus exit status
+     * @return {@code true} if the job is registered
+     */
+    public synchronized boolean setExitStatus(String jobId, int exitStatus) {
+        int index = subJobIndex(jobId);
+        if (index >= 0) {
+            ArrayJob array = arrays.get(arrayId(jobId));
+            if (array == null || !array.contains(index)) {
+                return false;
+            }
+            array.exitStatuses[index] = exitStatus;
+            return true;
+        }
+        int slot = find(jobId);
+        if (slot == -1) {
+            return false;
+        } else if (slot == -2) {
+            others.get(jobId).exitStatus = exitStatus;
+        } else {
+            exitStatuses[slot] = exitStatus;
+        }
+        return true;
+    }
+
+    /**
+     * @param jobId job id
+     * @return the exit status recorded, or {@code 0} if none was or the job is not registered
+     */
+    public synchronized int getExitStatus(String jobId) {
+        int index = subJobIndex(jobId);
+        if (index >= 0) {
+            ArrayJob array = arrays.get(arrayId(jobId));
+            return array != null && array.contains(index) ? array.exitStatuses[index] : 0;
+        }
+        int slot = find(jobId);
+        return slot == -1 ? 0 : slot == -2 ? others.get(jobId).exitStatus : exitStatuses[slot];
+    }
+
+    /**
+     * @return the number of jobs registered
+     */
+    public synchronized int size() {
+        return size + subJobs + others.size();
+    }
+
+    /**
+     * @return the ids of the jobs registered, rebuilt from their number and server
+     */
+    public synchronized List<String> getJobIds() {
+        return jobIds(false);
+    }
+
+    /**
+     * @return the ids of the jobs registered that are not finished, i.e. not in state {@code F} or {@code X}. The ids
+     *         of the finished jobs are not rebuilt
+     */
+    public synchronized List<String> getUnfinishedJobIds() {
+        return jobIds(true);
+    }
+
+    /**
+     * Unregisters all the jobs.
+     */
+    public synchronized void clear() {
+        allocate(INITIAL_CAPACITY);
+        used = 0;
+        size = 0;
+        arrays.clear();
+        subJobs = 0;
+        others.clear();
+    }
+
+    private List<String> jobIds(boolean unfinished) {
+        List<String> jobIds = new ArrayList<String>();
+        for (int slot = 0; slot < numbers.length; slot++) {
+            if (numbers[slot] >= 0L && !(unfinished && isFinished(states[slot]))) {
+                jobIds.add(numbers[slot] + "." + servers.get(serverIndexes[slot]));
+            }
+        }
+        for (ArrayJob array : arrays.values()) {
+            for (int index = array.indexes.nextSetBit(0); index >= 0; index = array.indexes.nextSetBit(index + 1)) {
+                if (!(unfinished && isFinished(array.states[index]))) {
+                    jobIds.add(array.prefix + index + array.suffix);
+                }
+            }
+        }
+        for (Map.Entry<String, Other> other : others.entrySet()) {
+            if (!(unfinished && isFinished(other.getValue().state))) {
+                jobIds.add(other.getKey());
+            }
+        }
+        return jobIds;
+    }
+
+    private static boolean isFinished(char state) {
+        return state == 'F' || state == 'X';
+    }
+
+    /**
+     * @return the slot of a job, {@code -2} if it is one of the {@link #others}, or {@code -1} if it is not registered
+     */
+    private int find(String jobId) {
+        int dot = numberEnd(jobId);
+        if (dot < 0) {
+            return others.containsKey(jobId) ? -2 : -1;
+        }
+        Short server = serverIndex.get(jobId.substring(dot + 1));
+        return server == null ? -1 : find(Long.parseLong(jobId.substring(0, dot)), server);
+    }
+
+    private int find(long number, short server) {
+        int slot = slot(number, server);
+        while (numbers[slot] != EMPTY) {
+            if (numbers[slot] == number && serverIndexes[slot] == server) {
+                return slot;
+            }
+            slot = (slot + 1) & (numbers.length - 1);
+        }
+        return -1;
+    }
+
+    private int slot(long number, short server) {
+        long hash = (number * 31L + server) * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & (numbers.length - 1);
+    }
+
+    private short intern(String server) {
+        Short index = serverIndex.get(server);
+        if (index == null) {
+            if (servers.size() > Short.MAX_VALUE) {
+                throw new IllegalStateException("Too many PBS servers: " + servers.size());
+            }
+            index = (short) servers.size();
+            servers.add(server);
+            serverIndex.put(server, index);
+        }
+        return index;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldNumbers = numbers;
+        short[] oldServers = serverIndexes;
+        char[] oldStates = states;
+        int[] oldExitStatuses = exitStatuses;
+        allocate(capacity);
+        used = 0;
+        for (int i = 0; i < oldNumbers.length; i++) {
+            if (oldNumbers[i] >= 0L) {
+                int slot = slot(oldNumbers[i], oldServers[i]);
+                while (numbers[slot] != EMPTY) {
+                    slot = (slot + 1) & (numbers.length - 1);
+                }
+                numbers[slot] = oldNumbers[i];
+                serverIndexes[slot] = oldServers[i];
+                states[slot] = oldStates[i];
+                exitStatuses[slot] = oldExitStatuses[i];
+                used++;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        numbers = new long[capacity];
+        Arrays.fill(numbers, EMPTY);
+        serverIndexes = new short[capacity];
+        states = new char[capacity];
+        exitStatuses = new int[capacity];
+    }
+
+    /**
+     * @return the index of the dot after the job number, or {@code -1} if the id is not a number and a server
+     */
+    private static int numberEnd(String jobId) {
+        int dot = jobId.indexOf('.');
+        // at most 18 digits, so that the number fits in a long
+        if (dot <= 0 || dot > 18 || dot == jobId.length() - 1 || (dot > 1 && jobId.charAt(0) == '0')) {
+            return -1;
+        }
+        for (int i = 0; i < dot; i++) {
+            char c = jobId.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+        }
+        return dot;
+    }
+
+    /**
+     * @return the index of a sub-job id such as {@code 123[4].server}, or {@code -1} if the id is not one
+     */
+    private static int subJobIndex(String jobId) {
+        int open = jobId.indexOf('[');
+        int close = open < 0 ? -1 : jobId.indexOf(']', open);
+        // at most 9 digits, so that the index fits in an int
+        if (open <= 0 || close <= open + 1 || close > open + 10
+                || (close > open + 2 && jobId.charAt(open + 1) == '0')) {
+            return -1;
+        }
+        for (int i = open + 1; i < close; i++) {
+            char c = jobId.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+        }
+        return Integer.parseInt(jobId.substring(open + 1, close));
+    }
+
+    /**
+     * @return the id of the array job of a sub-job, e.g. {@code 123[].server} for {@code 123[4].server}
+     */
+    private static String arrayId(String jobId) {
+        int open = jobId.indexOf('[');
+        return jobId.substring(0, open + 1) + jobId.substring(jobId.indexOf(']', open));
+    }
+
+}
@@ -0,0 +1,227 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.status;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Delivers the job state changes read by a {@link StatusCache} to the registered {@link JobStateListener}s.
+ *
+ * <p>
+ * Each listener has its own bounded queue, drained on a few delivery threads, so the status refresh only ever adds
+ * events to queues. When a listener is too slow and its queue is full, its oldest event is dropped, and counted.
+ * </p>
+ *
+ * @author Bruno P. Kinoshita
+ * @since 0.3
+ */
+public class JobStateDispatcher implements JobStateListener, Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(JobStateDispatcher.class.getName());
+
+    /**
+     * A listener, the jobs it listens to and its pending events.
+     */
+    private final class Registration implements Runnable {
+
+        private final JobStateListener listener;
+        /**
+         * Job ids, or {@code null} for all the jobs.
+         */
+        private final Set<String> jobIds;
+        private final BlockingQueue<JobStateEvent> queue;
+        /**
+         * Whether a delivery task is queued or running for this listener.
+         */
+        private final AtomicBoolean delivering = new AtomicBoolean();
+
+        private Registration(JobStateListener listener, Set<String> jobIds) {
+            this.listener = listener;
+            this.jobIds = jobIds;
+            this.queue = new ArrayBlockingQueue<JobStateEvent>(queueSize);
+        }
+
+        private boolean accepts(String jobId) {
+            return jobIds == null || jobIds.contains(jobId);
+        }
+
+        private void offer(JobStateEvent event) {
+            while (!queue.offer(event)) {
+                if (queue.poll() != null) {
+                    dropped.incrementAndGet();
+                    LOGGER.log(Level.FINE, "Dropped an event of a slow job state listener");
+                }
+            }
+            if (!closed && delivering.compareAndSet(false, true)) {
+                try {
+                    deliverer.execute(this);
+                } catch (RejectedExecutionException e) {
+                    LOGGER.log(Level.FINE, "Could not deliver a job state event, the dispatcher is closed", e);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            do {
+                JobStateEvent event;
+                while (!closed && (event = queue.poll()) != null) {
+                    try {
+                        listener.stateChanged(event);
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.WARNING, "Job state listener failed on " + event, e);
+                    }
+                }
+                delivering.set(false);
+                // an event may have been queued after the last poll, while delivering was still set
+            } while (!closed && !queue.isEmpty() && delivering.compareAndSet(false, true));
+        }
+
+    }
+
+    private final int queueSize;
+    private final Set<Registration> registrations = ConcurrentHashMap.<Registration> newKeySet();
+    private final ExecutorService deliverer;
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * @param queueSize maximum number of events waiting to be delivered to one listener
+     * @param threads number of threads calling the listeners
+     */
+    public JobStateDispatcher(int queueSize, int threads) {
+        this.queueSize = Math.max(1, queueSize);
+        final AtomicInteger count = new AtomicInteger();
+        int poolSize = Math.max(1, threads);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(poolSize, poolSize, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), r -> {
+                    Thread thread = new Thread(r, "drmaa-pbs-listener-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        this.deliverer = pool;
+    }
+
+    /**
+     * Registers a listener.
+     *
+     * @param listener listener
+     * @param jobIds ids of the jobs to listen to, or {@code null} to listen to all the jobs
+     */
+    public void addListener(JobStateListener listener, Collection<String> jobIds) {
+        registrations.add(new Registration(listener,
+                jobIds == null ? null : Collections.unmodifiableSet(new HashSet<String>(jobIds))));
+    }
+
+    /**
+     * Unregisters a listener. Events already queued for it are discarded.
+     *
+     * @param listener listener
+     * @return {@code true} if the listener was registered
+     */
+    public boolean removeListener(JobStateListener listener) {
+        boolean removed = false;
+        for (Registration registration : registrations) {
+            if (registration.listener == listener && registrations.remove(registration)) {
+                registration.queue.clear();
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @param jobId job id
+     * @return {@code true} if a listener listens to this job
+     */
+    public boolean isListening(String jobId) {
+        for (Registration registration : registrations) {
+            if (registration.accepts(jobId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Queues an event for the listeners of its job. Never blocks.
+     *
+     * @param event event
+     */
+    @Override
+    public void stateChanged(JobStateEvent event) {
+        if (closed) {
+            return;
+        }
+        for (Registration registration : registrations) {
+            if (registration.accepts(event.getJobId())) {
+                registration.offer(event);
+            }
+        }
+    }
+
+    /**
+     * @return the threads calling the listeners
+     */
+    public Executor getExecutor() {
+        return deliverer;
+    }
+
+    /**
+     * @return the number of events dropped because a listener queue was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Stops delivering events and unregisters all the listeners. Tasks already given to the executor still run.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        registrations.clear();
+        deliverer.shutdown();
+    }
+
+}
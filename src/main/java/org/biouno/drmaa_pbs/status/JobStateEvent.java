@@ -0,0 +1,80 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.status;
+
+import org.biouno.drmaa_pbs.model.Job;
+
+/**
+ * A job that moved from one state to another, e.g. from {@code Q} to {@code R}.
+ *
+ * @author Bruno P. Kinoshita
+ * @since 0.3
+ */
+public class JobStateEvent {
+
+    private final String jobId;
+    private final String oldState;
+    private final String newState;
+    private final Job job;
+
+    /**
+     * @param jobId job id
+     * @param oldState previous state, or {@code null} if the job had not been seen before
+     * @param newState current state
+     * @param job job status in which the new state was read
+     */
+    public JobStateEvent(String jobId, String oldState, String newState, Job job) {
+        this.jobId = jobId;
+        this.oldState = oldState;
+        this.newState = newState;
+        this.job = job;
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public String getOldState() {
+        return oldState;
+    }
+
+    public String getNewState() {
+        return newState;
+    }
+
+    public Job getJob() {
+        return job;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "JobStateEvent [jobId=" + jobId + ", oldState=" + oldState + ", newState=" + newState + "]";
+    }
+
+}
@@ -0,0 +1,238 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.status;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.StringUtils;
+import org.biouno.drmaa_pbs.exec.CommandExecutor;
+import org.biouno.drmaa_pbs.exec.CommandOutput;
+import org.ggf.drmaa.DrmCommunicationException;
+import org.ggf.drmaa.DrmaaException;
+
+import com.xebialabs.overthere.CmdLine;
+
+/**
+ * Finds the jobs submitted with a client token in their {@code Variable_List}, so that a submission whose outcome is
+ * unknown, e.g. because the connection dropped after qsub ran but before the job id was read, is not submitted twice.
+ *
+ * <p>
+ * Only the {@link #RECENT_JOBS} newest jobs of the user are searched: their ids are listed by {@code qselect}, and
+ * given to one {@code qstat -fx}, shared by the tokens looked up at the same time, so that a lookup does not read
+ * every job of the server. The output is only scanned for the {@link #TOKEN_VARIABLE} entries and the ids of the jobs
+ * holding them, not parsed.
+ * </p>
+ *
+ * @author Bruno P. Kinoshita
+ * @since 0.3
+ */
+public class JobTokenLookup {
+
+    private static final Logger LOGGER = Logger.getLogger(JobTokenLookup.class.getName());
+
+    /**
+     * Name of the job environment variable holding the client token.
+     */
+    public static final String TOKEN_VARIABLE = "DRMAA_PBS_TOKEN";
+
+    /**
+     * Number of the newest jobs of the user searched for a token. A job whose submission failed is one of the last
+     * jobs of its user.
+     */
+    public static final int RECENT_JOBS = 1000;
+
+    /**
+     * Lists the ids of the newest jobs of the user, in job number order, and prints them with qstat, if any. The ids
+     * of job arrays are not expanded as file names.
+     */
+    private static final String RECENT_JOBS_SCRIPT = "set -f; ids=$(qselect -u \"$(id -un)\") || exit; "
+            + "ids=$(printf '%s\\n' $ids | sort -t . -k 1,1n | tail -n " + RECENT_JOBS + "); "
+            + "[ -z \"$ids\" ] || qstat -fx $ids";
+    /**
+     * What qstat prints for a job that left the server between qselect and qstat.
+     */
+    private static final String UNKNOWN_JOB = "Unknown Job Id";
+    private static final String JOB_START = "<Job>";
+    private static final String JOB_ID_START = "<Job_Id>";
+    private static final String JOB_ID_END = "</Job_Id>";
+    /**
+     * A token being looked up by a caller, and the result of the lookup.
+     */
+    private static final class Request {
+
+        private final String token;
+        private volatile boolean done = false;
+        private volatile String jobId;
+
+        private Request(String token) {
+            this.token = token;
+        }
+
+    }
+
+    private final CommandExecutor executor;
+    /**
+     * Requests of the callers of {@link #find(String)}. A lookup only answers the requests made before it started, so
+     * that no caller gets a result older than its call.
+     */
+    private final Set<Request> pending = ConcurrentHashMap.newKeySet();
+    /**
+     * Held while qstat runs, so that concurrent lookups share one qstat.
+     */
+    private final ReentrantLock lookupLock = new ReentrantLock();
+
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong commands = new AtomicLong();
+    private final AtomicLong found = new AtomicLong();
+
+    /**
+     * @param executor runs qselect and qstat
+     */
+    public JobTokenLookup(CommandExecutor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @param token client token
+     * @return the {@code -v} value giving the token to a job
+     */
+    public static String toVariable(String token) {
+        return TOKEN_VARIABLE + "=" + token;
+    }
+
+    /**
+     * Finds the job submitted with a client token.
+     *
+     * @param token client token
+     * @return the job id, or {@code null} if the server has no job with this token
+     * @throws DrmCommunicationException if qselect or qstat failed
+     * @throws InterruptedException if interrupted while waiting for qstat
+     */
+    public String find(String token) throws DrmaaException, InterruptedException {
+        lookups.incrementAndGet();
+        Request request = new Request(token);
+        pending.add(request);
+        try {
+            lookupLock.lockInterruptibly();
+            try {
+                // another caller may have looked it up while this one was waiting for the lock
+                if (!request.done) {
+                    lookup(new ArrayList<Request>(pending));
+                }
+            } finally {
+                lookupLock.unlock();
+            }
+        } finally {
+            pending.remove(request);
+        }
+        return request.jobId;
+    }
+
+    private void lookup(List<Request> requests) throws DrmaaException, InterruptedException {
+        commands.incrementAndGet();
+        CommandOutput output = executor.execute(CmdLine.build("sh", "-c", RECENT_JOBS_SCRIPT));
+        LOGGER.finest("qstat exit value: " + output.getExitValue());
+        if (output.getExitValue() != 0 && StringUtils.isBlank(output.getStdout()) && !isUnknownJobs(output)) {
+            throw new DrmCommunicationException("\nStdout/Stderr:\n" + output.getStdout() + output.getStderr());
+        }
+        String text = output.getStdout();
+        for (Request request : requests) {
+            request.jobId = findJobId(text, request.token);
+            if (request.jobId != null) {
+                found.incrementAndGet();
+            }
+            request.done = true;
+        }
+    }
+
+    /**
+     * @return {@code true} if qstat only failed because the jobs listed left the server before it ran
+     */
+    private static boolean isUnknownJobs(CommandOutput output) {
+        if (StringUtils.isBlank(output.getStderr())) {
+            return false;
+        }
+        for (String line : output.getStderr().split("\\r?\\n")) {
+            if (StringUtils.isNotBlank(line) && !line.contains(UNKNOWN_JOB)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the id of the job of the qstat output holding a token, or {@code null}
+     */
+    static String findJobId(String text, String token) {
+        String variable = toVariable(token);
+        int from = 0;
+        while (true) {
+            int index = text.indexOf(variable, from);
+            if (index < 0) {
+                return null;
+            }
+            from = index + variable.length();
+            // the whole entry of the variable list, not the prefix of a longer token
+            char before = index == 0 ? ',' : text.charAt(index - 1);
+            char after = from == text.length() ? ',' : text.charAt(from);
+            if ((before == ',' || before == '>') && (after == ',' || after == '<')) {
+                int job = text.lastIndexOf(JOB_START, index);
+                int start = job < 0 ? -1 : text.indexOf(JOB_ID_START, job);
+                int end = start < 0 ? -1 : text.indexOf(JOB_ID_END, start);
+                if (end < 0 || start > index) {
+                    return null;
+                }
+                return text.substring(start + JOB_ID_START.length(), end).trim();
+            }
+        }
+    }
+
+    /**
+     * @return number of tokens looked up
+     */
+    public long getLookupCount() {
+        return lookups.get();
+    }
+
+    /**
+     * @return number of qselect and qstat commands run
+     */
+    public long getCommandCount() {
+        return commands.get();
+    }
+
+    /**
+     * @return number of tokens found held by a job
+     */
+    public long getFoundCount() {
+        return found.get();
+    }
+
+}
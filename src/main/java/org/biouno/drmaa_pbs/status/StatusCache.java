@@ -0,0 +1,530 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.status;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.StringUtils;
+import org.biouno.drmaa_pbs.exec.CommandExecutor;
+import org.biouno.drmaa_pbs.exec.CommandOutput;
+import org.biouno.drmaa_pbs.model.Job;
+import org.biouno.drmaa_pbs.model.JobChangeSet;
+import org.biouno.drmaa_pbs.parser.ParseException;
+import org.biouno.drmaa_pbs.parser.QstatJobsDeltaParser;
+import org.ggf.drmaa.DrmaaException;
+import org.ggf.drmaa.InvalidJobException;
+
+import com.xebialabs.overthere.CmdLine;
+
+/**
+ * Keeps the status of the jobs of a session in memory.
+ *
+ * <p>
+ * A status older than the time to live is never returned. When one is needed, the status of every job the cache
+ * tracks is refreshed at once, with one {@code qstat -fx id1 id2 ...} per batch of job ids, instead of one qstat per
+ * job. Concurrent callers that need a refresh wait for the same qstat. Jobs that have finished do not change anymore,
+ * and are not queried again.
+ * </p>
+ *
+ * <p>
+ * Only the jobs that have not finished keep their full status in memory. Once a job has finished, only its state and
+ * exit status are kept, in the compact {@link JobRegistry} of tracked jobs, and a read returns a {@link Job} holding
+ * just these. The session keeps the full information of the recently finished jobs for the waits.
+ * </p>
+ *
+ * <p>
+ * The qstat output is read with a {@link QstatJobsDeltaParser}, so that only the jobs whose modification time, state
+ * or substate changed since the previous refresh are parsed again.
+ * </p>
+ *
+ * <p>
+ * Every state change read, by qstat or through {@link #update(Job)}, is given to the state listener, if any.
+ * </p>
+ *
+ * @author Bruno P. Kinoshita
+ * @since 0.3
+ */
+public class StatusCache {
+
+    private static final Logger LOGGER = Logger.getLogger(StatusCache.class.getName());
+
+    private static final String COMMAND_QSTAT = "qstat";
+
+    /**
+     * What qstat prints on stderr for a job id the server does not know about.
+     */
+    private static final String UNKNOWN_JOB_ID = "Unknown Job Id";
+
+    /**
+     * The status of a job that has not finished, and when it was read.
+     */
+    private static final class Entry {
+
+        private final Job job;
+        private final long readAt;
+
+        private Entry(Job job, long readAt) {
+            this.job = job;
+            this.readAt = readAt;
+        }
+
+    }
+
+    private final CommandExecutor executor;
+    private final long ttlNanos;
+    private final int batchSize;
+    private final RateLimiter rateLimiter;
+
+    /**
+     * The tracked jobs, with the last state read for each of them, kept when its status is invalidated so that a state
+     * change is not reported twice, and the exit status of the finished ones.
+     */
+    private final JobRegistry tracked = new JobRegistry();
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final QstatJobsDeltaParser deltaParser = new QstatJobsDeltaParser();
+    private volatile JobStateListener stateListener;
+    /**
+     * Held while qstat runs, so that concurrent misses share one refresh.
+     */
+    private final ReentrantLock refreshLock = new ReentrantLock();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong commands = new AtomicLong();
+    private final AtomicLong parsedJobs = new AtomicLong();
+
+    /**
+     * @param executor runs qstat
+     * @param ttlMillis milliseconds during which a status is served from memory. Zero disables caching, but refreshes
+     *            are still batched
+     * @param batchSize maximum number of job ids given to one qstat
+     */
+    public StatusCache(CommandExecutor executor, long ttlMillis, int batchSize) {
+        this(executor, ttlMillis, batchSize, new RateLimiter(0D));
+    }
+
+    /**
+     * @param executor runs qstat
+     * @param ttlMillis milliseconds during which a status is served from memory. Zero disables caching, but refreshes
+     *            are still batched
+     * @param batchSize maximum number of job ids given to one qstat
+     * @param rateLimiter limits the number of qstat commands per second
+     */
+    public StatusCache(CommandExecutor executor, long ttlMillis, int batchSize, RateLimiter rateLimiter) {
+        this.executor = executor;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, ttlMillis));
+        this.batchSize = Math.max(1, batchSize);
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Sets the listener told about every job state change read. It is called on the thread reading the status, so it
+     * must not block.
+     *
+     * @param stateListener listener, or {@code null} for none
+     */
+    public void setStateListener(JobStateListener stateListener) {
+        this.stateListener = stateListener;
+    }
+
+    /**
+     * Adds a job to the jobs refreshed together.
+     *
+     * @param jobId job id
+     */
+    public void track(String jobId) {
+        tracked.add(jobId);
+    }
+
+    /**
+     * Stops refreshing a job, and drops its status.
+     *
+     * @param jobId job id
+     */
+    public void forget(String jobId) {
+        tracked.remove(jobId);
+        entries.remove(jobId);
+        deltaParser.remove(jobId);
+    }
+
+    /**
+     * Marks the status of a job as stale, e.g. after it was deleted, so that the next read refreshes it.
+     *
+     * @param jobId job id
+     */
+    public void invalidate(String jobId) {
+        entries.remove(jobId);
+        // otherwise the next qstat may find it unchanged, with no status to reuse
+        deltaParser.remove(jobId);
+    }
+
+    /**
+     * @return the ids of the jobs refreshed together
+     */
+    public List<String> getTrackedJobIds() {
+        return tracked.getJobIds();
+    }
+
+    /**
+     * @return the ids of the jobs refreshed together that are not known to have finished
+     */
+    public List<String> getUnfinishedJobIds() {
+        return tracked.getUnfinishedJobIds();
+    }
+
+    /**
+     * @param jobId job id
+     * @return {@code true} if the job is refreshed with the others
+     */
+    public boolean isTracked(String jobId) {
+        return tracked.contains(jobId);
+    }
+
+    /**
+     * @return the number of jobs refreshed together
+     */
+    public int getTrackedJobCount() {
+        return tracked.size();
+    }
+
+    /**
+     * Gets the status of a job, from memory if it is recent enough, otherwise refreshing it with the stale tracked
+     * jobs. A job that is not tracked, e.g. one submitted by another session, does not start being tracked: its status
+     * is only cached.
+     *
+     * @param jobId job id
+     * @return the job status
+     * @throws InvalidJobException if the job is unknown to the server, or qstat failed
+     * @throws InterruptedException if interrupted while waiting for qstat
+     */
+    public Job get(String jobId) throws DrmaaException, InterruptedException {
+        Job job = getFresh(jobId, System.nanoTime());
+        if (job != null) {
+            hits.incrementAndGet();
+            return job;
+        }
+        misses.incrementAndGet();
+        refreshLock.lockInterruptibly();
+        try {
+            // another caller may have refreshed it while this one was waiting for the lock
+            long now = System.nanoTime();
+            job = getFresh(jobId, now);
+            if (job == null) {
+                List<String> jobIds = unfinishedJobIds(now);
+                if (!jobIds.contains(jobId)) {
+                    jobIds.add(jobId);
+                }
+                refresh(jobIds);
+                job = peek(jobId);
+            }
+        } finally {
+            refreshLock.unlock();
+        }
+        if (job == null) {
+            throw new InvalidJobException("Couldn't locate job " + jobId);
+        }
+        return job;
+    }
+
+    /**
+     * Refreshes the status of every tracked job that is not finished, regardless of the time to live.
+     *
+     * @throws InvalidJobException if qstat failed
+     * @throws InterruptedException if interrupted while waiting for qstat
+     */
+    public void refresh() throws DrmaaException, InterruptedException {
+        refreshLock.lockInterruptibly();
+        try {
+            refresh(unfinishedJobIds(Long.MIN_VALUE));
+        } finally {
+            refreshLock.unlock();
+        }
+    }
+
+    /**
+     * Refreshes the status of the given jobs that are not finished, regardless of the time to live. The jobs that are
+     * not tracked do not start being tracked.
+     *
+     * @param jobIds job ids
+     * @throws InvalidJobException if qstat failed
+     * @throws InterruptedException if interrupted while waiting for qstat
+     */
+    public void refresh(Collection<String> jobIds) throws DrmaaException, InterruptedException {
+        List<String> unfinished = new ArrayList<String>(jobIds.size());
+        for (String jobId : jobIds) {
+            if (finished(jobId) == null) {
+                unfinished.add(jobId);
+            }
+        }
+        refreshLock.lockInterruptibly();
+        try {
+            refresh(unfinished);
+        } finally {
+            refreshLock.unlock();
+        }
+    }
+
+    /**
+     * Records the status of a tracked job learned without qstat, e.g. from the accounting log.
+     *
+     * @param job job status
+     * @return {@code true} if the job is tracked, and its status was recorded
+     */
+    public boolean update(Job job) {
+        if (!tracked.contains(job.getId())) {
+            return false;
+        }
+        record(job, System.nanoTime());
+        return true;
+    }
+
+    /**
+     * Gets the last status read for a job, however old it is, without calling qstat.
+     *
+     * @param jobId job id
+     * @return the job status, or {@code null} if it was never read or the job is unknown to the server
+     */
+    public Job peek(String jobId) {
+        Entry entry = entries.get(jobId);
+        return entry == null ? finished(jobId) : entry.job;
+    }
+
+    /**
+     * @return the number of jobs whose full status is kept in memory, i.e. that have been read and have not finished
+     */
+    public int getCachedJobCount() {
+        return entries.size();
+    }
+
+    /**
+     * @return the status of a job if it is fresh or finished, otherwise {@code null}
+     */
+    private Job getFresh(String jobId, long now) {
+        Entry entry = entries.get(jobId);
+        return entry == null ? finished(jobId) : isFresh(entry, now) || isFinished(entry.job) ? entry.job : null;
+    }
+
+    /**
+     * @return a job holding the state and exit status recorded for a tracked job that has finished, the status of an
+     *         untracked job that has finished, or {@code null}
+     */
+    private Job finished(String jobId) {
+        Entry entry = entries.get(jobId);
+        if (entry != null) {
+            return isFinished(entry.job) ? entry.job : null;
+        }
+        String state = tracked.getState(jobId);
+        if (!"F".equals(state) && !"X".equals(state)) {
+            return null;
+        }
+        Job job = new Job();
+        job.setId(jobId);
+        job.setState(state);
+        job.setExitStatus(tracked.getExitStatus(jobId));
+        return job;
+    }
+
+    private void refreshStale() throws DrmaaException, InterruptedException {
+        refresh(unfinishedJobIds(System.nanoTime()));
+    }
+
+    /**
+     * @param now time against which entries are fresh, or {@link Long#MIN_VALUE} to select all the unfinished jobs
+     * @return the tracked jobs to refresh
+     */
+    private List<String> unfinishedJobIds(long now) {
+        List<String> jobIds = tracked.getUnfinishedJobIds();
+        if (now != Long.MIN_VALUE) {
+            for (Iterator<String> it = jobIds.iterator(); it.hasNext();) {
+                if (isFresh(entries.get(it.next()), now)) {
+                    it.remove();
+                }
+            }
+        }
+        return jobIds;
+    }
+
+    private void refresh(List<String> jobIds) throws DrmaaException, InterruptedException {
+        if (jobIds.isEmpty()) {
+            return;
+        }
+        refreshes.incrementAndGet();
+        for (int from = 0; from < jobIds.size(); from += batchSize) {
+            List<String> batch = jobIds.subList(from, Math.min(jobIds.size(), from + batchSize));
+            long readAt = System.nanoTime();
+            JobChangeSet changes = query(batch);
+            Set<String> missing = new LinkedHashSet<String>(batch);
+            for (Job job : changes.getAdded()) {
+                record(job, readAt);
+                missing.remove(job.getId());
+            }
+            for (Job job : changes.getChanged()) {
+                record(job, readAt);
+                missing.remove(job.getId());
+            }
+            for (String jobId : changes.getUnchanged()) {
+                Entry entry = entries.get(jobId);
+                if (entry != null) {
+                    entries.put(jobId, new Entry(entry.job, readAt));
+                } else {
+                    // invalidated while qstat ran, parsed again by the next refresh
+                    deltaParser.remove(jobId);
+                }
+                missing.remove(jobId);
+            }
+            parsedJobs.addAndGet(changes.getAdded().size() + changes.getChanged().size());
+            for (String jobId : missing) {
+                LOGGER.log(Level.FINE, "Job " + jobId + " is no longer known to the server");
+                forget(jobId);
+            }
+        }
+    }
+
+    /**
+     * Stores a job status, or only its state and exit status if it is a tracked job that has finished, and tells the
+     * state listener if the job state changed. The states of the jobs that are not tracked are only kept with their
+     * status.
+     */
+    private void record(Job job, long readAt) {
+        String newState = job.getState();
+        String oldState;
+        if (!tracked.contains(job.getId())) {
+            Entry entry = entries.put(job.getId(), new Entry(job, readAt));
+            if (isFinished(job)) {
+                deltaParser.remove(job.getId());
+            }
+            if (newState == null) {
+                return;
+            }
+            oldState = entry == null ? null : entry.job.getState();
+        } else if (isFinished(job)) {
+            // recorded before the full status is dropped, so that a concurrent read finds one or the other
+            tracked.setExitStatus(job.getId(), job.getExitStatus());
+            oldState = tracked.setState(job.getId(), newState);
+            entries.remove(job.getId());
+            deltaParser.remove(job.getId());
+        } else {
+            entries.put(job.getId(), new Entry(job, readAt));
+            if (newState == null) {
+                return;
+            }
+            oldState = tracked.setState(job.getId(), newState);
+        }
+        JobStateListener listener = this.stateListener;
+        if (listener != null && !newState.equals(oldState)) {
+            listener.stateChanged(new JobStateEvent(job.getId(), oldState, newState, job));
+        }
+    }
+
+    private JobChangeSet query(List<String> jobIds) throws DrmaaException, InterruptedException {
+        CmdLine cmd = CmdLine.build(COMMAND_QSTAT, "-fx");
+        for (String jobId : jobIds) {
+            cmd.addArgument(jobId);
+        }
+        rateLimiter.acquire();
+        commands.incrementAndGet();
+        CommandOutput output = executor.execute(cmd);
+        LOGGER.finest("qstat exit value: " + output.getExitValue());
+        // qstat exits with an error when one of the jobs is unknown, but still prints the others
+        if (StringUtils.isBlank(output.getStdout()) && output.getExitValue() != 0
+                && !StringUtils.contains(output.getStderr(), UNKNOWN_JOB_ID)) {
+            throw new InvalidJobException("\nStdout/Stderr:\n" + output.getStdout() + output.getStderr());
+        }
+        try {
+            return deltaParser.parse(output.getStdout(), jobIds);
+        } catch (ParseException e) {
+            throw new InvalidJobException("Failed to parse qstat output: " + e.getMessage());
+        }
+    }
+
+    private boolean isFresh(Entry entry, long now) {
+        return entry != null && now - entry.readAt < ttlNanos;
+    }
+
+    /**
+     * @param job job
+     * @return {@code true} if the job is finished, and its status will not change anymore
+     */
+    public static boolean isFinished(Job job) {
+        return "F".equals(job.getState()) || "X".equals(job.getState());
+    }
+
+    /**
+     * @return number of reads served from memory
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of reads that needed a refresh
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of refreshes, each of one or more qstat commands
+     */
+    public long getRefreshCount() {
+        return refreshes.get();
+    }
+
+    /**
+     * @return number of qstat commands run
+     */
+    public long getCommandCount() {
+        return commands.get();
+    }
+
+    /**
+     * @return number of jobs parsed from the qstat output because they were new or had changed
+     */
+    public long getParsedJobCount() {
+        return parsedJobs.get();
+    }
+
+    /**
+     * Drops every status and tracked job.
+     */
+    public void clear() {
+        tracked.clear();
+        entries.clear();
+        deltaParser.clear();
+    }
+
+}
@@ -0,0 +1,199 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.status;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.ggf.drmaa.DrmaaException;
+import org.ggf.drmaa.JobInfo;
+
+/**
+ * Keeps the information of finished jobs, which never changes, so that they can be answered without querying PBS.
+ *
+ * <p>
+ * The cache is bounded by the estimated memory of its entries, the least recently used being evicted first. The
+ * {@link JobInfo} kept must be immutable.
+ * </p>
+ *
+ * @author Bruno P. Kinoshita
+ * @since 0.3
+ */
+public class TerminalJobCache {
+
+    /**
+     * Estimated bytes of an entry, besides its strings.
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+    /**
+     * Estimated bytes of a resource usage entry, besides its strings.
+     */
+    private static final int RESOURCE_OVERHEAD = 48;
+
+    /**
+     * Job information and its estimated size.
+     */
+    private static final class Entry {
+
+        private final JobInfo info;
+        private final long weight;
+
+        private Entry(JobInfo info, long weight) {
+            this.info = info;
+            this.weight = weight;
+        }
+
+    }
+
+    private final long maxWeight;
+    /**
+     * In access order, least recently used first. Guarded by this cache.
+     */
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long weight;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxBytes maximum estimated bytes of the entries
+     */
+    public TerminalJobCache(long maxBytes) {
+        this.maxWeight = Math.max(0L, maxBytes);
+    }
+
+    /**
+     * @param jobId job id
+     * @return the information of the finished job, or {@code null} if it is not cached
+     */
+    public synchronized JobInfo get(String jobId) {
+        Entry entry = entries.get(jobId);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.info;
+    }
+
+    /**
+     * Caches the information of a finished job, evicting the least recently used jobs if needed.
+     *
+     * @param jobId job id
+     * @param info information of the finished job
+     */
+    public synchronized void put(String jobId, JobInfo info) {
+        long entryWeight = weigh(jobId, info);
+        if (entryWeight > maxWeight) {
+            return;
+        }
+        Entry previous = entries.put(jobId, new Entry(info, entryWeight));
+        weight += entryWeight - (previous == null ? 0L : previous.weight);
+        for (Iterator<Entry> it = entries.values().iterator(); weight > maxWeight && it.hasNext();) {
+            weight -= it.next().weight;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * @param jobId job id
+     */
+    public synchronized void remove(String jobId) {
+        Entry entry = entries.remove(jobId);
+        if (entry != null) {
+            weight -= entry.weight;
+        }
+    }
+
+    /**
+     * @return the number of jobs cached
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the estimated bytes of the entries
+     */
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    /**
+     * @return number of reads that found the job
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * @return number of reads that did not find the job
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * @return number of jobs evicted to stay within the size
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * @return the ratio of reads that found the job, or zero before any read
+     */
+    public synchronized double getHitRate() {
+        long reads = hits + misses;
+        return reads == 0L ? 0D : (double) hits / reads;
+    }
+
+    /**
+     * Drops every entry.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0L;
+    }
+
+    private static long weigh(String jobId, JobInfo info) {
+        long bytes = ENTRY_OVERHEAD + 2L * jobId.length();
+        try {
+            Map<?, ?> resourceUsage = info.getResourceUsage();
+            if (resourceUsage != null) {
+                for (Map.Entry<?, ?> resource : resourceUsage.entrySet()) {
+                    bytes += RESOURCE_OVERHEAD + 2L * (String.valueOf(resource.getKey()).length()
+                            + String.valueOf(resource.getValue()).length());
+                }
+            }
+        } catch (DrmaaException e) {
+            // no resource usage to count
+        }
+        return bytes;
+    }
+
+}
@@ -0,0 +1,251 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.status;
+
+import java.util.function.Consumer;
+
+/**
+ * A hierarchical timer wheel, keeping many deadlines with O(1) scheduling, cancellation and expiration per tick.
+ *
+ * <p>
+ * Time is cut in ticks. The first level has one slot per tick for the next {@value #SLOTS} ticks, and each of the
+ * next levels has slots {@value #SLOTS} times longer than the level below. A timer is put in the lowest level whose
+ * range covers its deadline, and moved down a level when the wheel reaches its slot, so that advancing the wheel only
+ * looks at the timers of the slots it goes through. Deadlines further than the last level are moved down once the
+ * wheel has turned, and kept again at the last level.
+ * </p>
+ *
+ * <p>
+ * Timers expire at the first tick at or after their deadline, so up to a tick late. The wheel is thread safe.
+ * </p>
+ *
+ * @param <T> item given back when a timer expires
+ * @author Bruno P. Kinoshita
+ * @since 0.3
+ */
+public class TimerWheel<T> {
+
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    /**
+     * A scheduled timer, to cancel it. Timers are linked in the list of their slot.
+     *
+     * @param <T> item given back when the timer expires
+     */
+    public static final class Timer<T> {
+
+        private final TimerWheel<T> wheel;
+        private final T item;
+        private final long deadlineTick;
+        private Timer<T> previous;
+        private Timer<T> next;
+        /**
+         * Head of the slot list the timer is in, or {@code null} once expired or cancelled.
+         */
+        private Timer<T> head;
+
+        private Timer(TimerWheel<T> wheel, T item, long deadlineTick) {
+            this.wheel = wheel;
+            this.item = item;
+            this.deadlineTick = deadlineTick;
+        }
+
+        public T getItem() {
+            return item;
+        }
+
+        /**
+         * Cancels the timer, if it has not expired yet.
+         *
+         * @return {@code true} if the timer was cancelled
+         */
+        public boolean cancel() {
+            return wheel.cancel(this);
+        }
+
+    }
+
+    private final long tickMillis;
+    /**
+     * Slot list heads, by level and slot. A head is a sentinel, its list is circular.
+     */
+    private final Timer<T>[][] slots;
+    private long currentTick;
+    private int size;
+
+    /**
+     * @param tickMillis milliseconds per tick
+     * @param startMillis current time, in milliseconds since the epoch
+     */
+    public TimerWheel(long tickMillis, long startMillis) {
+        this.tickMillis = Math.max(1L, tickMillis);
+        this.currentTick = startMillis / this.tickMillis;
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        Timer<T>[][] heads = new Timer[LEVELS][SLOTS];
+        this.slots = heads;
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                Timer<T> head = new Timer<T>(this, null, Long.MAX_VALUE);
+                head.previous = head;
+                head.next = head;
+                slots[level][slot] = head;
+            }
+        }
+    }
+
+    /**
+     * Schedules a timer.
+     *
+     * @param item item given back when the timer expires
+     * @param deadlineMillis milliseconds since the epoch at which the timer expires
+     * @return the timer, to cancel it
+     */
+    public synchronized Timer<T> schedule(T item, long deadlineMillis) {
+        long deadlineTick = deadlineMillis / tickMillis;
+        if (deadlineMillis % tickMillis != 0L) {
+            deadlineTick++;
+        }
+        Timer<T> timer = new Timer<T>(this, item, deadlineTick);
+        // the slot of the current tick has already expired
+        insert(timer, currentTick + 1L);
+        size++;
+        return timer;
+    }
+
+    /**
+     * Advances the wheel to the given time, expiring the timers whose deadline has passed.
+     *
+     * @param nowMillis current time, in milliseconds since the epoch
+     * @param expired called with the item of every expired timer, without holding the wheel lock
+     */
+    public void advance(long nowMillis, Consumer<? super T> expired) {
+        Timer<T> expiredTimers = null;
+        synchronized (this) {
+            long nowTick = nowMillis / tickMillis;
+            if (size == 0) {
+                currentTick = Math.max(currentTick, nowTick);
+                return;
+            }
+            while (currentTick < nowTick) {
+                currentTick++;
+                for (int level = LEVELS - 1; level > 0; level--) {
+                    if ((currentTick & ((1L << (BITS * level)) - 1L)) == 0L) {
+                        cascade(slots[level][(int) (currentTick >>> (BITS * level)) & MASK]);
+                    }
+                }
+                Timer<T> head = slots[0][(int) currentTick & MASK];
+                while (head.next != head) {
+                    Timer<T> timer = head.next;
+                    unlink(timer);
+                    if (timer.deadlineTick > currentTick) {
+                        // a deadline beyond the last level, moved down too early
+                        insert(timer, currentTick + 1L);
+                        continue;
+                    }
+                    size--;
+                    timer.next = expiredTimers;
+                    expiredTimers = timer;
+                }
+                if (size == 0) {
+                    currentTick = nowTick;
+                }
+            }
+        }
+        for (Timer<T> timer = expiredTimers; timer != null; timer = timer.next) {
+            expired.accept(timer.item);
+        }
+    }
+
+    /**
+     * @return the number of timers scheduled
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Cancels all the timers.
+     */
+    public synchronized void clear() {
+        for (Timer<T>[] level : slots) {
+            for (Timer<T> head : level) {
+                while (head.next != head) {
+                    unlink(head.next);
+                }
+            }
+        }
+        size = 0;
+    }
+
+    private synchronized boolean cancel(Timer<T> timer) {
+        if (timer.head == null) {
+            return false;
+        }
+        unlink(timer);
+        size--;
+        return true;
+    }
+
+    private void cascade(Timer<T> head) {
+        while (head.next != head) {
+            Timer<T> timer = head.next;
+            unlink(timer);
+            insert(timer, currentTick);
+        }
+    }
+
+    /**
+     * @param earliestTick first tick whose slot has not expired yet
+     */
+    private void insert(Timer<T> timer, long earliestTick) {
+        long deadlineTick = Math.max(timer.deadlineTick, earliestTick);
+        long delta = deadlineTick - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1))) {
+            level++;
+        }
+        if (level == LEVELS - 1 && delta >= 1L << (BITS * LEVELS)) {
+            // too far: the last slot before the current one, so that it comes back once the wheel has turned
+            deadlineTick = currentTick + (1L << (BITS * LEVELS)) - (1L << (BITS * level));
+        }
+        Timer<T> head = slots[level][(int) (deadlineTick >>> (BITS * level)) & MASK];
+        timer.head = head;
+        timer.previous = head.previous;
+        timer.next = head;
+        head.previous.next = timer;
+        head.previous = timer;
+    }
+
+    private void unlink(Timer<T> timer) {
+        timer.previous.next = timer.next;
+        timer.next.previous = timer.previous;
+        timer.previous = null;
+        timer.next = null;
+        timer.head = null;
+    }
+
+}
@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.biouno.drmaa_pbs.exec.CommandExecutor;
+import org.biouno.drmaa_pbs.exec.CommandOutput;
+
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.OperatingSystemFamily;
+import com.xebialabs.overthere.RuntimeIOException;
+
+/**
+ * Answers qsub with the job ids set by a test, and remembers the command lines it ran. Scripts given to
+ * {@code sh -c}, or to the standard input of {@code sh}, are run by a local shell where qsub is a function writing
+ * {@code <n>.server}, or {@code <n>[].server} for a job array, or failing when one of its arguments contains
+ * {@code fail}. The function remembers its arguments and its standard input.
+ */
+public class FakeQsub implements CommandExecutor {
+
+    /**
+     * Counts the calls with the lines of its log, so that calls made from subshells are counted as well.
+     */
+    private static final String QSUB_FUNCTION = "qsub() { printf '%s\\n' \"$*\" >> \"$QSUB_LOG\"; "
+            + "cat >> \"$QSUB_LOG.in\"; n=$(wc -l < \"$QSUB_LOG\"); "
+            + "case \"$*\" in *fail*) echo \"qsub: cannot submit\" >&2; return 1;; "
+            + "*\"-J \"*|*\"-t \"*) echo \"$((n))[].server\";; *) echo \"$((n)).server\";; esac; }\n";
+
+    private final List<String> commands = new ArrayList<String>();
+    private final List<String> qsubCalls = new ArrayList<String>();
+    private final StringBuilder qsubInput = new StringBuilder();
+    private volatile String jobId = "1.server";
+
+    /**
+     * @param jobId job id written by the next qsub calls
+     */
+    public void setJobId(String jobId) {
+        this.jobId = jobId;
+    }
+
+    /**
+     * @return the command lines run, in order
+     */
+    public synchronized List<String> getCommands() {
+        return new ArrayList<String>(commands);
+    }
+
+    /**
+     * @return what the qsub function of the scripts run read from its standard input, for all the calls
+     */
+    public synchronized String getQsubInput() {
+        return qsubInput.toString();
+    }
+
+    /**
+     * @return the arguments given to the qsub function of the scripts run, in order
+     */
+    public synchronized List<String> getQsubCalls() {
+        return new ArrayList<String>(qsubCalls);
+    }
+
+    @Override
+    public CommandOutput execute(CmdLine cmd, String input) throws InterruptedException {
+        String[] args = cmd.toCommandArray(OperatingSystemFamily.UNIX, false);
+        if (args.length == 1 && "sh".equals(args[0])) {
+            synchronized (this) {
+                commands.add("sh");
+            }
+            return runScript(input);
+        }
+        return CommandExecutor.super.execute(cmd, input);
+    }
+
+    @Override
+    public CommandOutput execute(CmdLine cmd) throws InterruptedException {
+        synchronized (this) {
+            commands.add(cmd.toCommandLine(OperatingSystemFamily.UNIX, false));
+        }
+        String[] args = cmd.toCommandArray(OperatingSystemFamily.UNIX, false);
+        if (args.length == 3 && "sh".equals(args[0]) && "-c".equals(args[1])) {
+            return runScript(args[2]);
+        }
+        return new CommandOutput(0, jobId + "\n", "");
+    }
+
+    private CommandOutput runScript(String script) throws InterruptedException {
+        try {
+            File log = File.createTempFile("qsub", ".log");
+            File in = new File(log.getPath() + ".in");
+            try {
+                ProcessBuilder builder = new ProcessBuilder("sh", "-c", QSUB_FUNCTION + script);
+                builder.environment().put("QSUB_LOG", log.getAbsolutePath());
+                Process process = builder.start();
+                process.getOutputStream().close();
+                String stdout = IOUtils.toString(process.getInputStream(), StandardCharsets.UTF_8);
+                String stderr = IOUtils.toString(process.getErrorStream(), StandardCharsets.UTF_8);
+                int exitValue = process.waitFor();
+                synchronized (this) {
+                    qsubCalls.addAll(FileUtils.readLines(log, StandardCharsets.UTF_8));
+                    if (in.exists()) {
+                        qsubInput.append(FileUtils.readFileToString(in, StandardCharsets.UTF_8));
+                    }
+                }
+                return new CommandOutput(exitValue, stdout, stderr);
+            } finally {
+                log.delete();
+                in.delete();
+            }
+        } catch (IOException e) {
+            throw new RuntimeIOException(e);
+        }
+    }
+
+    @Override
+    public List<CommandOutput> executeAll(List<CmdLine> cmds) throws InterruptedException {
+        List<CommandOutput> outputs = new ArrayList<CommandOutput>();
+        for (CmdLine cmd : cmds) {
+            outputs.add(execute(cmd));
+        }
+        return outputs;
+    }
+
+    @Override
+    public void close() {
+    }
+
+}
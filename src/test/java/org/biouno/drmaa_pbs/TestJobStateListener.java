@@ -0,0 +1,147 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.biouno.drmaa_pbs.status.FakeQstat;
+import org.biouno.drmaa_pbs.status.JobStateEvent;
+import org.biouno.drmaa_pbs.status.JobStateListener;
+import org.ggf.drmaa.Session;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the job state listeners of a session, against a fake qstat.
+ */
+public class TestJobStateListener {
+
+    /**
+     * Records the transitions it is told about.
+     */
+    private static final class RecordingListener implements JobStateListener {
+
+        private final List<String> transitions = Collections.synchronizedList(new ArrayList<String>());
+        private final CountDownLatch finished = new CountDownLatch(1);
+
+        @Override
+        public void stateChanged(JobStateEvent event) {
+            transitions.add(event.getJobId() + ":" + event.getOldState() + "->" + event.getNewState());
+            if ("F".equals(event.getNewState())) {
+                finished.countDown();
+            }
+        }
+
+    }
+
+    private FakeQstat qstat;
+    private SessionImpl session;
+
+    @Before
+    public void setUp() {
+        qstat = new FakeQstat();
+        Map<String, String> options = new HashMap<String, String>();
+        options.put(SessionImpl.OPTION_POLL_INTERVAL, "20");
+        options.put(SessionImpl.OPTION_POLL_MAX_INTERVAL, "20");
+        options.put(SessionImpl.OPTION_POLL_LATENCY, "10");
+        options.put(SessionImpl.OPTION_STATUS_CACHE_TTL, "0");
+        options.put(SessionImpl.OPTION_MAX_STATUS_QUERIES_PER_SECOND, "0");
+        session = new SessionImpl();
+        session.init("local", options, qstat);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        session.exit();
+    }
+
+    @Test(timeout = 30000L)
+    public void testListenersShareTheStatusRefresh() throws Exception {
+        qstat.setState("1.server", "Q");
+        qstat.setState("2.server", "R");
+        session.getStatusCache().track("2.server");
+        List<RecordingListener> listeners = new ArrayList<RecordingListener>();
+        for (int i = 0; i < 1000; i++) {
+            RecordingListener listener = new RecordingListener();
+            session.addJobStateListener(listener, "1.server");
+            listeners.add(listener);
+        }
+        RecordingListener all = new RecordingListener();
+        session.addJobStateListener(all);
+
+        while (qstat.getCalls().size() < 2) {
+            Thread.sleep(5L);
+        }
+        qstat.setState("1.server", "R");
+        Thread.sleep(100L);
+        qstat.setState("1.server", "F");
+        qstat.setState("2.server", "F");
+        for (RecordingListener listener : listeners) {
+            assertTrue(listener.finished.await(10, TimeUnit.SECONDS));
+            // the first listeners may also have seen the job appear in state Q
+            int size = listener.transitions.size();
+            assertTrue(size >= 2);
+            assertEquals("1.server:Q->R", listener.transitions.get(size - 2));
+            assertEquals("1.server:R->F", listener.transitions.get(size - 1));
+        }
+        // each poll queries both jobs with one qstat, whatever the number of listeners
+        for (List<String> call : qstat.getCalls()) {
+            assertTrue(call.size() <= 2);
+        }
+        assertTrue(qstat.getCalls().size() < 100);
+        while (!all.transitions.contains("2.server:R->F")) {
+            Thread.sleep(5L);
+        }
+        assertTrue(all.transitions.contains("1.server:R->F"));
+    }
+
+    @Test(timeout = 30000L)
+    public void testSlowListenerDoesNotBlockWaits() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        qstat.setState("1.server", "R");
+        JobStateListener slow = event -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        session.addJobStateListener(slow, "1.server");
+        qstat.setFinishAfter(2);
+        assertEquals(0, session.wait("1.server", Session.TIMEOUT_WAIT_FOREVER).getExitStatus());
+        release.countDown();
+        assertTrue(session.removeJobStateListener(slow));
+    }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.biouno.drmaa_pbs.exec.CommandExecutor;
+import org.biouno.drmaa_pbs.exec.CommandOutput;
+import org.ggf.drmaa.JobTemplate;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.OperatingSystemFamily;
+import com.xebialabs.overthere.RuntimeIOException;
+
+/**
+ * Tests for the submissions held by the admission controller of a session.
+ */
+public class TestSessionAdmission {
+
+    /**
+     * A PBS server whose queue batch runs one job per user. Its first qstat -Qf waits until the test lets it answer,
+     * and its first qsub waits until the test lets it fail.
+     */
+    private static final class SlowPbs implements CommandExecutor {
+
+        private final CountDownLatch queuesRead = new CountDownLatch(1);
+        private final CountDownLatch firstQsubStarted = new CountDownLatch(1);
+        private final CountDownLatch firstQsubFails = new CountDownLatch(1);
+        private final AtomicInteger qsubCalls = new AtomicInteger();
+        private final AtomicInteger jobs = new AtomicInteger();
+
+        @Override
+        public CommandOutput execute(CmdLine cmd) {
+            String[] args = cmd.toCommandArray(OperatingSystemFamily.UNIX, false);
+            if ("qstat".equals(args[0]) && "-Qf".equals(args[1])) {
+                await(queuesRead);
+                return new CommandOutput(0, "Queue: batch\n    max_user_run = 1\n    enabled = True\n", "");
+            } else if ("sh".equals(args[0])) {
+                // qselect
+                return new CommandOutput(0, "", "");
+            } else if ("qstat".equals(args[0])) {
+                return new CommandOutput(0, "<Data></Data>", "");
+            }
+            if (qsubCalls.incrementAndGet() == 1) {
+                firstQsubStarted.countDown();
+                await(firstQsubFails);
+                return new CommandOutput(1, "", "qsub: Unauthorized Request\n");
+            }
+            return new CommandOutput(0, jobs.incrementAndGet() + ".server\n", "");
+        }
+
+        private static void await(CountDownLatch latch) {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeIOException(e);
+            }
+        }
+
+        @Override
+        public CommandOutput execute(CmdLine cmd, String input) {
+            return execute(cmd);
+        }
+
+        @Override
+        public List<CommandOutput> executeAll(List<CmdLine> cmds) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+    private SlowPbs pbs;
+    private SessionImpl session;
+
+    @Before
+    public void setUp() {
+        pbs = new SlowPbs();
+        Map<String, String> options = new HashMap<String, String>();
+        options.put(SessionImpl.OPTION_ADMISSION_POLICY, "hold");
+        options.put(SessionImpl.OPTION_DEFAULT_QUEUE, "batch");
+        options.put(SessionImpl.OPTION_QUEUE_REFRESH_INTERVAL, "60000");
+        options.put(SessionImpl.OPTION_SUBMITTERS, "1");
+        options.put(SessionImpl.OPTION_SUBMIT_QUEUE_CAPACITY, "2");
+        options.put(SessionImpl.OPTION_SUBMIT_OVERFLOW_POLICY, "block");
+        session = new SessionImpl();
+        session.init("local", options, pbs);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        session.exit();
+    }
+
+    @Test(timeout = 30000L)
+    public void testSubmitsHeldJobsAdmittedByAWorkerOfAFullQueue() throws Exception {
+        JobTemplate jt = session.createJobTemplate();
+        jt.setRemoteCommand("/bin/job.sh");
+        CompletableFuture<String> first = session.runJobAsync(jt);
+        // queued before the first job is admitted, so that it is held before the first qsub runs
+        CompletableFuture<String> second = session.runJobAsync(jt);
+        pbs.queuesRead.countDown();
+        assertTrue(pbs.firstQsubStarted.await(10L, TimeUnit.SECONDS));
+        assertEquals(1, session.getAdmissionController().getWaitingCount());
+        // fills the submission queue while its only worker runs the first qsub
+        session.runJobAsync(jt);
+        session.runJobAsync(jt);
+        // the worker gives the slot of the failed job to the held one
+        pbs.firstQsubFails.countDown();
+        try {
+            first.get(10L, TimeUnit.SECONDS);
+            fail("Expected the first job to be denied");
+        } catch (ExecutionException expected) {
+            // expected
+        }
+        assertEquals("1.server", second.get(10L, TimeUnit.SECONDS));
+    }
+
+}
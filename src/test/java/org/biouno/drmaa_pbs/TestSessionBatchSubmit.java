@@ -0,0 +1,112 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.ggf.drmaa.InvalidJobException;
+import org.ggf.drmaa.JobTemplate;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for submitting batches of job templates, and inline job scripts.
+ */
+public class TestSessionBatchSubmit {
+
+    private FakeQsub qsub;
+    private SessionImpl session;
+
+    @Before
+    public void setUp() {
+        qsub = new FakeQsub();
+        Map<String, String> options = new HashMap<String, String>();
+        options.put(SessionImpl.OPTION_SUBMIT_BATCH_SIZE, "3");
+        session = new SessionImpl();
+        session.init("local", options, qsub);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        session.exit();
+    }
+
+    private List<JobTemplate> templates(String... commands) throws Exception {
+        List<JobTemplate> jts = new ArrayList<JobTemplate>();
+        for (String command : commands) {
+            JobTemplate jt = session.createJobTemplate();
+            jt.setRemoteCommand(command);
+            jt.setJobName("job with spaces");
+            jts.add(jt);
+        }
+        return jts;
+    }
+
+    @Test
+    public void testSubmitsBatchesInOneCommandEach() throws Exception {
+        List<SubmitResult> results = session.runJobs(templates("/bin/a.sh", "/bin/b.sh", "/bin/c.sh", "/bin/d.sh"));
+        assertEquals(2, qsub.getCommands().size());
+        List<String> jobIds = new ArrayList<String>();
+        for (SubmitResult result : results) {
+            assertTrue(result.toString(), result.isSubmitted());
+            jobIds.add(result.getJobId());
+        }
+        // each batch runs in a new shell, where the fake qsub counts from 1
+        assertEquals(Arrays.asList("1.server", "2.server", "3.server", "1.server"), jobIds);
+        assertTrue(session.getStatusCache().isTracked("3.server"));
+    }
+
+    @Test
+    public void testReportsFailuresPerTemplate() throws Exception {
+        List<SubmitResult> results = session.runJobs(templates("/bin/a.sh", "/bin/fail.sh", "/bin/c.sh"));
+        assertEquals(1, qsub.getCommands().size());
+        assertEquals("1.server", results.get(0).getJobId());
+        assertFalse(results.get(1).isSubmitted());
+        assertTrue(results.get(1).getError() instanceof InvalidJobException);
+        assertTrue(results.get(1).getError().getMessage().contains("qsub: cannot submit"));
+        assertEquals("3.server", results.get(2).getJobId());
+        assertEquals(2, session.getStatusCache().getTrackedJobCount());
+    }
+
+    @Test
+    public void testSubmitsInlineScriptThroughStandardInput() throws Exception {
+        JobTemplate jt = session.createJobTemplate();
+        jt.setJobName("inline");
+        assertEquals("1.server", session.runJobScript(jt, "#!/bin/sh\necho $PBS_JOBID\n"));
+        assertEquals(1, qsub.getCommands().size());
+        String command = qsub.getCommands().get(0);
+        assertTrue(command, command.contains("PBS_JOBID") && command.contains("\\<\\<"));
+        assertTrue(session.getStatusCache().isTracked("1.server"));
+    }
+
+}
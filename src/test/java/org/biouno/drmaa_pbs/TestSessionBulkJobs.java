@@ -0,0 +1,149 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.ggf.drmaa.InvalidJobTemplateException;
+import org.ggf.drmaa.JobTemplate;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for submitting bulk jobs as PBS job arrays.
+ */
+public class TestSessionBulkJobs {
+
+    private FakeQsub qsub;
+    private SessionImpl session;
+    private Map<String, String> options;
+
+    @Before
+    public void setUp() {
+        qsub = new FakeQsub();
+        options = new HashMap<String, String>();
+        session = new SessionImpl();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        session.exit();
+    }
+
+    private JobTemplate template() throws Exception {
+        JobTemplate jt = session.createJobTemplate();
+        jt.setRemoteCommand("/bin/process.sh");
+        jt.setArgs(Arrays.asList("input-" + JobTemplate.PARAMETRIC_INDEX + ".txt"));
+        jt.setOutputPath("/tmp/out." + JobTemplate.PARAMETRIC_INDEX);
+        return jt;
+    }
+
+    @Test
+    public void testSubmitsOnePbsProArray() throws Exception {
+        session.init("local", options, qsub);
+        List<?> jobIds = session.runBulkJobs(template(), 1, 10, 3);
+        assertEquals(Arrays.asList("1[1].server", "1[4].server", "1[7].server", "1[10].server"), jobIds);
+        assertEquals(1, qsub.getQsubCalls().size());
+        String call = qsub.getQsubCalls().get(0);
+        assertTrue(call, call.contains("-J 1-10:3"));
+        assertTrue(call, call.contains("/tmp/out.^array_index^"));
+        // the command is run by the script given to qsub, not by qsub
+        assertTrue(call, !call.contains("/bin/process.sh"));
+        assertEquals(SessionImpl.buildArrayJobScript("/bin/process.sh",
+                Arrays.asList("input-" + JobTemplate.PARAMETRIC_INDEX + ".txt"), "PBS_ARRAY_INDEX"),
+                qsub.getQsubInput());
+        assertTrue(session.getStatusCache().isTracked("1[7].server"));
+        assertEquals(4, session.getStatusCache().getTrackedJobCount());
+    }
+
+    @Test
+    public void testSubmitsOneTorqueArray() throws Exception {
+        options.put(SessionImpl.OPTION_PBS_FLAVOR, "torque");
+        session.init("local", options, qsub);
+        List<?> jobIds = session.runBulkJobs(template(), 2, 6, 2);
+        assertEquals(Arrays.asList("1[2].server", "1[4].server", "1[6].server"), jobIds);
+        String call = qsub.getQsubCalls().get(0);
+        assertTrue(call, call.contains("-t 2,4,6"));
+        assertTrue(qsub.getQsubInput(), qsub.getQsubInput().contains("'input-'\"${PBS_ARRAYID}\"'.txt'"));
+    }
+
+    @Test
+    public void testArrayJobScriptExpandsTheIndexWhenRun() throws Exception {
+        String index = JobTemplate.PARAMETRIC_INDEX;
+        List<String> args = Arrays.asList("%s\\n", "input-" + index + ".txt", index + index,
+                "it's $HOME `id` \"quoted\" \\", "", "two\nlines");
+        String script = SessionImpl.buildArrayJobScript("printf", args, "PBS_ARRAY_INDEX");
+        File file = File.createTempFile("array", ".sh");
+        try {
+            FileUtils.writeStringToFile(file, script, StandardCharsets.UTF_8);
+            ProcessBuilder builder = new ProcessBuilder("sh", file.getAbsolutePath());
+            builder.environment().put("PBS_ARRAY_INDEX", "7");
+            Process process = builder.start();
+            String stdout = IOUtils.toString(process.getInputStream(), StandardCharsets.UTF_8);
+            assertEquals(0, process.waitFor());
+            assertEquals("input-7.txt\n77\nit's $HOME `id` \"quoted\" \\\n\ntwo\nlines\n", stdout);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testSubmitsASingleIndexAsAJob() throws Exception {
+        qsub.setJobId("99.server");
+        session.init("local", options, qsub);
+        assertEquals(Collections.singletonList("99.server"), session.runBulkJobs(template(), 5, 7, 3));
+        String command = qsub.getCommands().get(0);
+        assertTrue(command, command.contains("input-5.txt"));
+        assertTrue(command, !command.contains("-J"));
+    }
+
+    @Test
+    public void testFailsForAnInvalidRange() throws Exception {
+        session.init("local", options, qsub);
+        CompletableFuture<List<String>> jobIds = session.runBulkJobsAsync(template(), 5, 4, 1);
+        try {
+            jobIds.get();
+            fail("Expected the range to be invalid");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof InvalidJobTemplateException);
+        }
+        assertTrue(qsub.getQsubCalls().isEmpty());
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.ggf.drmaa.JobTemplate;
+import org.ggf.drmaa.Session;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for controlling many jobs with few commands.
+ */
+public class TestSessionControl {
+
+    private FakeQsub qsub;
+    private SessionImpl session;
+
+    @Before
+    public void setUp() {
+        qsub = new FakeQsub();
+        Map<String, String> options = new HashMap<String, String>();
+        options.put(SessionImpl.OPTION_CONTROL_MAX_COMMAND_LENGTH, "31");
+        session = new SessionImpl();
+        session.init("local", options, qsub);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        session.exit();
+    }
+
+    @Test
+    public void testRunsTheCommandOfEachAction() throws Exception {
+        session.control("1.server", Session.SUSPEND);
+        session.control("1.server", Session.RESUME);
+        session.control("1.server", Session.HOLD);
+        session.control("1.server", Session.RELEASE);
+        session.control("1.server", Session.TERMINATE);
+        assertEquals(Arrays.asList("qsig -s suspend 1.server", "qsig -s resume 1.server", "qhold 1.server",
+                "qrls 1.server", "qdel 1.server"), qsub.getCommands());
+    }
+
+    @Test
+    public void testSplitsJobsAmongCommands() throws Exception {
+        List<String> jobIds = new ArrayList<String>();
+        for (int i = 1; i <= 10; i++) {
+            jobIds.add(i + ".server");
+        }
+        session.control(jobIds, Session.TERMINATE);
+        List<String> commands = qsub.getCommands();
+        assertEquals(4, commands.size());
+        // the commands run in parallel, in any order
+        Collections.sort(commands);
+        assertEquals(Arrays.asList("qdel 1.server 2.server 3.server", "qdel 10.server",
+                "qdel 4.server 5.server 6.server", "qdel 7.server 8.server 9.server"), commands);
+        for (String command : commands) {
+            assertTrue(command, command.length() <= 31);
+        }
+    }
+
+    @Test
+    public void testControlsAllTheJobsOfTheSession() throws Exception {
+        for (String jobId : Arrays.asList("1.server", "2.server", "3.server")) {
+            qsub.setJobId(jobId);
+            JobTemplate jt = session.createJobTemplate();
+            jt.setRemoteCommand("/bin/job.sh");
+            session.runJob(jt);
+        }
+        session.control(Session.JOB_IDS_SESSION_ALL, Session.HOLD);
+        List<String> commands = qsub.getCommands().subList(3, qsub.getCommands().size());
+        List<String> held = new ArrayList<String>();
+        for (String command : commands) {
+            assertTrue(command, command.startsWith("qhold "));
+            held.addAll(Arrays.asList(command.substring("qhold ".length()).split(" ")));
+        }
+        Collections.sort(held);
+        assertEquals(2, commands.size());
+        assertEquals(Arrays.asList("1.server", "2.server", "3.server"), held);
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.biouno.drmaa_pbs.exec.CommandExecutor;
+import org.biouno.drmaa_pbs.exec.CommandOutput;
+import org.ggf.drmaa.NoActiveSessionException;
+import org.junit.Test;
+
+import com.xebialabs.overthere.CmdLine;
+
+/**
+ * Tests for exiting a session while its commands are running or queued.
+ */
+public class TestSessionExit {
+
+    /**
+     * A qstat that never returns until interrupted.
+     */
+    private static final class HangingQstat implements CommandExecutor {
+
+        private final CountDownLatch started = new CountDownLatch(1);
+
+        @Override
+        public CommandOutput execute(CmdLine cmd) throws InterruptedException {
+            started.countDown();
+            new CountDownLatch(1).await();
+            throw new IllegalStateException("Unreachable");
+        }
+
+        @Override
+        public List<CommandOutput> executeAll(List<CmdLine> cmds) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+    private static CompletableFuture<Throwable> getJobProgramStatus(final SessionImpl session, final String jobId) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                session.getJobProgramStatus(jobId);
+                return null;
+            } catch (Throwable t) {
+                return t;
+            }
+        });
+    }
+
+    @Test(timeout = 30000L)
+    public void testExitFailsQueuedCommands() throws Exception {
+        HangingQstat qstat = new HangingQstat();
+        Map<String, String> options = new HashMap<String, String>();
+        options.put(SessionImpl.OPTION_MAX_CONCURRENT_COMMANDS, "1");
+        SessionImpl session = new SessionImpl();
+        session.init("local", options, qstat);
+        CompletableFuture<Throwable> running = getJobProgramStatus(session, "1.server");
+        qstat.started.await();
+        // queued behind the running qstat
+        CompletableFuture<Throwable> queued = getJobProgramStatus(session, "2.server");
+        while (session.getExecutionEngine().getQueuedTaskCount() == 0) {
+            Thread.sleep(10L);
+        }
+        session.exit();
+        Throwable error = queued.get(10, TimeUnit.SECONDS);
+        assertTrue(String.valueOf(error), error instanceof NoActiveSessionException);
+        assertTrue(running.get(10, TimeUnit.SECONDS) != null);
+    }
+
+}
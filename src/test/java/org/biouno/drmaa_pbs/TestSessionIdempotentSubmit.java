@@ -0,0 +1,307 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.biouno.drmaa_pbs.exec.CommandExecutor;
+import org.biouno.drmaa_pbs.exec.CommandOutput;
+import org.biouno.drmaa_pbs.exec.ConnectionUnavailableException;
+import org.biouno.drmaa_pbs.status.JobTokenLookup;
+import org.ggf.drmaa.DrmCommunicationException;
+import org.ggf.drmaa.JobTemplate;
+import org.ggf.drmaa.TryLaterException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.OperatingSystemFamily;
+import com.xebialabs.overthere.RuntimeIOException;
+
+/**
+ * Tests for submitting jobs again after transient failures, without submitting them twice.
+ */
+public class TestSessionIdempotentSubmit {
+
+    /**
+     * How the fake server answers a qsub.
+     */
+    private enum Outcome {
+        /** the job is submitted */
+        SUBMIT,
+        /** the connection drops before the server receives the job */
+        DROP_BEFORE,
+        /** the connection drops after the server received the job */
+        DROP_AFTER,
+        /** qsub loses the server after it received the job */
+        PREMATURE_END,
+        /** qsub cannot connect to the server */
+        REFUSED,
+        /** no connection to the host can be opened */
+        NO_CONNECTION
+    }
+
+    /**
+     * A PBS server whose qsub fails as told by the test, and whose qstat -fx reports the variable list of the jobs.
+     * Its queue batch runs one job per user. The token lookup script is run by a local shell, where qselect lists
+     * the jobs, and qstat prints the ids it is given.
+     */
+    private static final class FlakyPbs implements CommandExecutor {
+
+        private final LinkedList<Outcome> outcomes = new LinkedList<Outcome>();
+        private final Map<String, String> jobs = new LinkedHashMap<String, String>();
+        private final List<String> qsubCalls = new ArrayList<String>();
+        private final List<String> qstatIds = new ArrayList<String>();
+        private int qstatCalls = 0;
+
+        @Override
+        public synchronized CommandOutput execute(CmdLine cmd) {
+            String[] args = cmd.toCommandArray(OperatingSystemFamily.UNIX, false);
+            if ("qstat".equals(args[0]) && "-Qf".equals(args[1])) {
+                return new CommandOutput(0, "Queue: batch\n    max_user_run = 1\n    enabled = True\n", "");
+            } else if ("sh".equals(args[0]) && args[2].startsWith("qselect")) {
+                return new CommandOutput(0, "", "");
+            } else if ("sh".equals(args[0]) && args[2].contains("qstat -fx")) {
+                qstatCalls++;
+                qstatIds.clear();
+                qstatIds.addAll(Arrays.asList(StringUtils.split(runLookup(args[2]))));
+                return qstat(qstatIds);
+            } else if ("qstat".equals(args[0])) {
+                return qstat(jobs.keySet());
+            }
+            qsubCalls.add(cmd.toString());
+            Outcome outcome = outcomes.isEmpty() ? Outcome.SUBMIT : outcomes.removeFirst();
+            if (outcome == Outcome.DROP_BEFORE) {
+                throw new RuntimeIOException("Channel closed");
+            } else if (outcome == Outcome.NO_CONNECTION) {
+                throw new ConnectionUnavailableException("Timed out waiting for a connection");
+            } else if (outcome == Outcome.REFUSED) {
+                return new CommandOutput(1, "", "qsub: cannot connect to server pbs (errno=111) Connection refused\n");
+            }
+            List<String> argList = Arrays.asList(args);
+            String jobId = (jobs.size() + 1) + (argList.contains("-t") ? "[].server" : ".server");
+            jobs.put(jobId, argList.get(argList.indexOf("-v") + 1));
+            if (outcome == Outcome.DROP_AFTER) {
+                throw new RuntimeIOException("Channel closed");
+            } else if (outcome == Outcome.PREMATURE_END) {
+                return new CommandOutput(1, "", "qsub: Premature end of message\n");
+            }
+            return new CommandOutput(0, jobId + "\n", "");
+        }
+
+        private CommandOutput qstat(Collection<String> jobIds) {
+            StringBuilder xml = new StringBuilder("<Data>");
+            for (String jobId : jobIds) {
+                xml.append("<Job><Job_Id>").append(jobId).append("</Job_Id><Variable_List>")
+                        .append("PBS_O_HOME=/home/bob,").append(jobs.get(jobId)).append("</Variable_List></Job>");
+            }
+            return new CommandOutput(0, xml.append("</Data>").toString(), "");
+        }
+
+        private String runLookup(String script) {
+            try {
+                ProcessBuilder builder = new ProcessBuilder("sh", "-c",
+                        "qselect() { printf '%s\\n' $JOBS; }; qstat() { shift; echo \"$@\"; }; " + script);
+                builder.environment().put("JOBS", StringUtils.join(jobs.keySet(), ' '));
+                Process process = builder.start();
+                process.getOutputStream().close();
+                String stdout = IOUtils.toString(process.getInputStream(), StandardCharsets.UTF_8);
+                process.waitFor();
+                return stdout;
+            } catch (IOException | InterruptedException e) {
+                throw new RuntimeIOException(e);
+            }
+        }
+
+        @Override
+        public CommandOutput execute(CmdLine cmd, String input) {
+            return execute(cmd);
+        }
+
+        @Override
+        public List<CommandOutput> executeAll(List<CmdLine> cmds) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+    private FlakyPbs pbs;
+    private SessionImpl session;
+
+    @Before
+    public void setUp() {
+        init(new HashMap<String, String>());
+    }
+
+    private void init(Map<String, String> options) {
+        pbs = new FlakyPbs();
+        options.put(SessionImpl.OPTION_SUBMIT_RETRIES, "3");
+        options.put(SessionImpl.OPTION_SUBMIT_RETRY_DELAY, "1");
+        options.put(SessionImpl.OPTION_PBS_FLAVOR, "torque");
+        session = new SessionImpl();
+        session.init("local", options, pbs);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        session.exit();
+    }
+
+    private JobTemplate template(String nativeSpecification) throws Exception {
+        JobTemplate jt = session.createJobTemplate();
+        jt.setRemoteCommand("/bin/job.sh");
+        jt.setNativeSpecification(nativeSpecification);
+        return jt;
+    }
+
+    @Test
+    public void testFindsJobsReceivedBeforeTheConnectionDropped() throws Exception {
+        pbs.outcomes.addAll(Arrays.asList(Outcome.DROP_AFTER, Outcome.PREMATURE_END));
+        assertEquals("1.server", session.runJob(template(null)));
+        assertEquals("2.server", session.runJobScript(template(null), "echo hello"));
+        assertEquals(2, pbs.qsubCalls.size());
+        assertEquals(2, pbs.qstatCalls);
+        assertEquals(2, pbs.jobs.size());
+        assertTrue(session.getStatusCache().isTracked("1.server"));
+        assertTrue(pbs.qsubCalls.get(0), pbs.qsubCalls.get(0).contains("-v DRMAA_PBS_TOKEN="));
+    }
+
+    @Test
+    public void testSubmitsAgainJobsTheServerDidNotReceive() throws Exception {
+        pbs.outcomes.addAll(Arrays.asList(Outcome.DROP_BEFORE, Outcome.DROP_BEFORE));
+        assertEquals("1.server", session.runJob(template("-q batch -v FOO=bar")));
+        assertEquals(3, pbs.qsubCalls.size());
+        assertEquals(2, pbs.qstatCalls);
+        // every attempt gives the same token, in the variables of the native specification
+        String first = pbs.qsubCalls.get(0);
+        assertEquals(first, pbs.qsubCalls.get(2));
+        assertTrue(first, first.contains("-q batch -v FOO=bar,DRMAA_PBS_TOKEN="));
+    }
+
+    @Test
+    public void testSubmitsAgainWithoutSearchingJobsNeverSent() throws Exception {
+        pbs.outcomes.addAll(Arrays.asList(Outcome.REFUSED, Outcome.NO_CONNECTION));
+        assertEquals("1.server", session.runJob(template(null)));
+        assertEquals(3, pbs.qsubCalls.size());
+        assertEquals(0, pbs.qstatCalls);
+        // only the failure that may have reached the server is searched
+        pbs.outcomes.addAll(Arrays.asList(Outcome.DROP_BEFORE, Outcome.REFUSED));
+        assertEquals("2.server", session.runJob(template(null)));
+        assertEquals(6, pbs.qsubCalls.size());
+        assertEquals(1, pbs.qstatCalls);
+    }
+
+    @Test
+    public void testSearchesOnlyTheRecentJobsOfTheUser() throws Exception {
+        for (int i = JobTokenLookup.RECENT_JOBS + 5; i > 0; i--) {
+            pbs.jobs.put(i + ".server", JobTokenLookup.toVariable("other" + i));
+        }
+        pbs.outcomes.add(Outcome.DROP_AFTER);
+        String jobId = (JobTokenLookup.RECENT_JOBS + 6) + ".server";
+        assertEquals(jobId, session.runJob(template(null)));
+        assertEquals(1, pbs.qsubCalls.size());
+        assertEquals(JobTokenLookup.RECENT_JOBS, pbs.qstatIds.size());
+        assertEquals("7.server", pbs.qstatIds.get(0));
+        assertEquals(jobId, pbs.qstatIds.get(pbs.qstatIds.size() - 1));
+    }
+
+    @Test
+    public void testGivesUpAfterTheLastAttempt() throws Exception {
+        pbs.outcomes.addAll(Arrays.asList(Outcome.DROP_BEFORE, Outcome.DROP_BEFORE, Outcome.DROP_BEFORE,
+                Outcome.DROP_BEFORE));
+        try {
+            session.runJob(template(null));
+            fail("Expected the submission to fail");
+        } catch (DrmCommunicationException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("after 4 attempts"));
+        }
+        assertEquals(4, pbs.qsubCalls.size());
+        assertEquals(3, pbs.qstatCalls);
+        assertTrue(pbs.jobs.isEmpty());
+    }
+
+    @Test
+    public void testFindsBulkJobsReceivedBeforeTheConnectionDropped() throws Exception {
+        pbs.outcomes.addAll(Arrays.asList(Outcome.DROP_AFTER, Outcome.DROP_AFTER));
+        assertEquals(Arrays.asList("1[1].server", "1[2].server"), session.runBulkJobs(template(null), 1, 2, 1));
+        assertEquals(Arrays.asList("2.server"), session.runBulkJobs(template(null), 3, 3, 1));
+        assertEquals(2, pbs.qsubCalls.size());
+        assertEquals(2, pbs.qstatCalls);
+        assertTrue(session.getStatusCache().isTracked("1[2].server"));
+        assertFalse(session.getStatusCache().isTracked("1[].server"));
+    }
+
+    @Test
+    public void testDoesNotSubmitBatchedJobsAgain() throws Exception {
+        pbs.outcomes.add(Outcome.DROP_AFTER);
+        List<SubmitResult> results = session.runJobs(Arrays.asList(template(null), template(null)));
+        assertTrue(results.get(0).getError() instanceof DrmCommunicationException);
+        assertTrue(results.get(1).getError() instanceof DrmCommunicationException);
+        assertEquals(1, pbs.qsubCalls.size());
+        assertEquals(0, pbs.qstatCalls);
+        assertFalse(pbs.qsubCalls.get(0), pbs.qsubCalls.get(0).contains("DRMAA_PBS_TOKEN"));
+    }
+
+    @Test
+    public void testChecksOnlySingleJobsAgainstTheQueue() throws Exception {
+        session.exit();
+        Map<String, String> options = new HashMap<String, String>();
+        options.put(SessionImpl.OPTION_ADMISSION_POLICY, "reject");
+        options.put(SessionImpl.OPTION_DEFAULT_QUEUE, "batch");
+        init(options);
+        assertEquals("1.server", session.runJob(template(null)));
+        try {
+            session.runBulkJobs(template(null), 1, 1, 1);
+            fail("Expected the queue to be full");
+        } catch (TryLaterException expected) {
+            // expected
+        }
+        // job arrays are not checked
+        assertEquals(Arrays.asList("2[1].server", "2[2].server"), session.runBulkJobs(template(null), 1, 2, 1));
+        assertEquals(1L, session.getAdmissionController().getAdmittedCount());
+        assertEquals(1L, session.getAdmissionController().getRejectedCount());
+    }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.biouno.drmaa_pbs.exec.CommandExecutor;
+import org.biouno.drmaa_pbs.exec.CommandOutput;
+import org.biouno.drmaa_pbs.exec.LocalConnectionFactory;
+import org.biouno.drmaa_pbs.exec.ProcessCommandExecutor;
+import org.ggf.drmaa.InvalidJobTemplateException;
+import org.ggf.drmaa.JobTemplate;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.OperatingSystemFamily;
+
+/**
+ * Tests for submitting workflows of dependent jobs.
+ */
+public class TestSessionJobGraph {
+
+    private static final int LARGE_GRAPH_JOBS = 3000;
+
+    private FakeQsub qsub;
+    private SessionImpl session;
+
+    @Before
+    public void setUp() {
+        qsub = new FakeQsub();
+        session = new SessionImpl();
+        session.init("local", new HashMap<String, String>(), qsub);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        session.exit();
+    }
+
+    private JobTemplate template(String command) throws Exception {
+        JobTemplate jt = session.createJobTemplate();
+        jt.setRemoteCommand(command);
+        return jt;
+    }
+
+    /**
+     * A diamond: align depends on fetch, call and stats on align, and report on call and stats.
+     */
+    @Test
+    public void testSubmitsGraphInOneCommand() throws Exception {
+        JobGraph graph = new JobGraph().addJob("report", template("/bin/report.sh"))
+                .addJob("call", template("/bin/call.sh")).addJob("stats", template("/bin/stats.sh"))
+                .addJob("align", template("/bin/align.sh")).addJob("fetch", template("/bin/fetch.sh"))
+                .addDependency("report", "call").addDependency("report", "stats").addDependency("call", "align")
+                .addDependency("stats", "align").addDependency("align", "fetch");
+        Map<String, SubmitResult> results = session.runJobGraph(graph);
+        assertEquals(1, qsub.getCommands().size());
+        assertEquals(Arrays.asList("fetch", "align", "call", "stats", "report"),
+                Arrays.asList(results.keySet().toArray()));
+        assertEquals("1.server", results.get("fetch").getJobId());
+        assertEquals("5.server", results.get("report").getJobId());
+        List<String> calls = qsub.getQsubCalls();
+        assertEquals("/bin/fetch.sh", calls.get(0));
+        assertEquals("-W depend=afterok:1.server /bin/align.sh", calls.get(1));
+        assertEquals("-W depend=afterok:3.server:4.server /bin/report.sh", calls.get(4));
+        assertEquals(5, session.getStatusCache().getTrackedJobCount());
+    }
+
+    @Test
+    public void testSkipsJobsDependingOnFailedJobs() throws Exception {
+        JobGraph graph = new JobGraph().addJob("a", template("/bin/a.sh")).addJob("b", template("/bin/fail.sh"))
+                .addJob("c", template("/bin/c.sh")).addJob("d", template("/bin/d.sh")).addDependency("b", "a")
+                .addDependency("c", "b").addDependency("d", "a");
+        Map<String, SubmitResult> results = session.runJobGraph(graph);
+        assertTrue(results.get("a").isSubmitted());
+        assertTrue(results.get("b").getError().getMessage().contains("qsub: cannot submit"));
+        assertFalse(results.get("c").isSubmitted());
+        assertTrue(results.get("d").isSubmitted());
+        assertEquals(3, qsub.getQsubCalls().size());
+    }
+
+    @Test
+    public void testRejectsCycles() throws Exception {
+        JobGraph graph = new JobGraph().addJob("a", template("/bin/a.sh")).addJob("b", template("/bin/b.sh"))
+                .addJob("c", template("/bin/c.sh")).addDependency("a", "b").addDependency("b", "a")
+                .addDependency("c", "a");
+        try {
+            session.runJobGraph(graph);
+            fail("Expected the cycle to be rejected");
+        } catch (InvalidJobTemplateException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("[a, b, c]"));
+        }
+        assertTrue(qsub.getCommands().isEmpty());
+    }
+
+    /**
+     * The script of a large graph is over the maximum size of a command argument, and its output over the size of a
+     * pipe, so that it is only submitted if its input is written while its output is read. qsub is a local script
+     * printing its process id.
+     */
+    @Test(timeout = 120000L)
+    public void testSubmitsLargeGraphsWithTheProcessExecutor() throws Exception {
+        final File bin = Files.createTempDirectory("qsub").toFile();
+        try {
+            File qsubScript = new File(bin, "qsub");
+            FileUtils.writeStringToFile(qsubScript, "#!/bin/sh\necho \"$$.server\"\n", StandardCharsets.UTF_8);
+            assertTrue(qsubScript.setExecutable(true));
+            final ProcessCommandExecutor local = new ProcessCommandExecutor(LocalConnectionFactory.newPool(0, 1));
+            CommandExecutor executor = new CommandExecutor() {
+                @Override
+                public CommandOutput execute(CmdLine cmd) throws InterruptedException {
+                    return local.execute(cmd);
+                }
+
+                @Override
+                public CommandOutput execute(CmdLine cmd, String input) throws InterruptedException {
+                    CmdLine withQsub = CmdLine.build("env", "PATH=" + bin + ":" + System.getenv("PATH"));
+                    for (String arg : cmd.toCommandArray(OperatingSystemFamily.UNIX, false)) {
+                        withQsub.addArgument(arg);
+                    }
+                    return local.execute(withQsub, input);
+                }
+
+                @Override
+                public List<CommandOutput> executeAll(List<CmdLine> cmds) throws InterruptedException {
+                    return local.executeAll(cmds);
+                }
+
+                @Override
+                public void close() {
+                    local.close();
+                }
+            };
+            session.exit();
+            session = new SessionImpl();
+            session.init("local", new HashMap<String, String>(), executor);
+            JobGraph graph = new JobGraph();
+            for (int i = 0; i < LARGE_GRAPH_JOBS; i++) {
+                graph.addJob("job" + i, template("/bin/job.sh"));
+                if (i > 0) {
+                    graph.addDependency("job" + i, "job" + (i - 1));
+                }
+            }
+            Map<String, SubmitResult> results = session.runJobGraph(graph);
+            assertEquals(LARGE_GRAPH_JOBS, results.size());
+            for (SubmitResult result : results.values()) {
+                assertNull(String.valueOf(result.getError()), result.getError());
+            }
+        } finally {
+            FileUtils.deleteDirectory(bin);
+        }
+    }
+
+}
@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.biouno.drmaa_pbs.status.FakeQstat;
+import org.ggf.drmaa.ExitTimeoutException;
+import org.ggf.drmaa.InvalidJobException;
+import org.ggf.drmaa.Session;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for synchronizing on many jobs against a fake qstat.
+ */
+public class TestSessionSynchronize {
+
+    private static final int JOBS = 10000;
+
+    private FakeQstat qstat;
+    private SessionImpl session;
+
+    @Before
+    public void setUp() {
+        qstat = new FakeQstat();
+        Map<String, String> options = new HashMap<String, String>();
+        options.put(SessionImpl.OPTION_POLL_INTERVAL, "50");
+        options.put(SessionImpl.OPTION_POLL_LATENCY, "10");
+        options.put(SessionImpl.OPTION_STATUS_CACHE_TTL, "0");
+        options.put(SessionImpl.OPTION_MAX_STATUS_QUERIES_PER_SECOND, "0");
+        session = new SessionImpl();
+        session.init("local", options, qstat);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        session.exit();
+    }
+
+    /**
+     * Every job runs for two polls. Waiting on each job with its own qstat would take 30,000 commands, the batched
+     * queries take 3 polls of 20 batches of 500 jobs.
+     */
+    @Test(timeout = 60000L)
+    public void testSynchronizesAllSessionJobsInBatches() throws Exception {
+        for (int i = 0; i < JOBS; i++) {
+            qstat.setState(i + ".server", "R");
+            session.getStatusCache().track(i + ".server");
+        }
+        qstat.setFinishAfter(2);
+        session.synchronize(Collections.singletonList(Session.JOB_IDS_SESSION_ALL), Session.TIMEOUT_WAIT_FOREVER,
+                false);
+        assertEquals(60, qstat.getCalls().size());
+        for (List<String> call : qstat.getCalls()) {
+            assertEquals(500, call.size());
+        }
+        assertEquals(JOBS, session.getStatusCache().getTrackedJobIds().size());
+    }
+
+    @Test(timeout = 60000L)
+    public void testDisposeForgetsJobs() throws Exception {
+        qstat.setState("1.server", "F");
+        qstat.setState("2.server", "R");
+        qstat.setFinishAfter(1);
+        session.synchronize(Arrays.asList("1.server", "2.server"), Session.TIMEOUT_WAIT_FOREVER, true);
+        assertTrue(session.getStatusCache().getTrackedJobIds().isEmpty());
+    }
+
+    @Test(timeout = 60000L)
+    public void testWaitAfterDisposeFails() throws Exception {
+        qstat.setState("1.server", "F");
+        qstat.setState("2.server", "F");
+        session.synchronize(Arrays.asList("1.server", "2.server"), Session.TIMEOUT_WAIT_FOREVER, true);
+        assertEquals(0, session.getTerminalJobCache().size());
+        assertEquals("2.server", session.wait("2.server", Session.TIMEOUT_WAIT_FOREVER).getJobId());
+        // the server has forgotten the jobs too
+        qstat.setState("1.server", null);
+        qstat.setState("2.server", null);
+        for (String jobId : Arrays.asList("1.server", "2.server")) {
+            try {
+                session.wait(jobId, Session.TIMEOUT_WAIT_FOREVER);
+                fail("Expected " + jobId + " to be unknown");
+            } catch (InvalidJobException expected) {
+                // expected
+            }
+        }
+    }
+
+    @Test(timeout = 60000L)
+    public void testFinishedJobsAreAnsweredWithoutQstat() throws Exception {
+        qstat.setState("1.server", "R");
+        qstat.setFinishAfter(1);
+        session.synchronize(Arrays.asList("1.server"), Session.TIMEOUT_WAIT_FOREVER, false);
+        int calls = qstat.getCalls().size();
+        assertEquals(Session.DONE, session.getJobProgramStatus("1.server"));
+        session.synchronize(Arrays.asList("1.server"), Session.TIMEOUT_NO_WAIT, false);
+        assertEquals(0, session.wait("1.server", Session.TIMEOUT_NO_WAIT).getExitStatus());
+        assertEquals(calls, qstat.getCalls().size());
+        assertEquals(3L, session.getTerminalJobCache().getHitCount());
+        // the wait reaped the job
+        assertEquals(0, session.getTerminalJobCache().size());
+    }
+
+    @Test(timeout = 60000L)
+    public void testTimesOut() throws Exception {
+        qstat.setState("1.server", "F");
+        qstat.setState("2.server", "Q");
+        long start = System.currentTimeMillis();
+        try {
+            session.synchronize(Arrays.asList("1.server", "2.server"), 1L, true);
+        } catch (ExitTimeoutException expected) {
+            assertTrue(System.currentTimeMillis() - start >= 1000L);
+            // the session did not submit them
+            assertTrue(session.getStatusCache().getTrackedJobIds().isEmpty());
+            return;
+        }
+        throw new AssertionError("Expected an ExitTimeoutException");
+    }
+
+    @Test(timeout = 60000L)
+    public void testDoesNotControlTheJobsOfOtherSessions() throws Exception {
+        qstat.setState("1.server", "R");
+        qstat.setState("2.other", "R");
+        session.getStatusCache().track("1.server");
+        assertEquals(Session.RUNNING, session.getJobProgramStatus("2.other"));
+        session.control(Session.JOB_IDS_SESSION_ALL, Session.TERMINATE);
+        assertFalse(session.getStatusCache().isTracked("2.other"));
+        assertTrue(qstat.getCommands().contains("qdel 1.server"));
+        for (String command : qstat.getCommands()) {
+            assertFalse(command, command.startsWith("qdel") && command.contains("2.other"));
+        }
+    }
+
+}
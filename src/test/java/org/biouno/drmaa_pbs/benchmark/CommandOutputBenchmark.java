@@ -0,0 +1,91 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.biouno.drmaa_pbs.exec.ConnectionPool;
+import org.biouno.drmaa_pbs.exec.LocalConnectionFactory;
+import org.biouno.drmaa_pbs.exec.ProcessCommandExecutor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.xebialabs.overthere.CmdLine;
+
+/**
+ * Throughput of reading a large command output, as produced by {@code qstat -fx} on a busy server, either buffered
+ * in memory or streamed to a consumer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CommandOutputBenchmark {
+
+    @Param({ "1", "10", "100" })
+    public int megabytes;
+
+    private ProcessCommandExecutor executor;
+    private CmdLine cmd;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ConnectionPool pool = LocalConnectionFactory.newPool(1, 1);
+        executor = new ProcessCommandExecutor(pool);
+        cmd = CmdLine.build("head", "-c", Long.toString(megabytes * 1024L * 1024L), "/dev/zero");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.close();
+    }
+
+    @Benchmark
+    public long streamed() throws InterruptedException {
+        CountingOutputStream stdout = new CountingOutputStream(NullOutputStream.INSTANCE);
+        executor.execute(cmd, stdout, NullOutputStream.INSTANCE);
+        return stdout.getByteCount();
+    }
+
+    @Benchmark
+    public int buffered() throws InterruptedException {
+        return executor.execute(cmd).getStdout().length();
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.benchmark;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.biouno.drmaa_pbs.exec.ExecutionEngine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Many jobs waited on at once, each wait checking the job status a few times with a slow qstat, on platform threads
+ * and on virtual threads. On a JVM without virtual threads both modes use platform threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ExecutionEngineBenchmark {
+
+    /**
+     * Simulated qstat round trip, in milliseconds.
+     */
+    private static final long QSTAT_MILLIS = 50L;
+
+    /**
+     * Status checks until the simulated job finishes.
+     */
+    private static final int CHECKS_PER_WAIT = 3;
+
+    @Param({ "platform", "virtual" })
+    public String mode;
+
+    @Param({ "1000", "5000" })
+    public int waiters;
+
+    private ExecutionEngine engine;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        engine = new ExecutionEngine(waiters, "virtual".equals(mode));
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        engine.close();
+    }
+
+    @Benchmark
+    public int waitForAll() {
+        @SuppressWarnings("unchecked")
+        CompletableFuture<Integer>[] waits = new CompletableFuture[waiters];
+        for (int i = 0; i < waiters; i++) {
+            CompletableFuture<Integer> wait = CompletableFuture.completedFuture(0);
+            for (int check = 0; check < CHECKS_PER_WAIT; check++) {
+                wait = wait.thenCompose(checks -> engine.submit(() -> slowQstat(checks)));
+            }
+            waits[i] = wait;
+        }
+        CompletableFuture.allOf(waits).join();
+        return waits.length;
+    }
+
+    private static int slowQstat(int checks) throws InterruptedException {
+        Thread.sleep(QSTAT_MILLIS);
+        return checks + 1;
+    }
+
+}
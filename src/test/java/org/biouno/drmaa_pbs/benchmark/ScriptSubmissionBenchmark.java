@@ -0,0 +1,104 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.biouno.drmaa_pbs.exec.CommandOutput;
+import org.biouno.drmaa_pbs.exec.ConnectionPool;
+import org.biouno.drmaa_pbs.exec.LocalConnectionFactory;
+import org.biouno.drmaa_pbs.exec.ProcessCommandExecutor;
+import org.biouno.drmaa_pbs.exec.ScriptStager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.xebialabs.overthere.CmdLine;
+
+/**
+ * Submitting a generated job script on a local connection: written to the standard input of the submit command, or
+ * uploaded first and then given to the submit command by path, uploading every script or only new ones. {@code sh}
+ * stands for qsub, and the scripts only print a job id.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScriptSubmissionBenchmark {
+
+    private static final String SCRIPT = "#!/bin/sh\n#PBS -l walltime=01:00:00\necho 1.server\n";
+
+    private File directory;
+    private ConnectionPool pool;
+    private ProcessCommandExecutor executor;
+    private ScriptStager stager;
+    private long generated = 0L;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("drmaa-pbs-scripts").toFile();
+        pool = LocalConnectionFactory.newPool(1, 1);
+        executor = new ProcessCommandExecutor(pool);
+        stager = new ScriptStager(pool, directory.getAbsolutePath(), 100, 0L);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        executor.close();
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public CommandOutput standardInput() throws InterruptedException {
+        return executor.execute(CmdLine.build("sh"), SCRIPT + "# " + (generated++) + "\n");
+    }
+
+    @Benchmark
+    public CommandOutput uploadEachScript() throws IOException, InterruptedException {
+        String path = stager.stage((SCRIPT + "# " + (generated++) + "\n").getBytes(StandardCharsets.UTF_8));
+        return executor.execute(CmdLine.build("sh", path));
+    }
+
+    @Benchmark
+    public CommandOutput uploadCachedScript() throws IOException, InterruptedException {
+        String path = stager.stage(SCRIPT.getBytes(StandardCharsets.UTF_8));
+        return executor.execute(CmdLine.build("sh", path));
+    }
+
+}
@@ -0,0 +1,162 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.biouno.drmaa_pbs.model.Job;
+import org.biouno.drmaa_pbs.parser.ParseException;
+import org.biouno.drmaa_pbs.parser.QstatJobsParser;
+import org.biouno.drmaa_pbs.status.FakeQstat;
+import org.biouno.drmaa_pbs.status.StatusCache;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Heap retained by the status of the jobs of a session, nine in ten of them finished array sub-jobs, and cost of
+ * selecting the jobs to refresh. The {@link StatusCache} keeps only the state and exit status of a finished job,
+ * while the {@code map} baseline keeps the full status of every job by id, as the cache did before. The retained
+ * bytes per job are reported as the {@code retainedBytesPerJob} secondary result.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = { "-Xms2g", "-Xmx2g" })
+public class StatusCacheMemoryBenchmark {
+
+    private static final int BATCH = 1000;
+
+    @Param({ "10000", "100000" })
+    public int jobs;
+
+    @Param({ "statusCache", "map" })
+    public String store;
+
+    private StatusCache cache;
+    private Map<String, Job> map;
+    private long retainedBytes;
+
+    /**
+     * The heap measured for the trial.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Heap {
+
+        public long retainedBytesPerJob;
+
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, ParseException {
+        String template = template();
+        // loads the classes of the parser and the cache before measuring
+        new StatusCache(new FakeQstat(), 60000L, 500).update(parse(template, 0, 1).get(0));
+        long before = usedHeap();
+        if ("map".equals(store)) {
+            map = new ConcurrentHashMap<String, Job>();
+        } else {
+            cache = new StatusCache(new FakeQstat(), 60000L, 500);
+        }
+        for (int from = 0; from < jobs; from += BATCH) {
+            for (Job job : parse(template, from, Math.min(jobs, from + BATCH))) {
+                if (map != null) {
+                    map.put(job.getId(), job);
+                } else {
+                    cache.track(job.getId());
+                    cache.update(job);
+                }
+            }
+        }
+        retainedBytes = usedHeap() - before;
+    }
+
+    /**
+     * Selects the jobs that are not finished, as a refresh does.
+     */
+    @Benchmark
+    public List<String> unfinishedJobIds(Heap heap) {
+        // set on each call, as the counters are reset before each iteration
+        heap.retainedBytesPerJob = retainedBytes / jobs;
+        if (map == null) {
+            return cache.getUnfinishedJobIds();
+        }
+        List<String> jobIds = new ArrayList<String>();
+        for (Job job : map.values()) {
+            if (!StatusCache.isFinished(job)) {
+                jobIds.add(job.getId());
+            }
+        }
+        return jobIds;
+    }
+
+    /**
+     * @return the first job of a Torque qstat output, with its id and state replaced by placeholders
+     */
+    private static String template() throws IOException {
+        try (InputStream in = Job.class.getResourceAsStream("multiple_jobs.xml")) {
+            String xml = IOUtils.toString(in, "UTF-8");
+            String job = xml.substring(xml.indexOf("<Job>"), xml.indexOf("</Job>") + "</Job>".length());
+            return job.replace("<Job_Id>4.localhost</Job_Id>", "<Job_Id>1[%d].server</Job_Id>")
+                    .replace("<job_state>R</job_state>", "<job_state>%s</job_state>");
+        }
+    }
+
+    private static List<Job> parse(String template, int from, int to) throws ParseException {
+        StringBuilder xml = new StringBuilder("<Data>");
+        for (int i = from; i < to; i++) {
+            xml.append(String.format(template, i, i % 10 == 0 ? "R" : "F"));
+        }
+        return new QstatJobsParser().parse(xml.append("</Data>").toString());
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.benchmark;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.biouno.drmaa_pbs.status.TimerWheel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of keeping the deadlines of many pending waits, most of them cancelled because their job finished in time,
+ * with a {@link TimerWheel} advanced by the poller tick or with a {@link ScheduledThreadPoolExecutor}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TimerWheelBenchmark {
+
+    private static final long TICK = 200L;
+
+    @Param({ "1000", "10000", "100000" })
+    public int waits;
+
+    private long[] deadlines;
+    private ScheduledThreadPoolExecutor executor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        deadlines = new long[waits];
+        for (int i = 0; i < waits; i++) {
+            deadlines[i] = TimeUnit.MINUTES.toMillis(1L)
+                    + ThreadLocalRandom.current().nextLong(TimeUnit.HOURS.toMillis(1L));
+        }
+        executor = new ScheduledThreadPoolExecutor(1);
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Schedules every deadline, advances the wheel a hundred ticks, then cancels nine in ten timers.
+     */
+    @Benchmark
+    public void timerWheel(Blackhole blackhole) {
+        TimerWheel<Integer> wheel = new TimerWheel<Integer>(TICK, 0L);
+        @SuppressWarnings("unchecked")
+        TimerWheel.Timer<Integer>[] timers = new TimerWheel.Timer[waits];
+        for (int i = 0; i < waits; i++) {
+            timers[i] = wheel.schedule(i, deadlines[i]);
+        }
+        for (int tick = 1; tick <= 100; tick++) {
+            wheel.advance(tick * TICK, blackhole::consume);
+        }
+        for (int i = 0; i < waits; i++) {
+            if (i % 10 != 0) {
+                timers[i].cancel();
+            }
+        }
+        blackhole.consume(wheel.size());
+    }
+
+    /**
+     * Schedules every deadline on the executor, then cancels nine in ten of them.
+     */
+    @Benchmark
+    public void scheduledExecutor(Blackhole blackhole) {
+        ScheduledFuture<?>[] futures = new ScheduledFuture<?>[waits];
+        for (int i = 0; i < waits; i++) {
+            final int wait = i;
+            futures[i] = executor.schedule(() -> blackhole.consume(wait), deadlines[i], TimeUnit.MILLISECONDS);
+        }
+        for (int i = 0; i < waits; i++) {
+            if (i % 10 != 0) {
+                futures[i].cancel(false);
+            }
+        }
+        blackhole.consume(executor.getQueue().size());
+        // the remaining deadlines are an hour away, drop them before the next invocation
+        executor.getQueue().clear();
+    }
+
+}
@@ -0,0 +1,54 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.exec;
+
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.local.LocalConnection;
+
+/**
+ * Opens local connections, which are always valid, so that tests run the commands of a pool on this host.
+ */
+public class LocalConnectionFactory implements ConnectionFactory {
+
+    /**
+     * @param minSize number of connections kept open even when idle
+     * @param maxSize maximum number of open connections
+     * @return a pool of local connections, with long idle and validation timeouts, waiting one second for a
+     *         connection at most
+     */
+    public static ConnectionPool newPool(int minSize, int maxSize) {
+        return new ConnectionPool(new LocalConnectionFactory(), minSize, maxSize, 60000L, 60000L, 1000L);
+    }
+
+    @Override
+    public OverthereConnection open() {
+        return LocalConnection.getLocalConnection();
+    }
+
+    @Override
+    public boolean validate(OverthereConnection connection) {
+        return true;
+    }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.exec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.RuntimeIOException;
+
+/**
+ * Tests for the connection pool.
+ */
+public class TestConnectionPool {
+
+    /**
+     * Creates connections that only count how many times they were opened and closed.
+     */
+    private static class CountingFactory implements ConnectionFactory {
+
+        final AtomicInteger opened = new AtomicInteger();
+        final AtomicInteger closed = new AtomicInteger();
+        volatile boolean healthy = true;
+
+        @Override
+        public OverthereConnection open() {
+            opened.incrementAndGet();
+            return (OverthereConnection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] { OverthereConnection.class }, new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                            if ("close".equals(method.getName())) {
+                                closed.incrementAndGet();
+                                return null;
+                            }
+                            if ("hashCode".equals(method.getName())) {
+                                return System.identityHashCode(proxy);
+                            }
+                            if ("equals".equals(method.getName())) {
+                                return proxy == args[0];
+                            }
+                            return "connection";
+                        }
+                    });
+        }
+
+        @Override
+        public boolean validate(OverthereConnection connection) {
+            return healthy;
+        }
+
+    }
+
+    @Test
+    public void testReusesReleasedConnection() throws Exception {
+        CountingFactory factory = new CountingFactory();
+        ConnectionPool pool = new ConnectionPool(factory, 0, 2, 60000L, 60000L, 100L);
+        OverthereConnection first = pool.borrow();
+        pool.release(first);
+        OverthereConnection second = pool.borrow();
+        assertSame("Idle connection should be reused", first, second);
+        assertEquals(1, factory.opened.get());
+        pool.release(second);
+        pool.close();
+        assertEquals(1, factory.closed.get());
+    }
+
+    @Test
+    public void testBorrowTimesOutWhenExhausted() throws Exception {
+        CountingFactory factory = new CountingFactory();
+        ConnectionPool pool = new ConnectionPool(factory, 0, 1, 60000L, 60000L, 50L);
+        OverthereConnection connection = pool.borrow();
+        try {
+            pool.borrow();
+            fail("Expected the borrow to time out");
+        } catch (RuntimeIOException expected) {
+            // expected
+        }
+        pool.invalidate(connection);
+        assertEquals(1, factory.closed.get());
+        OverthereConnection replacement = pool.borrow();
+        assertNotSame(connection, replacement);
+        assertEquals(2, factory.opened.get());
+        pool.close();
+    }
+
+    @Test
+    public void testDiscardsConnectionsFailingValidation() throws Exception {
+        CountingFactory factory = new CountingFactory();
+        ConnectionPool pool = new ConnectionPool(factory, 0, 1, 60000L, 0L, 100L);
+        OverthereConnection connection = pool.borrow();
+        pool.release(connection);
+        factory.healthy = false;
+        OverthereConnection replacement = pool.borrow();
+        assertNotSame(connection, replacement);
+        assertEquals(1, factory.closed.get());
+        pool.close();
+    }
+
+    @Test
+    public void testEvictionKeepsMinimumSize() throws Exception {
+        CountingFactory factory = new CountingFactory();
+        ConnectionPool pool = new ConnectionPool(factory, 1, 3, 0L, 60000L, 100L);
+        OverthereConnection a = pool.borrow();
+        OverthereConnection b = pool.borrow();
+        OverthereConnection c = pool.borrow();
+        pool.release(a);
+        pool.release(b);
+        pool.release(c);
+        pool.evict();
+        assertEquals(1, pool.getSize());
+        assertEquals(1, pool.getIdleCount());
+        pool.close();
+        assertEquals(0, pool.getSize());
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.exec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ggf.drmaa.NoActiveSessionException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the execution engine.
+ */
+public class TestExecutionEngine {
+
+    private ExecutionEngine engine;
+
+    @Before
+    public void setUp() {
+        engine = new ExecutionEngine(2);
+    }
+
+    @After
+    public void tearDown() {
+        engine.close();
+    }
+
+    @Test
+    public void testLimitsConcurrency() throws Exception {
+        assertLimitsConcurrency(engine);
+    }
+
+    @Test
+    public void testLimitsConcurrencyWithVirtualThreads() throws Exception {
+        ExecutionEngine virtual = new ExecutionEngine(2, true);
+        try {
+            assertLimitsConcurrency(virtual);
+        } finally {
+            virtual.close();
+        }
+    }
+
+    @Test(timeout = 30000L)
+    public void testCloseFailsQueuedTasks() throws Exception {
+        final CountDownLatch running = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        List<CompletableFuture<Object>> futures = new ArrayList<CompletableFuture<Object>>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(engine.submit(() -> {
+                running.countDown();
+                release.await();
+                return null;
+            }));
+        }
+        running.await();
+        engine.close();
+        for (CompletableFuture<Object> queued : futures.subList(2, 4)) {
+            assertClosed(queued);
+        }
+        assertClosed(engine.submit(() -> null));
+    }
+
+    private static void assertClosed(CompletableFuture<?> future) throws Exception {
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail("Expected the task to fail");
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof NoActiveSessionException);
+        }
+    }
+
+    private static void assertLimitsConcurrency(ExecutionEngine engine) throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        List<CompletableFuture<Integer>> futures = new ArrayList<CompletableFuture<Integer>>();
+        for (int i = 0; i < 20; i++) {
+            final int value = i;
+            futures.add(engine.submit(() -> {
+                int now = running.incrementAndGet();
+                maxRunning.accumulateAndGet(now, Math::max);
+                Thread.sleep(10L);
+                running.decrementAndGet();
+                return value;
+            }));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals(Integer.valueOf(i), futures.get(i).get(10, TimeUnit.SECONDS));
+        }
+        assertTrue("At most 2 tasks should run at once", maxRunning.get() <= 2);
+    }
+
+    @Test
+    public void testNestedTasksRunInline() throws Exception {
+        ExecutionEngine single = new ExecutionEngine(1);
+        try {
+            CompletableFuture<String> outer = single.submit(() -> single.submit(() -> "inner").get());
+            assertEquals("inner", outer.get(10, TimeUnit.SECONDS));
+        } finally {
+            single.close();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testPropagatesFailures() throws Throwable {
+        try {
+            engine.submit(() -> {
+                throw new IllegalStateException("failed");
+            }).get(10, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.exec;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.commons.lang.StringUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.xebialabs.overthere.CmdLine;
+
+/**
+ * Tests for running commands as local processes.
+ */
+public class TestProcessCommandExecutor {
+
+    private static final long ONE_MB = 1024L * 1024L;
+
+    private ProcessCommandExecutor executor;
+
+    @Before
+    public void setUp() {
+        ConnectionPool pool = LocalConnectionFactory.newPool(0, 1);
+        executor = new ProcessCommandExecutor(pool);
+    }
+
+    @After
+    public void tearDown() {
+        executor.close();
+    }
+
+    /**
+     * The command fills the stderr pipe before writing to stdout, and would block if the streams were only read after
+     * the command exits.
+     */
+    @Test(timeout = 120000L)
+    public void testDrainsLargeOutputWhileRunning() throws Exception {
+        CountingOutputStream stdout = new CountingOutputStream(NullOutputStream.INSTANCE);
+        CountingOutputStream stderr = new CountingOutputStream(NullOutputStream.INSTANCE);
+        int exitValue = executor.execute(CmdLine.build("sh", "-c",
+                "head -c " + ONE_MB + " /dev/zero >&2; head -c " + (100 * ONE_MB) + " /dev/zero"), stdout, stderr);
+        assertEquals(0, exitValue);
+        assertEquals(100 * ONE_MB, stdout.getByteCount());
+        assertEquals(ONE_MB, stderr.getByteCount());
+    }
+
+    @Test(timeout = 60000L)
+    public void testBuffersOutput() throws Exception {
+        CommandOutput output = executor.execute(CmdLine.build("sh", "-c",
+                "head -c " + (4 * ONE_MB) + " /dev/zero | tr '\\000' 'x'; echo failed >&2; exit 2"));
+        assertEquals(2, output.getExitValue());
+        assertEquals(4 * ONE_MB, output.getStdout().length());
+        assertEquals("failed", output.getStderr().trim());
+    }
+
+    @Test(timeout = 60000L)
+    public void testWritesInputToStandardInput() throws Exception {
+        CommandOutput output = executor.execute(CmdLine.build("wc", "-l"), "a\nb\nc\n");
+        assertEquals(0, output.getExitValue());
+        assertEquals("3", output.getStdout().trim());
+    }
+
+    /**
+     * cat writes its input back before it has read all of it, and would block if the input was written before the
+     * output is read.
+     */
+    @Test(timeout = 60000L)
+    public void testWritesLargeInputWhileReadingOutput() throws Exception {
+        String input = StringUtils.repeat(StringUtils.repeat("x", 99) + "\n", (int) (8 * ONE_MB / 100));
+        CommandOutput output = executor.execute(CmdLine.build("cat"), input);
+        assertEquals(0, output.getExitValue());
+        assertEquals(input.length(), output.getStdout().length());
+    }
+
+    /**
+     * Executors that cannot write to the standard input of a command pass the input as a here-document, where nothing
+     * is expanded.
+     */
+    @Test(timeout = 60000L)
+    public void testPassesInputAsHereDocument() throws Exception {
+        CommandExecutor hereDocument = new CommandExecutor() {
+            @Override
+            public CommandOutput execute(CmdLine cmd) throws InterruptedException {
+                return executor.execute(cmd);
+            }
+
+            @Override
+            public List<CommandOutput> executeAll(List<CmdLine> cmds) throws InterruptedException {
+                return executor.executeAll(cmds);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        String script = "#!/bin/sh\necho \"$HOME\" 'quoted' `date`\nEOF";
+        CommandOutput output = hereDocument.execute(CmdLine.build("cat"), script);
+        assertEquals(0, output.getExitValue());
+        assertEquals(script + "\n", output.getStdout());
+    }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.exec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.RuntimeIOException;
+import com.xebialabs.overthere.local.LocalConnection;
+
+/**
+ * Tests for the remote shell, using a local shell process.
+ */
+public class TestRemoteShell {
+
+    private OverthereConnection connection;
+    private RemoteShell shell;
+
+    @Before
+    public void setUp() {
+        connection = LocalConnection.getLocalConnection();
+        shell = new RemoteShell(connection);
+    }
+
+    @After
+    public void tearDown() {
+        shell.close();
+        connection.close();
+    }
+
+    private static String read(Future<CommandOutput> future, boolean stdout) throws Exception {
+        CommandOutput output = future.get(10, TimeUnit.SECONDS);
+        return stdout ? output.getStdout() : output.getStderr();
+    }
+
+    @Test
+    public void testDemultiplexesOutputAndExitValue() throws Exception {
+        Future<CommandOutput> echo = shell.submit(CmdLine.build("echo", "hello world"));
+        Future<CommandOutput> error = shell.submit(CmdLine.build("sh", "-c", "echo oops >&2; exit 3"));
+        Future<CommandOutput> partial = shell.submit(CmdLine.build("printf", "no new line"));
+
+        assertEquals("hello world" + System.getProperty("line.separator"), read(echo, true));
+        assertEquals(0, echo.get().getExitValue());
+        assertEquals("", read(echo, false));
+
+        assertEquals(3, error.get().getExitValue());
+        assertEquals("", read(error, true));
+        assertEquals("oops" + System.getProperty("line.separator"), read(error, false));
+
+        assertEquals("no new line", read(partial, true));
+        assertEquals(0, shell.getPendingCount());
+    }
+
+    @Test
+    public void testPipelinesManyCommands() throws Exception {
+        List<Future<CommandOutput>> futures = new ArrayList<Future<CommandOutput>>();
+        for (int i = 0; i < 200; i++) {
+            futures.add(shell.submit(CmdLine.build("echo", Integer.toString(i))));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals(Integer.toString(i), read(futures.get(i), true).trim());
+        }
+    }
+
+    @Test
+    public void testCommandsDoNotConsumeShellInput() throws Exception {
+        Future<CommandOutput> cat = shell.submit(CmdLine.build("cat"));
+        Future<CommandOutput> echo = shell.submit(CmdLine.build("echo", "after cat"));
+        assertEquals("", read(cat, true));
+        assertEquals("after cat", read(echo, true).trim());
+    }
+
+    @Test
+    public void testPendingCommandsFailWhenShellIsClosed() throws Exception {
+        Future<CommandOutput> sleep = shell.submit(CmdLine.build("sleep", "10"));
+        shell.close();
+        try {
+            sleep.get(10, TimeUnit.SECONDS);
+            fail("Expected the command to fail");
+        } catch (ExecutionException e) {
+            assertEquals(RuntimeIOException.class, e.getCause().getClass());
+        }
+        assertFalse(shell.isAlive());
+        try {
+            shell.submit(CmdLine.build("true"));
+            fail("Expected the closed shell to refuse commands");
+        } catch (RuntimeIOException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testShellExecutorRunsCommands() throws Exception {
+        ConnectionPool pool = LocalConnectionFactory.newPool(0, 2);
+        ShellCommandExecutor executor = new ShellCommandExecutor(pool, 2);
+        try {
+            List<CmdLine> cmds = new ArrayList<CmdLine>();
+            for (int i = 0; i < 10; i++) {
+                cmds.add(CmdLine.build("echo", "job" + i));
+            }
+            List<CommandOutput> outputs = executor.executeAll(cmds);
+            for (int i = 0; i < outputs.size(); i++) {
+                assertEquals("job" + i, outputs.get(i).getStdout().trim());
+            }
+            assertEquals(1, executor.execute(CmdLine.build("false")).getExitValue());
+        } finally {
+            executor.close();
+        }
+    }
+
+    /**
+     * The input is over the maximum size of a command argument, and the command after it still runs.
+     */
+    @Test
+    public void testWritesLargeInputAsHereDocument() throws Exception {
+        String input = StringUtils.repeat(StringUtils.repeat("x", 99) + "\n", 10000);
+        Future<CommandOutput> count = shell.submit(CmdLine.build("wc", "-c"), input);
+        Future<CommandOutput> echo = shell.submit(CmdLine.build("echo", "after"));
+        assertEquals(Integer.toString(input.length()), read(count, true).trim());
+        assertEquals("after", read(echo, true).trim());
+    }
+
+}
@@ -0,0 +1,250 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.exec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.xebialabs.overthere.ConnectionOptions;
+import com.xebialabs.overthere.OperatingSystemFamily;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.OverthereFile;
+import com.xebialabs.overthere.RuntimeIOException;
+import com.xebialabs.overthere.local.LocalConnection;
+import com.xebialabs.overthere.local.LocalFile;
+
+/**
+ * Tests for staging job scripts by content.
+ */
+public class TestScriptStager {
+
+    /**
+     * A local connection whose renames are slow, and fail when the target exists, as over SFTP.
+     */
+    private static final class SftpLikeConnection extends LocalConnection {
+
+        /**
+         * Whether another session renames the same script in place before each rename.
+         */
+        private final boolean raced;
+
+        private SftpLikeConnection(boolean raced) {
+            super(LOCAL_PROTOCOL, options());
+            this.raced = raced;
+        }
+
+        private static ConnectionOptions options() {
+            ConnectionOptions options = new ConnectionOptions();
+            options.set(ConnectionOptions.OPERATING_SYSTEM, OperatingSystemFamily.getLocalHostOperatingSystemFamily());
+            return options;
+        }
+
+        @Override
+        public OverthereFile getFile(String path) {
+            return new LocalFile(this, new File(path)) {
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                public void renameTo(OverthereFile dest) {
+                    try {
+                        Thread.sleep(100L);
+                        if (raced) {
+                            FileUtils.copyFile(getFile(), new File(dest.getPath()));
+                        }
+                    } catch (IOException | InterruptedException e) {
+                        throw new RuntimeIOException(e);
+                    }
+                    if (dest.exists()) {
+                        throw new RuntimeIOException("Cannot rename " + getPath() + " to " + dest.getPath()
+                                + ": Failure");
+                    }
+                    super.renameTo(dest);
+                }
+
+            };
+        }
+
+        @Override
+        public OverthereFile getFile(OverthereFile parent, String child) {
+            return getFile(parent.getPath() + "/" + child);
+        }
+
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ConnectionPool pool;
+    private File directory;
+
+    @Before
+    public void setUp() {
+        pool = LocalConnectionFactory.newPool(0, 1);
+        directory = new File(folder.getRoot(), "scripts");
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    private static ConnectionPool newSftpLikePool(int maxSize, boolean raced) {
+        return new ConnectionPool(new ConnectionFactory() {
+
+            @Override
+            public OverthereConnection open() {
+                return new SftpLikeConnection(raced);
+            }
+
+            @Override
+            public boolean validate(OverthereConnection connection) {
+                return true;
+            }
+
+        }, 0, maxSize, 60000L, 60000L, 1000L);
+    }
+
+    private static byte[] script(String command) {
+        return ("#!/bin/sh\n" + command + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testUploadsEachContentOnce() throws Exception {
+        ScriptStager stager = new ScriptStager(pool, directory.getAbsolutePath(), 10, 0L);
+        String path = stager.stage(script("echo a"));
+        assertEquals(path, stager.stage(script("echo a")));
+        assertNotEquals(path, stager.stage(script("echo b")));
+        assertEquals(2L, stager.getUploadCount());
+        assertEquals(1L, stager.getHitCount());
+        File file = new File(path);
+        assertEquals("#!/bin/sh\necho a\n", FileUtils.readFileToString(file, StandardCharsets.UTF_8));
+        assertTrue(file.canExecute());
+
+        // a new stager, e.g. of the next session, finds the scripts already uploaded
+        ScriptStager next = new ScriptStager(pool, directory.getAbsolutePath(), 10, 0L);
+        assertEquals(path, next.stage(script("echo a")));
+        assertEquals(0L, next.getUploadCount());
+        assertEquals(2, next.size());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyStagedScripts() throws Exception {
+        ScriptStager stager = new ScriptStager(pool, directory.getAbsolutePath(), 2, 0L);
+        String a = stager.stage(script("echo a"));
+        String b = stager.stage(script("echo b"));
+        stager.stage(script("echo a"));
+        stager.stage(script("echo c"));
+        assertEquals(1L, stager.getEvictionCount());
+        assertTrue(new File(a).exists());
+        assertFalse(new File(b).exists());
+        assertEquals(2, directory.list().length);
+    }
+
+    @Test
+    public void testKeepsScriptsStagedDuringTheGracePeriod() throws Exception {
+        ScriptStager stager = new ScriptStager(pool, directory.getAbsolutePath(), 1, 200L);
+        File a = new File(stager.stage(script("echo a")));
+        File b = new File(stager.stage(script("echo b")));
+        // just staged, maybe not submitted yet
+        assertEquals(0L, stager.getEvictionCount());
+        assertTrue(a.exists());
+
+        Thread.sleep(300L);
+        long old = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(10L);
+        assertTrue(a.setLastModified(old));
+        assertTrue(b.setLastModified(old));
+        // another session sharing the directory stages b again, which touches it
+        ScriptStager other = new ScriptStager(pool, directory.getAbsolutePath(), 10, 200L);
+        assertEquals(b.getPath(), other.stage(script("echo b")));
+        assertTrue(b.lastModified() > old);
+
+        stager.stage(script("echo c"));
+        assertEquals(1L, stager.getEvictionCount());
+        assertFalse(a.exists());
+        assertTrue(b.exists());
+        assertEquals(2, directory.list().length);
+    }
+
+    @Test(timeout = 30000L)
+    public void testUploadsAScriptStagedConcurrentlyOnce() throws Exception {
+        pool.close();
+        pool = newSftpLikePool(8, false);
+        final ScriptStager stager = new ScriptStager(pool, directory.getAbsolutePath(), 10, 0L);
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> paths = new ArrayList<Future<String>>();
+            for (int i = 0; i < 8; i++) {
+                paths.add(threads.submit(() -> {
+                    start.await();
+                    return stager.stage(script("echo a"));
+                }));
+            }
+            start.countDown();
+            for (Future<String> path : paths) {
+                assertEquals(paths.get(0).get(), path.get());
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+        assertEquals(1L, stager.getUploadCount());
+        assertEquals(7L, stager.getHitCount());
+        assertEquals(1, directory.list().length);
+    }
+
+    @Test
+    public void testCountsAScriptRenamedByAnotherSessionAsStaged() throws Exception {
+        pool.close();
+        pool = newSftpLikePool(1, true);
+        ScriptStager stager = new ScriptStager(pool, directory.getAbsolutePath(), 10, 0L);
+        String path = stager.stage(script("echo a"));
+        assertEquals("#!/bin/sh\necho a\n", FileUtils.readFileToString(new File(path), StandardCharsets.UTF_8));
+        assertEquals(0L, stager.getUploadCount());
+        assertEquals(1L, stager.getHitCount());
+        // the temporary file was deleted
+        assertEquals(1, directory.list().length);
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.exec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests for the submission queue.
+ */
+public class TestSubmissionQueue {
+
+    @Test(timeout = 30000L)
+    public void testLimitsRunningSubmissions() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        SubmissionQueue queue = new SubmissionQueue(100, 2, OverflowPolicy.BLOCK);
+        try {
+            List<CompletableFuture<Integer>> futures = new ArrayList<CompletableFuture<Integer>>();
+            for (int i = 0; i < 10; i++) {
+                final int id = i;
+                futures.add(queue.submit(() -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    release.await();
+                    running.decrementAndGet();
+                    return id;
+                }));
+            }
+            while (queue.getInFlightCount() < 2) {
+                Thread.sleep(10L);
+            }
+            assertEquals(8, queue.getQueueDepth());
+            release.countDown();
+            for (int i = 0; i < 10; i++) {
+                assertEquals(i, futures.get(i).get(10, TimeUnit.SECONDS).intValue());
+            }
+            assertEquals(2, maxRunning.get());
+            assertEquals(10L, queue.getCompletedCount());
+            assertTrue(queue.getAverageLatencyMillis() > 0D);
+        } finally {
+            queue.close();
+        }
+    }
+
+    @Test(timeout = 30000L)
+    public void testFailsFastOrDropsWhenFull() throws Exception {
+        assertRejected(OverflowPolicy.FAIL_FAST, 2);
+        assertRejected(OverflowPolicy.DROP, 1);
+    }
+
+    /**
+     * Fills a queue of one with a running and a queued submission, then submits a third one.
+     *
+     * @param rejected the submission expected to be rejected, 1 or 2
+     */
+    private void assertRejected(OverflowPolicy policy, int rejected) throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        SubmissionQueue queue = new SubmissionQueue(1, 1, policy);
+        try {
+            List<CompletableFuture<Integer>> futures = new ArrayList<CompletableFuture<Integer>>();
+            futures.add(queue.submit(() -> {
+                started.countDown();
+                release.await();
+                return 0;
+            }));
+            started.await();
+            futures.add(queue.submit(() -> 1));
+            futures.add(queue.submit(() -> 2));
+            release.countDown();
+            for (int i = 0; i < 3; i++) {
+                try {
+                    assertEquals(i, futures.get(i).get(10, TimeUnit.SECONDS).intValue());
+                    assertTrue(policy + " rejected " + i, i != rejected);
+                } catch (ExecutionException e) {
+                    assertEquals(policy + " rejected " + i, rejected, i);
+                    assertTrue(e.getCause() instanceof RejectedExecutionException);
+                }
+            }
+            assertEquals(1L, queue.getRejectedCount());
+        } finally {
+            queue.close();
+        }
+        try {
+            queue.submit(() -> 3).get();
+            fail("Expected a closed queue to reject submissions");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.biouno.drmaa_pbs.parser.QstatJobsDeltaParser;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for parsing only the jobs that changed between two qstat outputs.
+ */
+public class TestQstatJobsDeltaParser {
+
+    private String xml;
+
+    @Before
+    public void setUp() throws Exception {
+        File file = new File(TestQstatJobsDeltaParser.class.getResource("multiple_jobs.xml").getFile());
+        xml = FileUtils.readFileToString(file);
+    }
+
+    @Test
+    public void testUnchangedJobsAreNotParsedAgain() throws Exception {
+        QstatJobsDeltaParser parser = new QstatJobsDeltaParser();
+        JobChangeSet first = parser.parse(xml);
+        assertEquals(5, first.getAdded().size());
+
+        JobChangeSet second = parser.parse(xml);
+        assertTrue(second.isEmpty());
+        assertEquals(5, second.getUnchanged().size());
+        assertTrue(second.getUnchanged().contains("7.localhost"));
+    }
+
+    @Test
+    public void testJobsWithoutModificationTimeAreAlwaysParsed() throws Exception {
+        QstatJobsDeltaParser parser = new QstatJobsDeltaParser();
+        String noMtime = xml.replaceAll("<mtime>[0-9]*</mtime>", "");
+        parser.parse(noMtime);
+
+        JobChangeSet second = parser.parse(noMtime);
+        assertEquals(5, second.getChanged().size());
+        assertEquals(0, second.getUnchanged().size());
+    }
+
+    @Test
+    public void testChangedAndRemovedJobs() throws Exception {
+        QstatJobsDeltaParser parser = new QstatJobsDeltaParser();
+        parser.parse(xml);
+        String next = xml.replace("<mtime>1443215308</mtime>", "<mtime>1443215400</mtime>");
+        int start = next.lastIndexOf("<Job>", next.indexOf("<Job_Id>4.localhost"));
+        next = next.substring(0, start) + next.substring(next.indexOf("</Job>", start) + "</Job>".length());
+
+        JobChangeSet changes = parser.parse(next, Arrays.asList("4.localhost", "7.localhost", "8.localhost"));
+        assertEquals(0, changes.getAdded().size());
+        assertEquals(1, changes.getChanged().size());
+        assertEquals("7.localhost", changes.getChanged().get(0).getId());
+        assertEquals(Arrays.asList("4.localhost"), changes.getRemoved());
+        assertEquals(3, changes.getUnchanged().size());
+        assertEquals(4, parser.size());
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.status;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.biouno.drmaa_pbs.exec.CommandExecutor;
+import org.biouno.drmaa_pbs.exec.CommandOutput;
+
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.OperatingSystemFamily;
+import com.xebialabs.overthere.RuntimeIOException;
+
+/**
+ * Answers {@code qstat -fx} with the job states set by a test, and remembers the job ids of each call, and the command
+ * lines run.
+ */
+public class FakeQstat implements CommandExecutor {
+
+    private final Map<String, String> states = new ConcurrentHashMap<String, String>();
+    private final Map<String, Integer> queried = new ConcurrentHashMap<String, Integer>();
+    private final List<List<String>> calls = new ArrayList<List<String>>();
+    private final List<String> commands = new ArrayList<String>();
+    private volatile int finishAfter = Integer.MAX_VALUE;
+    private final AtomicInteger failures = new AtomicInteger();
+    private volatile long delay;
+
+    /**
+     * @param jobId job id
+     * @param state job state, or {@code null} for a job unknown to the server
+     */
+    public void setState(String jobId, String state) {
+        if (state == null) {
+            states.remove(jobId);
+        } else {
+            states.put(jobId, state);
+        }
+    }
+
+    /**
+     * Makes running jobs finish once they have been queried a number of times.
+     *
+     * @param queries number of queries answered with {@code R} before a running job is reported as {@code F}
+     */
+    public void setFinishAfter(int queries) {
+        this.finishAfter = queries;
+    }
+
+    /**
+     * Makes the next calls fail as if the server could not be reached.
+     *
+     * @param calls number of calls failing
+     */
+    public void setFailures(int calls) {
+        failures.set(calls);
+    }
+
+    /**
+     * @param millis milliseconds each call takes
+     */
+    public void setDelay(long millis) {
+        this.delay = millis;
+    }
+
+    /**
+     * @return the job ids given to each qstat call
+     */
+    public synchronized List<List<String>> getCalls() {
+        return new ArrayList<List<String>>(calls);
+    }
+
+    /**
+     * @return the command lines run, in order
+     */
+    public synchronized List<String> getCommands() {
+        return new ArrayList<String>(commands);
+    }
+
+    @Override
+    public CommandOutput execute(CmdLine cmd) {
+        String line = cmd.toCommandLine(OperatingSystemFamily.UNIX, false);
+        String[] args = line.split(" ");
+        List<String> jobIds = Arrays.asList(args).subList(2, args.length);
+        synchronized (this) {
+            calls.add(jobIds);
+            commands.add(line);
+        }
+        if (delay > 0L) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeIOException(e);
+            }
+        }
+        if (failures.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+            throw new RuntimeIOException("Connection refused");
+        }
+        StringBuilder xml = new StringBuilder("<Data>");
+        StringBuilder stderr = new StringBuilder();
+        for (String jobId : jobIds) {
+            String state = states.get(jobId);
+            if ("R".equals(state) && queried.merge(jobId, 1, Integer::sum) > finishAfter) {
+                state = "F";
+            }
+            if (state == null) {
+                stderr.append("qstat: Unknown Job Id ").append(jobId).append('\n');
+            } else {
+                xml.append("<Job><Job_Id>").append(jobId).append("</Job_Id><job_state>").append(state)
+                        .append("</job_state></Job>");
+            }
+        }
+        xml.append("</Data>");
+        return new CommandOutput(stderr.length() == 0 ? 0 : 153, xml.toString(), stderr.toString());
+    }
+
+    @Override
+    public List<CommandOutput> executeAll(List<CmdLine> cmds) {
+        List<CommandOutput> outputs = new ArrayList<CommandOutput>();
+        for (CmdLine cmd : cmds) {
+            outputs.add(execute(cmd));
+        }
+        return outputs;
+    }
+
+    @Override
+    public void close() {
+    }
+
+}
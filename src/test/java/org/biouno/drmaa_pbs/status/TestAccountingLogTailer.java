@@ -0,0 +1,203 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.status;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.biouno.drmaa_pbs.exec.ConnectionPool;
+import org.biouno.drmaa_pbs.exec.ExecutionEngine;
+import org.biouno.drmaa_pbs.exec.LocalConnectionFactory;
+import org.biouno.drmaa_pbs.model.Job;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.RuntimeIOException;
+import com.xebialabs.overthere.local.LocalConnection;
+
+/**
+ * Tests for reading job completions from the accounting log.
+ */
+public class TestAccountingLogTailer {
+
+    private static final String END_RECORD = "10/17/2015 10:00:00;E;%s;user=bob queue=batch Exit_status=%d "
+            + "resources_used.cput=00:00:01 resources_used.walltime=00:00:10\n";
+
+    /**
+     * A clock a test can move to the next day.
+     */
+    private static final class DayClock extends Clock {
+
+        private volatile Instant instant = Instant.parse("2015-10-17T10:00:00Z");
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return instant;
+        }
+
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private OverthereConnection connection;
+    private DayClock clock;
+
+    @Before
+    public void setUp() {
+        connection = LocalConnection.getLocalConnection();
+        clock = new DayClock();
+    }
+
+    private void append(String fileName, String text) throws Exception {
+        FileUtils.writeStringToFile(new File(folder.getRoot(), fileName), text, StandardCharsets.UTF_8, true);
+    }
+
+    @Test
+    public void testReadsOnlyAppendedRecords() throws Exception {
+        append("20151017", String.format(END_RECORD, "1.server", 0));
+        AccountingLogTailer tailer = new AccountingLogTailer(folder.getRoot().getAbsolutePath(), clock);
+        assertTrue(tailer.poll(connection).isEmpty());
+
+        append("20151017", "10/17/2015 10:00:00;Q;2.server;queue=batch\n" + String.format(END_RECORD, "2.server", 3)
+                + "10/17/2015 10:00:01;E;3.ser");
+        List<AccountingRecord> records = tailer.poll(connection);
+        assertEquals(2, records.size());
+        AccountingRecord end = records.get(1);
+        assertEquals("E", end.getType());
+        assertEquals("2.server", end.getJobId());
+        assertEquals(3, end.getExitStatus());
+        assertEquals("00:00:10", end.getResourcesUsed().get("walltime"));
+
+        append("20151017", "ver;Exit_status=0\n");
+        records = tailer.poll(connection);
+        assertEquals(1, records.size());
+        assertEquals("3.server", records.get(0).getJobId());
+        assertTrue(tailer.poll(connection).isEmpty());
+    }
+
+    @Test
+    public void testMovesToTheFileOfTheNextDay() throws Exception {
+        AccountingLogTailer tailer = new AccountingLogTailer(folder.getRoot().getAbsolutePath(), clock);
+        tailer.poll(connection);
+        append("20151017", String.format(END_RECORD, "1.server", 0));
+        append("20151018", String.format(END_RECORD, "2.server", 0));
+        clock.instant = clock.instant.plusSeconds(TimeUnit.DAYS.toSeconds(1L));
+        List<AccountingRecord> records = tailer.poll(connection);
+        assertEquals(2, records.size());
+        assertEquals("1.server", records.get(0).getJobId());
+        assertEquals("2.server", records.get(1).getJobId());
+        assertEquals("20151018", tailer.getFileName());
+    }
+
+    @Test(timeout = 30000L)
+    public void testCompletesWaitsBeforeQstat() throws Exception {
+        FakeQstat qstat = new FakeQstat();
+        qstat.setState("1.server", "R");
+        ExecutionEngine engine = new ExecutionEngine(4);
+        ConnectionPool pool = LocalConnectionFactory.newPool(0, 1);
+        JobPoller poller = new JobPoller(new StatusCache(qstat, 0L, 500), engine,
+                new AdaptivePollPolicy(60000L, 60000L, 0D), 10L);
+        AccountingLogTailer tailer = new AccountingLogTailer(folder.getRoot().getAbsolutePath(), clock);
+        tailer.seek("20151017", 0L);
+        AccountingLogMonitor monitor = new AccountingLogMonitor(tailer, pool, engine, poller, 10L);
+        try {
+            monitor.start();
+            CompletableFuture<Job> wait = poller.await("1.server", Long.MAX_VALUE);
+            while (qstat.getCalls().isEmpty()) {
+                Thread.sleep(10L);
+            }
+            // the next qstat is a minute away
+            append("20151017", String.format(END_RECORD, "1.server", 3));
+            Job job = wait.get(10, TimeUnit.SECONDS);
+            assertEquals("F", job.getState());
+            assertEquals(3, job.getExitStatus());
+            assertEquals(1, qstat.getCalls().size());
+        } finally {
+            monitor.close();
+            poller.close();
+            engine.close();
+            pool.close();
+        }
+    }
+
+    @Test(timeout = 30000L)
+    public void testKeepsReadingAfterFailures() throws Exception {
+        final AtomicInteger failures = new AtomicInteger(3);
+        ExecutionEngine engine = new ExecutionEngine(4);
+        ConnectionPool pool = new ConnectionPool(new LocalConnectionFactory() {
+            @Override
+            public OverthereConnection open() {
+                if (failures.getAndDecrement() > 0) {
+                    throw new RuntimeIOException("Connection refused");
+                }
+                return super.open();
+            }
+        }, 0, 1, 60000L, 60000L, 1000L);
+        JobPoller poller = new JobPoller(new StatusCache(new FakeQstat(), 0L, 500), engine,
+                new AdaptivePollPolicy(60000L, 60000L, 0D), 10L);
+        AccountingLogTailer tailer = new AccountingLogTailer(folder.getRoot().getAbsolutePath(), clock);
+        tailer.seek("20151017", 0L);
+        AccountingLogMonitor monitor = new AccountingLogMonitor(tailer, pool, engine, poller, 10L);
+        try {
+            monitor.start();
+            append("20151017", String.format(END_RECORD, "1.server", 0));
+            while (tailer.getOffset() == 0L) {
+                Thread.sleep(10L);
+            }
+            assertTrue(failures.get() < 0);
+        } finally {
+            monitor.close();
+            poller.close();
+            engine.close();
+            pool.close();
+        }
+    }
+
+}
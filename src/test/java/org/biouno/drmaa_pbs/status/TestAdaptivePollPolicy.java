@@ -0,0 +1,107 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.status;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.biouno.drmaa_pbs.model.Job;
+import org.junit.Test;
+
+/**
+ * Tests for the adaptive poll delays.
+ */
+public class TestAdaptivePollPolicy {
+
+    private final AdaptivePollPolicy policy = new AdaptivePollPolicy(1000L, 60000L, 0D);
+
+    private static Job job(String state) {
+        Job job = new Job();
+        job.setState(state);
+        return job;
+    }
+
+    private static Map<String, String> map(String key, String value) {
+        Map<String, String> map = new HashMap<String, String>();
+        map.put(key, value);
+        return map;
+    }
+
+    @Test
+    public void testBacksOffWhileQueued() {
+        assertEquals(1000L, policy.nextDelay(job("Q"), 0));
+        assertEquals(2000L, policy.nextDelay(job("Q"), 1));
+        assertEquals(32000L, policy.nextDelay(job("H"), 5));
+        assertEquals(60000L, policy.nextDelay(job("W"), 6));
+        assertEquals(60000L, policy.nextDelay(job("Q"), 1000));
+    }
+
+    @Test
+    public void testTightensNearRemainingWalltime() {
+        Job job = job("R");
+        job.setWalltime(map("Remaining", "10"));
+        assertEquals(5000L, policy.nextDelay(job, 10));
+        job.setWalltime(map("Remaining", "1"));
+        assertEquals(1000L, policy.nextDelay(job, 10));
+    }
+
+    @Test
+    public void testTightensNearRequestedWalltime() {
+        Job job = job("R");
+        job.setResourceList(map("walltime", "01:00:00"));
+        job.setResourcesUsed(map("walltime", "00:59:40"));
+        assertEquals(10000L, policy.nextDelay(job, 10));
+        job.setResourcesUsed(map("walltime", "00:10:00"));
+        assertEquals(60000L, policy.nextDelay(job, 10));
+    }
+
+    @Test
+    public void testExitingJobIsQueriedOften() {
+        assertEquals(1000L, policy.nextDelay(job("E"), 10));
+    }
+
+    @Test
+    public void testJitterStaysWithinBounds() {
+        AdaptivePollPolicy jittered = new AdaptivePollPolicy(1000L, 60000L, 0.2D);
+        for (int i = 0; i < 1000; i++) {
+            long delay = jittered.nextDelay(job("Q"), 3);
+            assertTrue("Delay out of bounds: " + delay, delay >= 6400L && delay <= 9600L);
+        }
+    }
+
+    @Test
+    public void testRateLimiterSpacesBursts() throws Exception {
+        RateLimiter limiter = new RateLimiter(20D);
+        long start = System.nanoTime();
+        for (int i = 0; i < 30; i++) {
+            limiter.acquire();
+        }
+        // 20 permits right away, then 10 more at 20 per second
+        assertTrue((System.nanoTime() - start) / 1000000L >= 450L);
+    }
+
+}
@@ -0,0 +1,217 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.status;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.biouno.drmaa_pbs.exec.CommandExecutor;
+import org.biouno.drmaa_pbs.exec.CommandOutput;
+import org.biouno.drmaa_pbs.exec.ExecutionEngine;
+import org.ggf.drmaa.DeniedByDrmException;
+import org.ggf.drmaa.NoActiveSessionException;
+import org.ggf.drmaa.TryLaterException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.OperatingSystemFamily;
+
+/**
+ * Tests for checking submissions against queue limits.
+ */
+public class TestAdmissionController {
+
+    private static final String QSTAT_Q = "Queue: batch\n    queue_type = Execution\n    max_user_run = 2\n"
+            + "    resources_max.walltime = 01:00:00\n    resources_max.mem = 4gb\n    resources_max.nodes = 4\n"
+            + "    enabled = True\n    started = True\n\nQueue: closed\n    queue_type = Execution\n"
+            + "    enabled = False\n    started = True\n\nQueue: express\n    queue_type = Execution\n"
+            + "    max_user_run = 1\n    enabled = True\n    started = True\n";
+
+    /**
+     * Answers qstat -Qf, and counts the calls, and qselect with the jobs of the user in the batch queue.
+     */
+    private static final class FakeQstatQueues implements CommandExecutor {
+
+        private volatile int calls = 0;
+        private volatile String userJobs = "";
+
+        @Override
+        public CommandOutput execute(CmdLine cmd) {
+            String line = Arrays.toString(cmd.toCommandArray(OperatingSystemFamily.UNIX, false));
+            if (line.contains("qselect")) {
+                return new CommandOutput(0, line.contains("'batch'") ? userJobs : "", "");
+            }
+            calls++;
+            return new CommandOutput(0, QSTAT_Q, "");
+        }
+
+        @Override
+        public List<CommandOutput> executeAll(List<CmdLine> cmds) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+    private ExecutionEngine engine;
+
+    @Before
+    public void setUp() {
+        engine = new ExecutionEngine(2);
+    }
+
+    @After
+    public void tearDown() {
+        engine.close();
+    }
+
+    private static Map<String, String> resources(String... pairs) {
+        Map<String, String> resources = new HashMap<String, String>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            resources.put(pairs[i], pairs[i + 1]);
+        }
+        return resources;
+    }
+
+    private static void assertDenied(AdmissionController admission, String queue, Map<String, String> resources)
+            throws Exception {
+        try {
+            admission.admit(queue, resources);
+            fail("Expected " + queue + " " + resources + " to be denied");
+        } catch (DeniedByDrmException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testDeniesJobsOverQueueMaximums() throws Exception {
+        FakeQstatQueues qstat = new FakeQstatQueues();
+        AdmissionController admission = new AdmissionController(qstat, engine, 60000L, false, jobId -> true);
+        assertDenied(admission, "batch", resources("walltime", "7200"));
+        assertDenied(admission, "batch", resources("walltime", "01:00:01"));
+        assertDenied(admission, "batch", resources("walltime", "01:00:01.5"));
+        assertDenied(admission, "batch", resources("mem", "5000mb"));
+        assertDenied(admission, "batch", resources("nodes", "5:ppn=2"));
+        assertDenied(admission, "closed", resources());
+        admission.admit("batch", resources("walltime", "3600", "mem", "4gb", "nodes", "4:ppn=8", "ncpus", "64"))
+                .cancel();
+        // a fraction of a second is dropped
+        admission.admit("batch", resources("walltime", "01:00:00.5")).cancel();
+        assertNull(admission.admit("unknown", resources("walltime", "99:00:00")).getQueue());
+        assertEquals(6L, admission.getRejectedCount());
+        assertEquals(1, qstat.calls);
+    }
+
+    @Test
+    public void testRejectsJobsOverMaxUserRun() throws Exception {
+        AdmissionController admission = new AdmissionController(new FakeQstatQueues(), engine, 60000L, false,
+                jobId -> !"gone.server".equals(jobId));
+        admission.admit("batch", resources()).submitted("1.server");
+        admission.admit("batch", resources()).submitted("2.server");
+        try {
+            admission.admit("batch", resources());
+            fail("Expected the third job to be rejected");
+        } catch (TryLaterException expected) {
+            // expected
+        }
+        admission.finished("1.server");
+        admission.admit("batch", resources()).submitted("gone.server");
+        // the session forgot the job, its slot is free
+        admission.admit("batch", resources()).cancel();
+    }
+
+    @Test
+    public void testCountsTheOtherJobsOfTheUser() throws Exception {
+        FakeQstatQueues qstat = new FakeQstatQueues();
+        qstat.userJobs = "7.server\n8.server\n";
+        AdmissionController admission = new AdmissionController(qstat, engine, 60000L, false, jobId -> true);
+        try {
+            admission.admit("batch", resources());
+            fail("Expected the jobs of another session to fill the queue");
+        } catch (TryLaterException expected) {
+            // expected
+        }
+        admission.finished("8.server");
+        admission.admit("batch", resources()).submitted("8.server");
+        // a job of the session listed by qselect is counted once
+        admission.finished("7.server");
+        admission.admit("batch", resources()).cancel();
+    }
+
+    @Test(timeout = 30000L)
+    public void testHoldsJobsOverMaxUserRun() throws Exception {
+        final AdmissionController admission = new AdmissionController(new FakeQstatQueues(), engine, 60000L, true,
+                jobId -> true);
+        for (String jobId : Arrays.asList("1.server", "2.server")) {
+            admission.admit("batch", Collections.<String, String> emptyMap()).submitted(jobId);
+        }
+        CompletableFuture<AdmissionController.Ticket> held = admission.admitAsync("batch", resources());
+        CompletableFuture<AdmissionController.Ticket> next = admission.admitAsync("batch", resources());
+        assertFalse(held.isDone());
+        assertEquals(2, admission.getWaitingCount());
+        // the held submissions do not stall the other queues
+        assertEquals("express", admission.admitAsync("express", resources()).get(10, TimeUnit.SECONDS).getQueue());
+        admission.finished("2.server");
+        assertEquals("batch", held.get(10, TimeUnit.SECONDS).getQueue());
+        assertFalse(next.isDone());
+        admission.close();
+        try {
+            next.get(10, TimeUnit.SECONDS);
+            fail("Expected the held submission to fail once closed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof NoActiveSessionException);
+        }
+    }
+
+    @Test(timeout = 30000L)
+    public void testAdmitsHeldJobsWhenTheOtherJobsOfTheUserFinish() throws Exception {
+        FakeQstatQueues qstat = new FakeQstatQueues();
+        qstat.userJobs = "7.server\n8.server\n";
+        AdmissionController admission = new AdmissionController(qstat, engine, 0L, true, jobId -> true);
+        CompletableFuture<AdmissionController.Ticket> held = admission.admitAsync("batch", resources());
+        Thread.sleep(50L);
+        assertFalse(held.isDone());
+        qstat.userJobs = "8.server\n";
+        assertEquals("batch", held.get(10, TimeUnit.SECONDS).getQueue());
+        assertEquals(0, admission.getWaitingCount());
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.status;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * Tests for the backpressure and conflation of the job event publisher.
+ */
+public class TestJobEventPublisher {
+
+    /**
+     * Records what it receives, and requests nothing by itself.
+     */
+    private static final class RecordingSubscriber implements Subscriber<JobStateEvent> {
+
+        private Subscription subscription;
+        private final List<String> events = new ArrayList<String>();
+        private Throwable error;
+        private boolean completed;
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(JobStateEvent event) {
+            events.add(event.getJobId() + ":" + event.getOldState() + "->" + event.getNewState());
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            this.error = error;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+
+    }
+
+    private JobEventPublisher publisher;
+    private RecordingSubscriber subscriber;
+
+    @Before
+    public void setUp() {
+        publisher = new JobEventPublisher(Runnable::run);
+        subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+    }
+
+    private void publish(String jobId, String oldState, String newState) {
+        publisher.stateChanged(new JobStateEvent(jobId, oldState, newState, null));
+    }
+
+    @Test
+    public void testConflatesEventsNotRequested() {
+        subscriber.subscription.request(1L);
+        publish("1.server", null, "Q");
+        publish("1.server", "Q", "R");
+        publish("2.server", null, "Q");
+        publish("1.server", "R", "F");
+        assertEquals(1, subscriber.events.size());
+
+        subscriber.subscription.request(10L);
+        assertEquals(3, subscriber.events.size());
+        assertEquals("1.server:null->Q", subscriber.events.get(0));
+        assertEquals("1.server:Q->F", subscriber.events.get(1));
+        assertEquals("2.server:null->Q", subscriber.events.get(2));
+        assertEquals(1L, publisher.getConflatedCount());
+
+        publish("2.server", "Q", "R");
+        assertEquals("2.server:Q->R", subscriber.events.get(3));
+    }
+
+    @Test
+    public void testRejectsNonPositiveRequests() {
+        subscriber.subscription.request(0L);
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+        assertEquals(0, publisher.getSubscriberCount());
+    }
+
+    @Test
+    public void testCloseCompletesSubscribers() {
+        publish("1.server", null, "Q");
+        publisher.close();
+        assertTrue(subscriber.completed);
+        assertTrue(subscriber.events.isEmpty());
+        assertEquals(0, publisher.getSubscriberCount());
+    }
+
+}
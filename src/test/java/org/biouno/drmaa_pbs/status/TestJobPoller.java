@@ -0,0 +1,171 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.status;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.biouno.drmaa_pbs.exec.ExecutionEngine;
+import org.biouno.drmaa_pbs.model.Job;
+import org.ggf.drmaa.ExitTimeoutException;
+import org.ggf.drmaa.InvalidJobException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.xebialabs.overthere.RuntimeIOException;
+
+/**
+ * Tests for the poller shared by the callers waiting on jobs.
+ */
+public class TestJobPoller {
+
+    private FakeQstat qstat;
+    private ExecutionEngine engine;
+
+    @Before
+    public void setUp() {
+        qstat = new FakeQstat();
+        engine = new ExecutionEngine(4);
+    }
+
+    @After
+    public void tearDown() {
+        engine.close();
+    }
+
+    private JobPoller newPoller(long pollInterval) {
+        return new JobPoller(new StatusCache(qstat, 0L, 500), engine, new AdaptivePollPolicy(pollInterval,
+                pollInterval, 0D), 10L);
+    }
+
+    @Test(timeout = 30000L)
+    public void testOneQueryPerPollForAllWaiters() throws Exception {
+        JobPoller poller = newPoller(200L);
+        List<CompletableFuture<Job>> waits = new ArrayList<CompletableFuture<Job>>();
+        for (int i = 0; i < 100; i++) {
+            qstat.setState(i + ".server", "R");
+            waits.add(poller.await(i + ".server", Long.MAX_VALUE));
+        }
+        for (int i = 0; i < 100; i++) {
+            qstat.setState(i + ".server", "F");
+        }
+        for (CompletableFuture<Job> wait : waits) {
+            assertEquals("F", wait.get().getState());
+        }
+        assertTrue("Expected a few batched queries, got " + qstat.getCalls().size(), qstat.getCalls().size() <= 5);
+        assertEquals(0, poller.getWaiterCount());
+    }
+
+    @Test(timeout = 30000L)
+    public void testNewWaiterIsCheckedWithinLatency() throws Exception {
+        JobPoller poller = newPoller(60000L);
+        qstat.setState("1.server", "R");
+        CompletableFuture<Job> running = poller.await("1.server", Long.MAX_VALUE);
+        qstat.setState("2.server", "F");
+        assertEquals("F", poller.await("2.server", Long.MAX_VALUE).get(5, TimeUnit.SECONDS).getState());
+        poller.close();
+        assertTrue(running.isCompletedExceptionally());
+    }
+
+    @Test(timeout = 30000L)
+    public void testBacksOffWhileJobIsQueued() throws Exception {
+        JobPoller poller = new JobPoller(new StatusCache(qstat, 0L, 500), engine, new AdaptivePollPolicy(10L, 60000L,
+                0D), 10L);
+        qstat.setState("1.server", "Q");
+        try {
+            poller.await("1.server", System.currentTimeMillis() + 1500L).get();
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof ExitTimeoutException);
+        }
+        // 10, 20, 40, ... milliseconds apart, instead of 150 queries 10 milliseconds apart
+        assertTrue("Expected about 8 queries, got " + qstat.getCalls().size(), qstat.getCalls().size() <= 10);
+    }
+
+    @Test(timeout = 30000L, expected = ExitTimeoutException.class)
+    public void testTimesOut() throws Throwable {
+        JobPoller poller = newPoller(50L);
+        qstat.setState("1.server", "Q");
+        try {
+            poller.await("1.server", System.currentTimeMillis() + 200L).get();
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Test(timeout = 30000L, expected = InvalidJobException.class)
+    public void testFailsForUnknownJob() throws Throwable {
+        JobPoller poller = newPoller(50L);
+        try {
+            poller.await("404.server", Long.MAX_VALUE).get();
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Test(timeout = 30000L)
+    public void testKeepsWaitingThroughFailedQueries() throws Exception {
+        JobPoller poller = newPoller(20L);
+        qstat.setState("1.server", "F");
+        qstat.setFailures(JobPoller.MAX_QUERY_FAILURES - 1);
+        assertEquals("F", poller.await("1.server", Long.MAX_VALUE).get().getState());
+        assertEquals(JobPoller.MAX_QUERY_FAILURES, qstat.getCalls().size());
+    }
+
+    @Test(timeout = 30000L, expected = RuntimeIOException.class)
+    public void testFailsAfterConsecutiveFailedQueries() throws Throwable {
+        JobPoller poller = newPoller(20L);
+        qstat.setState("1.server", "F");
+        qstat.setFailures(JobPoller.MAX_QUERY_FAILURES);
+        try {
+            poller.await("1.server", Long.MAX_VALUE).get();
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Test(timeout = 30000L)
+    public void testTimesOutWhileQueryRuns() throws Exception {
+        StatusCache cache = new StatusCache(qstat, 0L, 500);
+        JobPoller poller = new JobPoller(cache, engine, new AdaptivePollPolicy(50L, 50L, 0D), 10L);
+        qstat.setState("1.server", "R");
+        cache.refresh(Collections.singletonList("1.server"));
+        qstat.setDelay(10000L);
+        try {
+            poller.await("1.server", System.currentTimeMillis() + 200L).get(2L, TimeUnit.SECONDS);
+            fail("Expected a timeout");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof ExitTimeoutException);
+        }
+    }
+
+}
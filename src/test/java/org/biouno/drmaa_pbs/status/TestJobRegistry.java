@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.status;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests for the compact registry of session jobs.
+ */
+public class TestJobRegistry {
+
+    @Test
+    public void testKeepsJobsAndStates() {
+        JobRegistry registry = new JobRegistry();
+        assertTrue(registry.add("12345.server"));
+        assertFalse(registry.add("12345.server"));
+        assertTrue(registry.add("12345.other"));
+        assertTrue(registry.add("123[].server"));
+        assertTrue(registry.add("0042.server"));
+        assertEquals(4, registry.size());
+
+        assertNull(registry.setState("12345.server", "Q"));
+        assertEquals("Q", registry.setState("12345.server", "R"));
+        assertEquals("R", registry.getState("12345.server"));
+        assertNull(registry.getState("12345.other"));
+        assertNull(registry.setState("123[].server", "B"));
+        assertEquals("B", registry.getState("123[].server"));
+        assertNull(registry.setState("1.unknown", "Q"));
+
+        Set<String> jobIds = new HashSet<String>(registry.getJobIds());
+        assertTrue(jobIds.contains("12345.server"));
+        assertTrue(jobIds.contains("12345.other"));
+        assertTrue(jobIds.contains("123[].server"));
+        assertTrue(jobIds.contains("0042.server"));
+
+        assertTrue(registry.remove("12345.server"));
+        assertFalse(registry.remove("12345.server"));
+        assertFalse(registry.contains("12345.server"));
+        assertTrue(registry.contains("12345.other"));
+        assertTrue(registry.remove("123[].server"));
+        assertEquals(2, registry.size());
+    }
+
+    @Test
+    public void testKeepsSubJobsByIndex() {
+        JobRegistry registry = new JobRegistry();
+        for (int i = 1; i <= 1000; i++) {
+            assertTrue(registry.add("123[" + i + "].server"));
+        }
+        assertFalse(registry.add("123[7].server"));
+        assertTrue(registry.add("123[].server"));
+        assertTrue(registry.add("124[7].server"));
+        assertTrue(registry.add("123[07].server"));
+        assertEquals(1003, registry.size());
+        assertFalse(registry.contains("123[0].server"));
+        assertFalse(registry.contains("123[7].other"));
+
+        assertNull(registry.setState("123[7].server", "F"));
+        assertTrue(registry.setExitStatus("123[7].server", 2));
+        assertEquals("F", registry.getState("123[7].server"));
+        assertEquals(2, registry.getExitStatus("123[7].server"));
+        assertNull(registry.getState("124[7].server"));
+        assertEquals(0, registry.getExitStatus("124[7].server"));
+
+        List<String> unfinished = registry.getUnfinishedJobIds();
+        assertEquals(1002, unfinished.size());
+        assertFalse(unfinished.contains("123[7].server"));
+        assertTrue(unfinished.contains("123[1000].server"));
+        assertTrue(unfinished.contains("123[07].server"));
+        assertEquals(1003, registry.getJobIds().size());
+
+        for (int i = 1; i <= 1000; i++) {
+            assertTrue(registry.remove("123[" + i + "].server"));
+        }
+        assertFalse(registry.remove("123[7].server"));
+        assertTrue(registry.contains("124[7].server"));
+        assertEquals(3, registry.size());
+    }
+
+    @Test
+    public void testGrowsAndReusesRemovedSlots() {
+        JobRegistry registry = new JobRegistry();
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 100000; i++) {
+                assertTrue(registry.add(i + ".server"));
+            }
+            assertEquals(100000, registry.size());
+            for (int i = 0; i < 100000; i += 2) {
+                assertTrue(registry.remove(i + ".server"));
+            }
+            for (int i = 1; i < 100000; i += 2) {
+                assertTrue(registry.contains(i + ".server"));
+                assertTrue(registry.remove(i + ".server"));
+            }
+            assertEquals(0, registry.size());
+        }
+        assertTrue(registry.getJobIds().isEmpty());
+    }
+
+}
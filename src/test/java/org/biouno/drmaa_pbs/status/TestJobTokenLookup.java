@@ -0,0 +1,106 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.status;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.biouno.drmaa_pbs.exec.CommandExecutor;
+import org.biouno.drmaa_pbs.exec.CommandOutput;
+import org.junit.Test;
+
+import com.xebialabs.overthere.CmdLine;
+
+/**
+ * Tests for finding jobs by their client token.
+ */
+public class TestJobTokenLookup {
+
+    /**
+     * Answers the lookups with the jobs of the server at the time qstat started, the first one once the test lets it
+     * complete.
+     */
+    private static final class SlowQstat implements CommandExecutor {
+
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private volatile String jobs = "<Data></Data>";
+        private volatile int calls = 0;
+
+        @Override
+        public CommandOutput execute(CmdLine cmd) throws InterruptedException {
+            String output = jobs;
+            if (calls++ == 0) {
+                started.countDown();
+                release.await();
+            }
+            return new CommandOutput(0, output, "");
+        }
+
+        @Override
+        public List<CommandOutput> executeAll(List<CmdLine> cmds) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+    private static CompletableFuture<String> findAsync(final JobTokenLookup lookup, final String token) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return lookup.find(token);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    @Test(timeout = 30000L)
+    public void testDoesNotAnswerWithLookupsStartedBeforeTheCall() throws Exception {
+        SlowQstat qstat = new SlowQstat();
+        JobTokenLookup lookup = new JobTokenLookup(qstat);
+        CompletableFuture<String> first = findAsync(lookup, "abc");
+        qstat.started.await();
+        // the job reaches the server while the first lookup runs
+        qstat.jobs = "<Data><Job><Job_Id>1.server</Job_Id><Variable_List>" + JobTokenLookup.toVariable("abc")
+                + "</Variable_List></Job></Data>";
+        CompletableFuture<String> second = findAsync(lookup, "abc");
+        while (lookup.getLookupCount() < 2) {
+            Thread.sleep(10L);
+        }
+        qstat.release.countDown();
+        assertNull(first.get(10, TimeUnit.SECONDS));
+        assertEquals("1.server", second.get(10, TimeUnit.SECONDS));
+        assertEquals(2L, lookup.getCommandCount());
+    }
+
+}
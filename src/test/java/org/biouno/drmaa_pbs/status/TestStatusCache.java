@@ -0,0 +1,140 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.status;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.biouno.drmaa_pbs.model.Job;
+import org.ggf.drmaa.InvalidJobException;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the session status cache.
+ */
+public class TestStatusCache {
+
+    private FakeQstat qstat;
+
+    @Before
+    public void setUp() {
+        qstat = new FakeQstat();
+        for (int i = 0; i < 10; i++) {
+            qstat.setState(i + ".server", "R");
+        }
+    }
+
+    @Test
+    public void testRefreshesAllTrackedJobsAtOnce() throws Exception {
+        StatusCache cache = new StatusCache(qstat, 60000L, 500);
+        for (int i = 0; i < 10; i++) {
+            cache.track(i + ".server");
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals("R", cache.get(i + ".server").getState());
+        }
+        assertEquals(1, qstat.getCalls().size());
+        assertEquals(10, qstat.getCalls().get(0).size());
+        assertEquals(9L, cache.getHitCount());
+        assertEquals(1L, cache.getMissCount());
+    }
+
+    @Test
+    public void testExpiredStatusIsRefreshed() throws Exception {
+        StatusCache cache = new StatusCache(qstat, 0L, 500);
+        cache.track("1.server");
+        assertEquals("R", cache.get("1.server").getState());
+        qstat.setState("1.server", "E");
+        assertEquals("E", cache.get("1.server").getState());
+        assertEquals(2, qstat.getCalls().size());
+        assertEquals(0L, cache.getHitCount());
+    }
+
+    @Test
+    public void testFinishedJobsAreNotQueriedAgain() throws Exception {
+        StatusCache cache = new StatusCache(qstat, 0L, 500);
+        qstat.setState("1.server", "F");
+        cache.track("1.server");
+        cache.track("2.server");
+        cache.get("2.server");
+        assertEquals("F", cache.get("1.server").getState());
+        cache.get("2.server");
+        assertEquals(Arrays.asList("2.server"), qstat.getCalls().get(1));
+    }
+
+    @Test
+    public void testFinishedJobsKeepOnlyStateAndExitStatus() throws Exception {
+        StatusCache cache = new StatusCache(qstat, 60000L, 500);
+        cache.track("1.server");
+        cache.track("2[3].server");
+        qstat.setState("2[3].server", "R");
+        cache.refresh();
+        assertEquals(2, cache.getCachedJobCount());
+
+        Job finished = new Job();
+        finished.setId("2[3].server");
+        finished.setState("F");
+        finished.setExitStatus(3);
+        assertTrue(cache.update(finished));
+        assertEquals(1, cache.getCachedJobCount());
+        assertEquals(Arrays.asList("1.server"), cache.getUnfinishedJobIds());
+
+        Job job = cache.get("2[3].server");
+        assertEquals("F", job.getState());
+        assertEquals(3, job.getExitStatus());
+        assertEquals(1, qstat.getCalls().size());
+        assertEquals(1L, cache.getHitCount());
+    }
+
+    @Test
+    public void testSplitsJobIdsInBatches() throws Exception {
+        StatusCache cache = new StatusCache(qstat, 60000L, 4);
+        for (int i = 0; i < 10; i++) {
+            cache.track(i + ".server");
+        }
+        cache.refresh();
+        assertEquals(3, qstat.getCalls().size());
+        assertEquals(1L, cache.getRefreshCount());
+        assertEquals(3L, cache.getCommandCount());
+    }
+
+    @Test
+    public void testUnknownJobIsForgotten() throws Exception {
+        StatusCache cache = new StatusCache(qstat, 60000L, 500);
+        cache.track("1.server");
+        try {
+            cache.get("404.server");
+        } catch (InvalidJobException expected) {
+            assertEquals("R", cache.get("1.server").getState());
+            assertFalse(cache.isTracked("404.server"));
+            return;
+        }
+        throw new AssertionError("Expected an InvalidJobException");
+    }
+
+}
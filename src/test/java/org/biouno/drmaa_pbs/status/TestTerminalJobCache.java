@@ -0,0 +1,136 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.status;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.ggf.drmaa.JobInfo;
+import org.junit.Test;
+
+/**
+ * Tests for the size bound and the counters of the cache of finished jobs.
+ */
+public class TestTerminalJobCache {
+
+    /**
+     * A finished job with some resource usage.
+     */
+    private static final class FinishedJob implements JobInfo {
+
+        private final String jobId;
+        private final Map<String, String> resourceUsage;
+
+        private FinishedJob(String jobId, Map<String, String> resourceUsage) {
+            this.jobId = jobId;
+            this.resourceUsage = resourceUsage;
+        }
+
+        @Override
+        public String getJobId() {
+            return jobId;
+        }
+
+        @SuppressWarnings("rawtypes")
+        @Override
+        public Map getResourceUsage() {
+            return resourceUsage;
+        }
+
+        @Override
+        public boolean hasExited() {
+            return true;
+        }
+
+        @Override
+        public int getExitStatus() {
+            return 0;
+        }
+
+        @Override
+        public boolean hasSignaled() {
+            return false;
+        }
+
+        @Override
+        public String getTerminatingSignal() {
+            return null;
+        }
+
+        @Override
+        public boolean hasCoreDump() {
+            return false;
+        }
+
+        @Override
+        public boolean wasAborted() {
+            return false;
+        }
+
+    }
+
+    private static JobInfo finished(String jobId) {
+        return new FinishedJob(jobId, Collections.singletonMap("walltime", "00:00:10"));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedJobs() {
+        TerminalJobCache probe = new TerminalJobCache(Long.MAX_VALUE);
+        probe.put("1.server", finished("1.server"));
+        long entryWeight = probe.getWeight();
+
+        TerminalJobCache cache = new TerminalJobCache(3 * entryWeight);
+        JobInfo first = finished("1.server");
+        cache.put("1.server", first);
+        cache.put("2.server", finished("2.server"));
+        cache.put("3.server", finished("3.server"));
+        assertSame(first, cache.get("1.server"));
+        cache.put("4.server", finished("4.server"));
+
+        assertEquals(3, cache.size());
+        assertEquals(1L, cache.getEvictionCount());
+        assertNull(cache.get("2.server"));
+        assertNotNull(cache.get("1.server"));
+        assertEquals(3 * entryWeight, cache.getWeight());
+    }
+
+    @Test
+    public void testCountsHitsAndMisses() {
+        TerminalJobCache cache = new TerminalJobCache(1024L * 1024L);
+        cache.put("1.server", finished("1.server"));
+        cache.get("1.server");
+        cache.get("1.server");
+        cache.get("1.server");
+        cache.get("2.server");
+        assertEquals(3L, cache.getHitCount());
+        assertEquals(1L, cache.getMissCount());
+        assertEquals(0.75D, cache.getHitRate(), 0.0001D);
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012-2015 Bruno P. Kinoshita, BioUno
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.drmaa_pbs.status;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for the deadlines of the timer wheel.
+ */
+public class TestTimerWheel {
+
+    @Test
+    public void testExpiresAtTheFirstTickAfterTheDeadline() {
+        TimerWheel<String> wheel = new TimerWheel<String>(10L, 1000L);
+        wheel.schedule("a", 1025L);
+        wheel.schedule("b", 1030L);
+        List<String> expired = new ArrayList<String>();
+        wheel.advance(1029L, expired::add);
+        assertTrue(expired.isEmpty());
+        wheel.advance(1030L, expired::add);
+        assertEquals(2, expired.size());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testCancelledTimersDoNotExpire() {
+        TimerWheel<String> wheel = new TimerWheel<String>(10L, 0L);
+        TimerWheel.Timer<String> timer = wheel.schedule("a", 100L);
+        assertTrue(timer.cancel());
+        assertFalse(timer.cancel());
+        List<String> expired = new ArrayList<String>();
+        wheel.advance(1000L, expired::add);
+        assertTrue(expired.isEmpty());
+        assertEquals(0, wheel.size());
+    }
+
+    /**
+     * Deadlines on every level, and beyond the last one, expire in order, each on its own tick. The wheel goes through
+     * every tick, so the deadlines beyond the last level, 2^24 ticks, are kept within 2^25 ticks.
+     */
+    @Test
+    public void testExpiresDeadlinesOfAllLevels() {
+        TimerWheel<Long> wheel = new TimerWheel<Long>(1L, 0L);
+        Random random = new Random(42L);
+        List<Long> deadlines = new ArrayList<Long>();
+        for (int i = 0; i < 2000; i++) {
+            long deadline = 1L + (long) (random.nextDouble() * (1L << Math.min(25, 6 * (1 + i % 5))));
+            deadlines.add(deadline);
+            wheel.schedule(deadline, deadline);
+        }
+        final long[] now = new long[1];
+        List<Long> expired = new ArrayList<Long>();
+        for (now[0] = 0L; wheel.size() > 0; now[0] += 97L) {
+            wheel.advance(now[0], deadline -> {
+                assertTrue(deadline <= now[0]);
+                assertTrue(deadline > now[0] - 97L);
+                expired.add(deadline);
+            });
+        }
+        assertEquals(deadlines.size(), expired.size());
+    }
+
+}